@@ -47,4 +47,8 @@ public class JQCADConstants
 	public static final double EPSILON						= 8.8541878e-12;
 	public static final double FOUR_PI_EPSILON				= 1.112650056e-10;
 	public static final double ONE_OVER_FOUR_HALF_QCHARGE	= 3.12109e18;
+
+	public static final double HBAR							= 1.054571817e-34;
+	public static final double OVER_HBAR					= 9.482521562e33;
+	public static final double BOLTZMANN					= 1.380649e-23;
 }
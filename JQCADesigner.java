@@ -38,13 +38,20 @@ import jqcadesigner.circuit.Circuit.CircuitException;
 import jqcadesigner.config.ConfigFile;
 
 import jqcadesigner.engines.BistableEngine;
+import jqcadesigner.engines.CoherenceVectorEngine;
 import jqcadesigner.engines.Engine;
 import jqcadesigner.engines.Engine.EngineException;
+import jqcadesigner.engines.HybridEngine;
+import jqcadesigner.engines.LogicEngine;
+import jqcadesigner.engines.ExhaustiveSimulation;
+import jqcadesigner.engines.MonteCarloSimulation;
+import jqcadesigner.engines.MultiSimulation;
+import jqcadesigner.engines.ParameterSweep;
+import jqcadesigner.engines.SampleCountTuner;
 
 // Todos for Beta:
 // TODO: Add a method to circuit to get cell list, instead of matrix, that cells can be ticked randomly accross layers. Hopefully that will fix the issue with the XOR circuit.
 // TODO: Test and debug.
-// TODO: make it so if no vector table file is specified, it automatically loads an exhaustive vector table.
 public class JQCADesigner
 {
 	public static final String		PROGRAM_NAME = "JQCADesigner";
@@ -52,7 +59,7 @@ public class JQCADesigner
 	public static final String[][]	PROGRAM_AUTHORS = { {"Robert Honer", "rhoner@ucla.edu"} };
 	public static final String		PROGRAM_LICENSE = "BSD";
 
-	public static final String[]	VALID_ENGINES = { "bistable" };
+	public static final String[]	VALID_ENGINES = { "bistable", "coherence", "logic", "hybrid" };
 
 	public static final Logger	log;
 	public static final Options	options = new Options();
@@ -75,10 +82,34 @@ public class JQCADesigner
 			options.addOption( "-n", 1 );
 
 			// The radial tolerance.
-			options.addOption( "-t", 0 );
+			options.addOption( "-t", 0.0 );
 
 			// The vector table file.
 			options.addOption( "--vt", "" );
+
+			// The file with the settings to sweep, if any.
+			options.addOption( "--sweep", "" );
+
+			// Whether to pick number_of_samples instead of running the
+			// simulation once.
+			options.addOption( "--tune", false );
+
+			// Without a vector table, the order to apply every combination of
+			// the inputs in: binary or gray.
+			options.addOption( "--order", "binary" );
+
+			// Without a vector table, how many vectors each shard runs.
+			options.addOption( "--shard", 16 );
+
+			// Without a vector table, how many clock cycles the outputs lag
+			// the inputs by.
+			options.addOption( "--latency", 1 );
+
+			// The file to write checkpoints of the run to, if any.
+			options.addOption( "--checkpoint", "" );
+
+			// The checkpoint to pick the run up from, if any.
+			options.addOption( "--resume", "" );
 			
 			// Whether or not to output verbosely.
 			options.addOption( "--verbose", true );
@@ -128,6 +159,9 @@ public class JQCADesigner
 		String engineName			= (String)options.get( "-e" );
 		String engineConfigFileName	= ((String)options.get( "-c" )).equals( "" )
 									? null : (String)options.get( "-c" );
+		int simulations				= (Integer)options.get( "-n" );
+		double radialTolerance		= (Double)options.get( "-t" );
+		String sweepFileName		= (String)options.get( "--sweep" );
 
 		try
 		{
@@ -142,13 +176,112 @@ public class JQCADesigner
 			}
 			else
 			{
-				vectorTable = null;
+				// handleArgs has made sure nothing else was asked for.
+				ExhaustiveSimulation.Order order
+					= ExhaustiveSimulation.Order.valueOf(
+						((String)options.get( "--order" )).toUpperCase() );
+
+				ExhaustiveSimulation exhaustiveSimulation
+					= new ExhaustiveSimulation(	circuit,
+												engineConfigFileName,
+												order,
+												(Integer)options.get( "--shard" ),
+												(Integer)options.get( "--latency" ),
+												0,
+												System.currentTimeMillis() );
+
+				exhaustiveSimulation.run().printStats();
+				return;
 			}
 
-			if( engineName.equals( "bistable" ) )
+			if( engineName.equals( "bistable" ) && (Boolean)options.get( "--tune" ) )
+			{
+				SampleCountTuner tuner = SampleCountTuner.load(	circuit,
+																engineConfigFileName,
+																0,
+																0 );
+
+				tuner.run( vectorTable ).printStats();
+				return;
+			}
+			else if( engineName.equals( "bistable" ) && !sweepFileName.equals( "" ) )
+			{
+				ParameterSweep sweep = ParameterSweep.load(	circuit,
+															engineConfigFileName,
+															sweepFileName,
+															0 );
+
+				sweep.run( vectorTable ).printStats();
+				return;
+			}
+			else if( engineName.equals( "bistable" ) && radialTolerance > 0 )
+			{
+				// Each of the simulations is a fabrication trial.
+				MonteCarloSimulation monteCarloSimulation
+					= new MonteCarloSimulation(	circuit,
+												engineConfigFileName,
+												simulations,
+												radialTolerance,
+												0,
+												System.currentTimeMillis() );
+
+				monteCarloSimulation.run( vectorTable ).printStats();
+				return;
+			}
+			else if( engineName.equals( "bistable" ) && simulations > 1 )
+			{
+				// Seed from the clock, but log it so the run can be repeated.
+				MultiSimulation multiSimulation
+					= new MultiSimulation(	circuit,
+											engineConfigFileName,
+											simulations,
+											0,
+											System.currentTimeMillis() );
+
+				multiSimulation.run( vectorTable ).printStats();
+				return;
+			}
+			else if( engineName.equals( "bistable" ) || engineName.equals( "hybrid" ) )
+			{
+				// The hybrid engine runs on the bistable engine's loop, so it
+				// checkpoints the same way.
+				BistableEngine bistableEngine	= engineName.equals( "hybrid" )
+												? new HybridEngine(	circuit,
+																	engineConfigFileName )
+												: new BistableEngine(	circuit,
+																		engineConfigFileName );
+
+				String checkpointFileName	= (String)options.get( "--checkpoint" );
+				String resumeFileName		= (String)options.get( "--resume" );
+
+				// A resumed run goes on checkpointing to the same file,
+				// unless told otherwise, so it can be resumed again.
+				if( checkpointFileName.equals( "" ) )
+				{
+					checkpointFileName = resumeFileName;
+				}
+
+				if( !checkpointFileName.equals( "" ) )
+				{
+					bistableEngine.checkpointTo( checkpointFileName );
+				}
+
+				if( !resumeFileName.equals( "" ) )
+				{
+					log.log( Level.INFO, "Resuming from <{0}>.", resumeFileName );
+					bistableEngine.resumeFrom( resumeFileName, vectorTable );
+				}
+
+				engine = bistableEngine;
+			}
+			else if( engineName.equals( "coherence" ) )
 			{
-				engine = new BistableEngine(	circuit,
-												engineConfigFileName );
+				engine = new CoherenceVectorEngine(	circuit,
+													engineConfigFileName );
+			}
+			else if( engineName.equals( "logic" ) )
+			{
+				engine = new LogicEngine( circuit, engineConfigFileName );
 			}
 			else
 			{
@@ -196,6 +329,110 @@ public class JQCADesigner
 		{
 			throw new Exception( "Invalid engine name: " + engineName );
 		}
+
+		if( (Integer)options.get( "-n" ) < 1 )
+		{
+			throw new Exception( "The number of simulations must be at least 1." );
+		}
+
+		if( (Double)options.get( "-t" ) < 0 )
+		{
+			throw new Exception( "The radial tolerance can't be negative." );
+		}
+
+		String order = (String)options.get( "--order" );
+
+		if( !order.equals( "binary" ) && !order.equals( "gray" ) )
+		{
+			throw new Exception( "The order must be binary or gray." );
+		}
+
+		if( (Integer)options.get( "--shard" ) < 1 )
+		{
+			throw new Exception( "There must be at least one vector per shard." );
+		}
+
+		if( (Integer)options.get( "--latency" ) < 0 )
+		{
+			throw new Exception( "The latency can't be negative." );
+		}
+
+		if( ((String)options.get( "--vt" )).equals( "" ) )
+		{
+			if( !engineName.equals( "bistable" ) )
+			{
+				String msg = "Only the bistable engine can run without a vector table.";
+				throw new Exception( msg );
+			}
+
+			// Without a vector table, every combination of the inputs is run
+			// once, which none of these modes applies to.
+			if(		(Boolean)options.get( "--tune" )
+				||	!((String)options.get( "--sweep" )).equals( "" ) )
+			{
+				String msg = "Tuning and sweeps need a vector table (--vt).";
+				throw new Exception( msg );
+			}
+
+			if(		(Integer)options.get( "-n" ) > 1
+				||	(Double)options.get( "-t" ) > 0 )
+			{
+				String msg = "Multiple simulations and a radial tolerance "
+							+ "need a vector table (--vt).";
+				throw new Exception( msg );
+			}
+
+			if(		!((String)options.get( "--checkpoint" )).equals( "" )
+				||	!((String)options.get( "--resume" )).equals( "" ) )
+			{
+				String msg = "Checkpoints need a vector table (--vt).";
+				throw new Exception( msg );
+			}
+		}
+
+		// -t runs -n fabrication trials, so the two of them are one mode.
+		int modeCount	= ((Boolean)options.get( "--tune" ) ? 1 : 0)
+						+ (((String)options.get( "--sweep" )).equals( "" ) ? 0 : 1)
+						+ ((Integer)options.get( "-n" ) > 1
+							|| (Double)options.get( "-t" ) > 0 ? 1 : 0);
+
+		if( modeCount > 1 )
+		{
+			String msg = "Only one of --tune, --sweep and -n/-t can be given.";
+			throw new Exception( msg );
+		}
+
+		if( modeCount > 0 && !engineName.equals( "bistable" ) )
+		{
+			String msg	= "Only the bistable engine can tune, sweep or run "
+						+ "multiple simulations.";
+			throw new Exception( msg );
+		}
+
+		if(		!((String)options.get( "--checkpoint" )).equals( "" )
+			||	!((String)options.get( "--resume" )).equals( "" ) )
+		{
+			if( modeCount > 0 )
+			{
+				String msg	= "Checkpoints are only taken of a single "
+							+ "simulation, not of tuning, sweeps or -n/-t.";
+				throw new Exception( msg );
+			}
+
+			if( !engineName.equals( "bistable" ) && !engineName.equals( "hybrid" ) )
+			{
+				String msg = "Only the bistable and hybrid engines can checkpoint.";
+				throw new Exception( msg );
+			}
+		}
+
+		String resumeFile = (String)options.get( "--resume" );
+
+		if( !resumeFile.equals( "" ) && !(new File( resumeFile )).isFile() )
+		{
+			String msg = "The checkpoint to resume from must exist and be a file.";
+			throw new Exception( msg );
+		}
 	}
 
 	public static boolean isValidEngineName( String engineName )
@@ -225,7 +462,11 @@ public class JQCADesigner
 		System.out.println(
 				"\nUsage: "+programName+" -f circuit_file -e engine_name "
 				+ "[-c engine_config_file] [-n number_of_simulations] "
-				+ "[-t radial_tolerance] [-vt vector_table_file]"
+				+ "[-t radial_tolerance] [-vt vector_table_file] "
+				+ "[--sweep sweep_file] [--order binary|gray] "
+				+ "[--shard vectors_per_shard] [--latency cycles] "
+				+ "[--tune true|false] [--checkpoint checkpoint_file] "
+				+ "[--resume checkpoint_file]"
 			);
 	}
 
@@ -42,6 +42,24 @@ public final class VectorTable
 	public final boolean[] active;
 	public final boolean[][] inputs;
 
+	/**
+	 * Wraps vectors that were generated rather than read from a file.
+	 *
+	 * @param a Which inputs are active.
+	 * @param i The values of each input, one vector after another.
+	 */
+	public VectorTable( boolean[] a, boolean[][] i )
+	{
+		if( a == null || i == null || a.length != i.length )
+		{
+			String msg = "There must be exactly one vector for every input.";
+			throw new IllegalArgumentException( msg );
+		}
+
+		active = a;
+		inputs = i;
+	}
+
 	public VectorTable( String vectorTableFile )
 		throws FileNotFoundException, IOException, ParseException
 	{
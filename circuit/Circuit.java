@@ -30,6 +30,8 @@ package jqcadesigner.circuit;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import jqcadesigner.JQCADesigner;
@@ -67,6 +69,16 @@ public final class Circuit
 	private final BusLayout				_busLayout;
 	private final Clock[]				_clocks;
 
+	/**
+	 * The cell layers, by the layer number their cells have.
+	 */
+	private final HashMap<Integer, CellLayer>	_cellLayers;
+
+	/**
+	 * Every edit made to the cells since the circuit was loaded, in order.
+	 */
+	private final ArrayList<Edit>		_edits;
+
 	/**
 	 * Stores the current layer number when loading from the ConfigFile.
 	 */
@@ -86,6 +98,8 @@ public final class Circuit
 		_fixedCells		= new ArrayList<FixedCell>();
 		_busLayout		= new BusLayout();
 		_clocks			= new Clock[4];
+		_cellLayers		= new HashMap<Integer, CellLayer>();
+		_edits			= new ArrayList<Edit>();
 
 		_load();
 	}
@@ -214,6 +228,209 @@ public final class Circuit
 		}
 	}
 
+	/**
+	 * Adds a cell to the circuit. It goes at the end of its layer, and if
+	 * it's an input or an output, at the end of the inputs or outputs.
+	 *
+	 * @param cell A cell made for this circuit.
+	 */
+	public void addCell( Cell cell )
+	{
+		_cellLayerOf( cell ).cells.add( cell );
+		_functionListOf( cell ).add( cell );
+
+		++_cellCount;
+		_edits.add( new Edit( null, cell ) );
+	}
+
+	/**
+	 * Takes a cell out of the circuit.
+	 *
+	 * @param cell
+	 */
+	public void removeCell( Cell cell )
+	{
+		if( !_cellLayerOf( cell ).cells.remove( cell ) )
+		{
+			throw new IllegalArgumentException( "The cell isn't part of the circuit." );
+		}
+
+		_functionListOf( cell ).remove( cell );
+
+		--_cellCount;
+		_edits.add( new Edit( cell, null ) );
+	}
+
+	/**
+	 * Moves a cell, dots and all. Cells can't be changed, so the cell is
+	 * replaced by a moved copy, which keeps its place in its layer and among
+	 * the inputs or outputs.
+	 *
+	 * @param cell
+	 * @param x The new x coordinate of the cell's center.
+	 * @param y The new y coordinate of the cell's center.
+	 * @return The moved copy.
+	 */
+	public Cell moveCell( Cell cell, double x, double y )
+	{
+		Cell moved = _copyCell( cell, cell.clockNum, x - cell.xCoord, y - cell.yCoord );
+		_replaceCell( cell, moved );
+
+		return moved;
+	}
+
+	/**
+	 * Puts a cell in another clock zone. Cells can't be changed, so the cell
+	 * is replaced by a copy, which keeps its place in its layer and among the
+	 * inputs or outputs.
+	 *
+	 * @param cell
+	 * @param clockNum Between 0 and 3.
+	 * @return The copy.
+	 */
+	public Cell reclockCell( Cell cell, byte clockNum )
+	{
+		if( clockNum < 0 || clockNum > 3 )
+		{
+			throw new IllegalArgumentException( "Clock number must be between 0 and 3." );
+		}
+
+		Cell reclocked = _copyCell( cell, clockNum, 0, 0 );
+		_replaceCell( cell, reclocked );
+
+		return reclocked;
+	}
+
+	/**
+	 * @return How many edits have been made to the cells since the circuit
+	 *		was loaded.
+	 */
+	public int getEditCount()
+	{
+		return _edits.size();
+	}
+
+	/**
+	 * @param from The number of edits already seen, from getEditCount.
+	 * @return The edits made since then, in order.
+	 */
+	public Edit[] getEdits( int from )
+	{
+		List<Edit> edits = _edits.subList( from, _edits.size() );
+
+		return edits.toArray( new Edit[ edits.size() ] );
+	}
+
+	private void _replaceCell( Cell oldCell, Cell newCell )
+	{
+		List<Cell> layerCells = _cellLayerOf( oldCell ).cells;
+		int index = layerCells.indexOf( oldCell );
+
+		if( index < 0 )
+		{
+			throw new IllegalArgumentException( "The cell isn't part of the circuit." );
+		}
+
+		layerCells.set( index, newCell );
+
+		List<Cell> functionCells = _functionListOf( oldCell );
+		index = functionCells.indexOf( oldCell );
+
+		if( index >= 0 )
+		{
+			functionCells.set( index, newCell );
+		}
+
+		_edits.add( new Edit( oldCell, newCell ) );
+	}
+
+	/**
+	 * Makes a copy of a cell in another clock zone and/or at another spot.
+	 */
+	private Cell _copyCell( Cell cell, byte clockNum, double xOffset, double yOffset )
+	{
+		QuantumDot[] dots = new QuantumDot[ cell.dots.length ];
+
+		for( int i = 0; i < dots.length; ++i )
+		{
+			QuantumDot dot = cell.dots[i];
+
+			dots[i] = new QuantumDot(	dot.xCoord + xOffset, dot.yCoord + yOffset,
+										dot.diameter, dot.charge, dot.spin,
+										dot.potential );
+		}
+
+		final double x = cell.xCoord + xOffset;
+		final double y = cell.yCoord + yOffset;
+
+		Cell copy;
+
+		switch( cell.function )
+		{
+			case INPUT:
+				InputCell icell = new InputCell( this, cell.mode, clockNum, x, y, cell.dotDiameter, cell.layerNum, dots );
+				icell.setName( ((InputCell)cell).getName() );
+				icell.active = ((InputCell)cell).active;
+				copy = icell;
+				break;
+
+			case OUTPUT:
+				OutputCell ocell = new OutputCell( this, cell.mode, clockNum, x, y, cell.dotDiameter, cell.layerNum, dots );
+				ocell.setName( ((OutputCell)cell).getName() );
+				copy = ocell;
+				break;
+
+			case FIXED:
+				copy = new FixedCell( this, cell.mode, clockNum, x, y, cell.dotDiameter, cell.layerNum, dots );
+				break;
+
+			default:
+				copy = new NormalCell( this, cell.mode, clockNum, x, y, cell.dotDiameter, cell.layerNum, dots );
+				break;
+		}
+
+		copy.setPolarization( cell.getPolarization() );
+
+		return copy;
+	}
+
+	private CellLayer _cellLayerOf( Cell cell )
+	{
+		CellLayer layer = _cellLayers.get( cell.layerNum );
+
+		if( layer == null )
+		{
+			String msg = "There's no cell layer " + cell.layerNum + ".";
+			throw new IllegalArgumentException( msg );
+		}
+
+		return layer;
+	}
+
+	/**
+	 * The list, other than its layer, that a cell is kept in because of its
+	 * function. Normal cells aren't kept anywhere else, so they get a list
+	 * that's thrown away.
+	 */
+	@SuppressWarnings( "unchecked" )
+	private List<Cell> _functionListOf( Cell cell )
+	{
+		switch( cell.function )
+		{
+			case INPUT:
+				return (List<Cell>)(List<?>)_inputCells;
+
+			case OUTPUT:
+				return (List<Cell>)(List<?>)_outputCells;
+
+			case FIXED:
+				return (List<Cell>)(List<?>)_fixedCells;
+
+			default:
+				return new ArrayList<Cell>();
+		}
+	}
+
 	private void _load()
 		throws	FileNotFoundException, IOException, ParseException,
 				CircuitException
@@ -296,6 +513,11 @@ public final class Circuit
 			if( layer != null )
 			{
 				_layers.add( layer );
+
+				if( layer.hasCells() )
+				{
+					_cellLayers.put( i, (CellLayer)layer );
+				}
 			}
 		}
 
@@ -616,6 +838,36 @@ public final class Circuit
 
 	}
 
+	/**
+	 * One change to the cells. A cell that was added has no old cell, one
+	 * that was removed has no new cell, and one that was moved or re-clocked
+	 * has both.
+	 */
+	public static final class Edit
+	{
+		public final Cell oldCell;
+		public final Cell newCell;
+
+		public Edit( Cell o, Cell n )
+		{
+			assert o != null || n != null;
+
+			oldCell = o;
+			newCell = n;
+		}
+
+		/**
+		 * @return Whether the edit changed where any cell is, as opposed to
+		 *		just its clock zone.
+		 */
+		public boolean movesCells()
+		{
+			return	oldCell == null || newCell == null
+					|| oldCell.xCoord != newCell.xCoord
+					|| oldCell.yCoord != newCell.yCoord;
+		}
+	}
+
 	public static class CircuitException extends Exception
 	{
 		public CircuitException( String msg )
@@ -131,6 +131,17 @@ public class Clock
 		return _crtValue = _trace.getNext();
 	}
 
+	/**
+	 * Look up the clock's value at any point in its trace.
+	 *
+	 * @param index Between 0 and granularity - 1.
+	 * @return The clock's value at that index.
+	 */
+	public double get( int index )
+	{
+		return _trace.get( index );
+	}
+
 	/**
 	 * Check the clocks value without advancing it.
 	 *
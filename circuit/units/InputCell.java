@@ -63,6 +63,27 @@ public class InputCell extends Cell
 	}
 
 	public void setValues( boolean[] values, int granularity )
+	{
+		_fillTrace( _inputValues, values, granularity );
+	}
+
+	/**
+	 * Spreads values out over a trace the same way setValues does, without
+	 * touching any input cell.
+	 *
+	 * @param values
+	 * @param granularity The number of ticks in the trace.
+	 * @return The trace.
+	 */
+	public static DataTrace makeTrace( boolean[] values, int granularity )
+	{
+		DataTrace trace = new DataTrace();
+		_fillTrace( trace, values, granularity );
+
+		return trace;
+	}
+
+	private static void _fillTrace( DataTrace trace, boolean[] values, int granularity )
 	{
 		if( values == null )
 		{
@@ -89,7 +110,7 @@ public class InputCell extends Cell
 		final int extraInsertFreq = excessTicks > 0 ? valueCount / excessTicks
 									: 0;
 		
-		_inputValues.setSize( granularity );
+		trace.setSize( granularity );
 		
 		for( int i = 0; i < valueCount; ++i )
 		{
@@ -97,14 +118,14 @@ public class InputCell extends Cell
 
 			for( int j = ticksPerValue; j > 0; --j )
 			{
-				_inputValues.addNext( crtValue );
+				trace.addNext( crtValue );
 			}
 
 			if( extraInsertFreq != 0 && excessTicks-- > 0 && i % extraInsertFreq == 0 )
 			{
 				// Add an extra here to make sure that we completely fill up the
 				// DataTrace.
-				_inputValues.addNext( crtValue );
+				trace.addNext( crtValue );
 			}
 		}
 	}
@@ -114,6 +135,11 @@ public class InputCell extends Cell
 		_inputValues.outputCSV( fileName );
 	}
 
+	public DataTrace getTrace()
+	{
+		return _inputValues;
+	}
+
 	@Override
 	public void reset()
 	{
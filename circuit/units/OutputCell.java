@@ -90,35 +90,49 @@ public class OutputCell extends Cell
 
 	public byte[] getValues()
 	{
-		Clock clock = _circuit.getClock( clockNum );
+		return getValues( _valueCache );
+	}
+
+	/**
+	 * Reads the logic values out of a trace of this cell's polarizations,
+	 * sampling it whenever the cell's clock is low.
+	 *
+	 * @param trace The polarizations, one per clock tick. Doesn't have to be
+	 *		this cell's own trace.
+	 * @return The values, 1, 0 or -1 if the polarization was undecided.
+	 */
+	public byte[] getValues( DataTrace trace )
+	{
+		return getValues( trace, _circuit.getClock( clockNum ) );
+	}
 
+	/**
+	 * Reads the logic values out of a trace of this cell's polarizations,
+	 * sampling it whenever the given clock is low.
+	 *
+	 * @param trace The polarizations, one per clock tick.
+	 * @param clock The clock the trace was simulated with.
+	 * @return The values, 1, 0 or -1 if the polarization was undecided.
+	 */
+	public byte[] getValues( DataTrace trace, Clock clock )
+	{
 		final double clockHigh = clock.clockHigh;
 		final double clockLow = clock.clockLow;
 		ArrayList<Byte> values = new ArrayList<Byte>();
 
-		final int granularity = _valueCache.getSize();
+		final int granularity = trace.getSize();
 
+		// The clock is read rather than ticked, so that any number of traces
+		// can be read at once.
 		boolean valueSampled = false;
-		clock.reset();
 		for( int i = 0; i < granularity; ++i )
 		{
-			double crtClockValue = clock.tick();
+			double crtClockValue = clock.get( i % clock.granularity );
 
 			if( !valueSampled && crtClockValue < clockLow*1.001 )
 			{
 				valueSampled = true;
-				byte value = -1;
-
-				if( _valueCache.get( i ) > 0.9 )
-				{
-					value = 1;
-				}
-				else if( _valueCache.get( i ) < -0.9 )
-				{
-					value = 0;
-				}
-
-				values.add( value );
+				values.add( _toValue( trace.get( i ) ) );
 			}
 			else if( valueSampled && crtClockValue > clockHigh*0.999 )
 			{
@@ -126,11 +140,80 @@ public class OutputCell extends Cell
 			}
 		}
 
-		Byte[] b = values.toArray( new Byte[ values.size() ] );
-		byte[] byteArray = new byte[ b.length ];
+		return _toArray( values );
+	}
+
+	/**
+	 * Reads the logic values out of a trace of this cell's polarizations like
+	 * getValues does, but at the end of each stretch where the clock is low
+	 * rather than at its start. Engines that follow the cells through time,
+	 * rather than relaxing them at every sample, need the stretch to settle.
+	 *
+	 * @param trace The polarizations, one per clock tick.
+	 * @param clock The clock the trace was simulated with.
+	 * @return The values, 1, 0 or -1 if the polarization was undecided.
+	 */
+	public byte[] getSettledValues( DataTrace trace, Clock clock )
+	{
+		final double clockHigh = clock.clockHigh;
+		final double clockLow = clock.clockLow;
+		ArrayList<Byte> values = new ArrayList<Byte>();
+
+		final int granularity = trace.getSize();
+
+		// The last sample of the current low stretch, if in one.
+		int lastLow = -1;
+		boolean armed = true;
+
+		for( int i = 0; i < granularity; ++i )
+		{
+			double crtClockValue = clock.get( i % clock.granularity );
+
+			if( armed && crtClockValue < clockLow*1.001 )
+			{
+				lastLow = i;
+			}
+			else if( armed && lastLow >= 0 )
+			{
+				values.add( _toValue( trace.get( lastLow ) ) );
+				lastLow = -1;
+				armed = false;
+			}
+			else if( !armed && crtClockValue > clockHigh*0.999 )
+			{
+				armed = true;
+			}
+		}
+
+		// The trace ended while the clock was low.
+		if( lastLow >= 0 )
+		{
+			values.add( _toValue( trace.get( lastLow ) ) );
+		}
+
+		return _toArray( values );
+	}
+
+	private static byte _toValue( double polarization )
+	{
+		if( polarization > 0.9 )
+		{
+			return 1;
+		}
+		else if( polarization < -0.9 )
+		{
+			return 0;
+		}
+
+		return -1;
+	}
+
+	private static byte[] _toArray( ArrayList<Byte> values )
+	{
+		byte[] byteArray = new byte[ values.size() ];
 		for( int i = 0; i < byteArray.length; ++i )
 		{
-			byteArray[i] = b[i];
+			byteArray[i] = values.get( i );
 		}
 
 		return byteArray;
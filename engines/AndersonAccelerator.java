@@ -0,0 +1,313 @@
+/*
+ *  Copyright (c) 2010 Robert Honer <rhoner@cs.ucla.edu>
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *      * Redistributions of source code must retain the above copyright
+ *        notice, this list of conditions and the following disclaimer.
+ *      * Redistributions in binary form must reproduce the above copyright
+ *        notice, this list of conditions and the following disclaimer in the
+ *        documentation and/or other materials provided with the distribution.
+ *      * Neither the name of the <organization> nor the
+ *        names of its contributors may be used to endorse or promote products
+ *        derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package jqcadesigner.engines;
+
+/**
+ * Windowed Anderson acceleration of a fixed point iteration over some of the
+ * cells' polarizations.
+ *
+ * The iteration here is one relaxation sweep. After each sweep, the last few
+ * sweeps' results and how much each one moved the cells are combined into
+ * the point that, going by them, moves the least, and the relaxation carries
+ * on from there instead of from where the sweep left off.
+ */
+public final class AndersonAccelerator
+{
+	/**
+	 * Keeps the least squares problem solvable when the sweeps' moves are
+	 * nearly parallel.
+	 */
+	private static final double REGULARIZATION = 1e-10;
+
+	private final int[]			_cells;
+	private final int			_window;
+
+	/**
+	 * Where the last sweep started from, where it ended up and how far it
+	 * moved each cell.
+	 */
+	private final double[]		_x;
+	private final double[]		_g;
+	private final double[]		_f;
+
+	/**
+	 * The differences between consecutive sweeps' moves and results, in a
+	 * ring of _window entries.
+	 */
+	private final double[][]	_dF;
+	private final double[][]	_dG;
+	private int					_historySize;
+	private int					_historyNext;
+
+	private double				_previousNorm;
+	private boolean				_started;
+
+	/**
+	 * Whether the last sweep started from an accelerated point, and how many
+	 * times in a row that's made things worse.
+	 */
+	private boolean				_accelerated;
+	private int					_failures;
+
+	/**
+	 * @param cells The indices of the cells to accelerate.
+	 * @param window How many past sweeps to combine.
+	 */
+	public AndersonAccelerator( final int[] cells, final int window )
+	{
+		assert window > 0;
+
+		_cells = cells.clone();
+		_window = window;
+
+		final int count = cells.length;
+
+		_x = new double[ count ];
+		_g = new double[ count ];
+		_f = new double[ count ];
+		_dF = new double[ window ][ count ];
+		_dG = new double[ window ][ count ];
+	}
+
+	/**
+	 * Forgets the past sweeps and remembers where the next one starts from.
+	 *
+	 * @param polarizations The polarization of every cell.
+	 */
+	public void reset( final double[] polarizations )
+	{
+		for( int i = _cells.length - 1; i >= 0; --i )
+		{
+			_x[i] = polarizations[ _cells[i] ];
+		}
+
+		_historySize = 0;
+		_historyNext = 0;
+		_started = false;
+		_previousNorm = Double.POSITIVE_INFINITY;
+		_accelerated = false;
+		_failures = 0;
+	}
+
+	/**
+	 * Works a sweep's result into the history and moves the cells to the
+	 * accelerated point.
+	 *
+	 * If a sweep from an accelerated point moved the cells further than the
+	 * sweep before it, the history is thrown away and the cells are left
+	 * where the sweep put them.
+	 *
+	 * @param polarizations The polarization of every cell, as the sweep left
+	 *		them. The accelerated cells are moved in place.
+	 * @return False if that's happened twice in a row, in which case the
+	 *		acceleration should be given up on.
+	 */
+	public boolean mix( final double[] polarizations )
+	{
+		final int[] cells = _cells;
+		final int count = cells.length;
+		final int slot = _historyNext;
+		final double[] dF = _dF[ slot ];
+		final double[] dG = _dG[ slot ];
+
+		double norm = 0;
+
+		for( int i = 0; i < count; ++i )
+		{
+			final double g = polarizations[ cells[i] ];
+			final double f = g - _x[i];
+
+			// The differences from the previous sweep, if there was one.
+			dF[i] = f - _f[i];
+			dG[i] = g - _g[i];
+
+			_g[i] = g;
+			_f[i] = f;
+			norm += f * f;
+		}
+
+		if( _accelerated && norm > _previousNorm )
+		{
+			++_failures;
+			_historySize = 0;
+			_historyNext = 0;
+		}
+		else
+		{
+			if( _accelerated )
+			{
+				_failures = 0;
+			}
+
+			if( _started )
+			{
+				_historyNext = (slot + 1) % _window;
+				_historySize = Math.min( _historySize + 1, _window );
+			}
+		}
+
+		_started = true;
+		_previousNorm = norm;
+
+		final double[] gamma = _historySize > 0 ? _solve() : null;
+		_accelerated = gamma != null;
+
+		for( int i = 0; i < count; ++i )
+		{
+			double x = _g[i];
+
+			if( gamma != null )
+			{
+				for( int h = 0; h < _historySize; ++h )
+				{
+					x -= gamma[h] * _dG[h][i];
+				}
+
+				x = Math.max( -1, Math.min( 1, x ) );
+
+				// Like over-relaxation, extrapolating a cell that's changing
+				// sides can tip a bistable wire the wrong way.
+				if( x * _g[i] <= 0 || _g[i] * _x[i] <= 0 )
+				{
+					x = _g[i];
+				}
+			}
+
+			_x[i] = x;
+			polarizations[ cells[i] ] = x;
+		}
+
+		return _failures < 2;
+	}
+
+	/**
+	 * Finds the combination of the past moves closest to the last one, by
+	 * least squares on the normal equations.
+	 *
+	 * @return The weights of the history entries, or null if the system
+	 *		couldn't be solved.
+	 */
+	private double[] _solve()
+	{
+		final int size = _historySize;
+		final int count = _cells.length;
+		final double[][] a = new double[ size ][ size + 1 ];
+
+		for( int h = 0; h < size; ++h )
+		{
+			for( int k = h; k < size; ++k )
+			{
+				double dot = 0;
+
+				for( int i = 0; i < count; ++i )
+				{
+					dot += _dF[h][i] * _dF[k][i];
+				}
+
+				a[h][k] = dot;
+				a[k][h] = dot;
+			}
+
+			double dot = 0;
+
+			for( int i = 0; i < count; ++i )
+			{
+				dot += _dF[h][i] * _f[i];
+			}
+
+			a[h][ size ] = dot;
+		}
+
+		double scale = 0;
+
+		for( int h = 0; h < size; ++h )
+		{
+			scale = Math.max( scale, a[h][h] );
+		}
+
+		if( scale == 0 )
+		{
+			return null;
+		}
+
+		for( int h = 0; h < size; ++h )
+		{
+			a[h][h] += REGULARIZATION * scale;
+		}
+
+		// Gaussian elimination with partial pivoting.
+		for( int c = 0; c < size; ++c )
+		{
+			int pivot = c;
+
+			for( int r = c + 1; r < size; ++r )
+			{
+				if( Math.abs( a[r][c] ) > Math.abs( a[ pivot ][c] ) )
+				{
+					pivot = r;
+				}
+			}
+
+			final double[] swap = a[c];
+			a[c] = a[ pivot ];
+			a[ pivot ] = swap;
+
+			if( a[c][c] == 0 )
+			{
+				return null;
+			}
+
+			for( int r = c + 1; r < size; ++r )
+			{
+				final double factor = a[r][c] / a[c][c];
+
+				for( int k = c; k <= size; ++k )
+				{
+					a[r][k] -= factor * a[c][k];
+				}
+			}
+		}
+
+		final double[] gamma = new double[ size ];
+
+		for( int c = size - 1; c >= 0; --c )
+		{
+			double value = a[c][ size ];
+
+			for( int k = c + 1; k < size; ++k )
+			{
+				value -= a[c][k] * gamma[k];
+			}
+
+			gamma[c] = value / a[c][c];
+		}
+
+		return gamma;
+	}
+}
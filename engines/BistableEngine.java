@@ -28,28 +28,34 @@
 package jqcadesigner.engines;
 
 import ec.util.MersenneTwisterFast;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.concurrent.ForkJoinPool;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import jqcadesigner.JQCADConstants;
 import java.lang.Math;
-import java.util.HashMap;
 import jqcadesigner.circuit.Circuit;
+import jqcadesigner.circuit.DataTrace;
 import jqcadesigner.VectorTable;
 import jqcadesigner.circuit.units.Cell;
 import jqcadesigner.circuit.units.Clock;
 import jqcadesigner.circuit.units.InputCell;
 import jqcadesigner.circuit.units.OutputCell;
-import jqcadesigner.circuit.units.QuantumDot;
 import jqcadesigner.config.ConfigFile;
 import jqcadesigner.config.syntaxtree.Section;
+import jqcadesigner.config.syntaxtree.SectionGroup;
 import jqcadesigner.config.syntaxtree.SettingsSection;
 
-public final class BistableEngine extends Engine
+public class BistableEngine extends Engine
 {
 	public static final class DefaultConfig
 	{
@@ -64,8 +70,112 @@ public final class BistableEngine extends Engine
 		public static final int		MAX_ITERATIONS_PER_SAMPLE	= 15;
 		public static final double	LAYER_SEPARATION			= 10;
 		public static final boolean	RANDOMIZE_CELLS				= true;
+		public static final int		THREADS						= 0;
+		public static final String	RELAXATION					= "gauss_seidel";
+		public static final boolean	KINK_ENERGY_MEMO			= false;
+		public static final boolean	SKIP_HELD_ZONES				= false;
+		public static final boolean	SKIP_QUIESCENT_SAMPLES		= false;
+		public static final double	QUIESCENCE_TOLERANCE		= 0;
+		public static final String	KERNEL						= "scalar";
+		public static final String	RANDOMIZATION				= "swaps";
+		public static final int		SHUFFLE_BLOCK_SIZE			= 64;
+		public static final int		PERMUTATION_COUNT			= 8;
+		public static final double	CHECKPOINT_INTERVAL			= 600;
+		public static final int		MULTIGRID_LEVELS			= 8;
+		public static final double	SOR_OMEGA					= 1;
+		public static final int		ANDERSON_WINDOW				= 0;
+		public static final String	CELL_ORDER					= "circuit";
 	}
 
+	/**
+	 * How the cells are relaxed within a sample.
+	 */
+	public static enum Relaxation
+	{
+		/**
+		 * One cell at a time, in the (possibly randomized) cell order.
+		 */
+		GAUSS_SEIDEL,
+
+		/**
+		 * The cells are colored so that no two neighbors share a color, then
+		 * all the cells of each color are updated concurrently.
+		 */
+		COLORED,
+
+		/**
+		 * Only the cells whose neighborhood or clock changed are updated.
+		 * Whenever a cell's polarization moves by more than the convergence
+		 * tolerance, its neighbors are queued up to be updated next.
+		 */
+		WORKLIST,
+
+		/**
+		 * Like GAUSS_SEIDEL, but once a sample has taken a few sweeps the
+		 * cells are corrected between sweeps from coarser versions of the
+		 * network, in which strongly coupled cells are grouped together. A
+		 * signal gets down a long wire in a few sweeps instead of one sweep
+		 * per cell.
+		 */
+		MULTIGRID
+	}
+
+	/**
+	 * The order the relaxation visits the cells in, before any randomizing.
+	 */
+	public static enum CellOrder
+	{
+		/**
+		 * The order the cells are in in the circuit.
+		 */
+		CIRCUIT,
+
+		/**
+		 * Nearest the inputs first, by hops through the neighbors going
+		 * forward through the clock zones, so that a sweep carries a signal
+		 * along with it instead of against it. randomize_cells then only
+		 * shuffles cells the same number of hops from the inputs, whatever
+		 * the randomization setting.
+		 */
+		SIGNAL_FLOW
+	}
+
+	/**
+	 * How randomize_cells reorders the cells every sample.
+	 */
+	public static enum Randomization
+	{
+		/**
+		 * As many random swaps as there are cells, anywhere in the order.
+		 */
+		SWAPS,
+
+		/**
+		 * An unbiased Fisher-Yates shuffle of the whole order.
+		 */
+		SHUFFLE,
+
+		/**
+		 * The order is split into blocks of shuffle_block_size cells, and each
+		 * block is shuffled in place. A cell never leaves its block, so cells
+		 * that are near each other in the network stay near each other in the
+		 * order.
+		 */
+		BLOCKS,
+
+		/**
+		 * permutation_count shuffles of the order are made up front, and each
+		 * sample just copies in the next one. No random numbers are drawn
+		 * while running.
+		 */
+		ROTATE
+	}
+
+	/**
+	 * The smallest number of cells worth handing to another thread.
+	 */
+	protected static final int PARALLEL_GRAIN = 512;
+
 	protected final int		_numberOfSamples;
 	protected final double	_convergenceTolerance;
 	protected final double	_radiusOfEffect;
@@ -77,67 +187,260 @@ public final class BistableEngine extends Engine
 	protected final int		_maxIterationsPerSample;
 	protected final double	_layerSeparation;
 	protected final boolean	_randomizeCells;
-	
-	protected Cell[] _cellList;
+	protected final Randomization	_randomization;
+	protected final int		_shuffleBlockSize;
+	protected final int		_permutationCount;
+	protected final int		_threads;
+	protected final Relaxation	_relaxation;
+	protected final boolean	_kinkEnergyMemo;
+	protected final boolean	_skipHeldZones;
+	protected final double	_holdTolerance;
+	protected final boolean	_skipQuiescentSamples;
+	protected final double	_quiescenceTolerance;
+	protected final double	_checkpointInterval;
+	protected final int		_multigridLevels;
+	protected final double	_sorOmega;
+	protected final int		_andersonWindow;
+	protected final CellOrder	_cellOrder;
+
+	/**
+	 * Does the neighbor sums and kink energies.
+	 */
+	protected final CellKernel _kernel;
+
+	/**
+	 * Runs the parallel parts of the engine. Null when running on one thread.
+	 * An attached engine uses its prototype's instead of its own.
+	 */
+	protected ForkJoinPool _pool;
 	
 	protected final double _kinkConstant;
 
-	protected boolean _stableFlag;
-	protected boolean _stopSimulation;
+	/**
+	 * Works out the kink energies between cells.
+	 */
+	protected final KinkEnergyCalculator _kinkCalculator;
 
 	/**
-	 * Used in _calcKinkEnergy.
+	 * Used to randomize the cell order. Seeded from random_seed when it's
+	 * set, so that randomized runs can be repeated.
 	 */
-	protected static final double[][] _kinkSamePolarization =
-	{
-		{ JQCADConstants.QCHARGE_SQRD_OVER_FOUR, -JQCADConstants.QCHARGE_SQRD_OVER_FOUR,
-			  JQCADConstants.QCHARGE_SQRD_OVER_FOUR, -JQCADConstants.QCHARGE_SQRD_OVER_FOUR },
-		{ -JQCADConstants.QCHARGE_SQRD_OVER_FOUR, JQCADConstants.QCHARGE_SQRD_OVER_FOUR,
-			  -JQCADConstants.QCHARGE_SQRD_OVER_FOUR, JQCADConstants.QCHARGE_SQRD_OVER_FOUR },
-		{ JQCADConstants.QCHARGE_SQRD_OVER_FOUR, -JQCADConstants.QCHARGE_SQRD_OVER_FOUR,
-			  JQCADConstants.QCHARGE_SQRD_OVER_FOUR, -JQCADConstants.QCHARGE_SQRD_OVER_FOUR },
-		{ -JQCADConstants.QCHARGE_SQRD_OVER_FOUR, JQCADConstants.QCHARGE_SQRD_OVER_FOUR,
-			  -JQCADConstants.QCHARGE_SQRD_OVER_FOUR, JQCADConstants.QCHARGE_SQRD_OVER_FOUR }
-	};
+	protected final MersenneTwisterFast _random;
+
+	/**
+	 * For the rotate randomization, the shuffled orders to cycle through and
+	 * which one was used last.
+	 */
+	protected int[][] _permutations;
+	protected int _permutationIndex;
+
+	/**
+	 * True if this engine is a replica of another one, in which case it
+	 * never writes anything back to the circuit.
+	 */
+	protected boolean _replica;
+
+	/**
+	 * The clocks the engine runs with. Normally the circuit's, but replicas
+	 * can have their own.
+	 */
+	protected Clock[] _clocks;
+
+	/**
+	 * The compiled form of the circuit that the simulation kernel runs on.
+	 */
+	protected CellNetwork _network;
+
+	/**
+	 * How many of the circuit's edits _network reflects, or -1 if _network
+	 * hasn't been built yet.
+	 */
+	protected int _syncedEdits = -1;
+
+	/**
+	 * The polarization of each cell in _network, indexed the same way.
+	 */
+	protected double[] _polarizations;
+
+	/**
+	 * The indices of the cells that need to be relaxed, in the order that they
+	 * are visited. Randomizing the cells shuffles this instead of the cells.
+	 */
+	protected int[] _order;
+
+	/**
+	 * For the signal flow order, where each run of cells the same distance
+	 * from the inputs starts in _order, plus the length of _order.
+	 */
+	protected int[] _distanceRuns;
+
+	/**
+	 * For the colored relaxation, one sweep over the cells of each color.
+	 */
+	protected ParallelLoop.Test[] _colorSweeps;
+
+	/**
+	 * The number of cells of each color, matching _colorSweeps.
+	 */
+	protected int[] _colorCounts;
+
+	/**
+	 * The indices of the input cells in _network, in the same order as
+	 * Circuit.getInputCells().
+	 */
+	protected int[] _inputIndices;
+
+	/**
+	 * Where the polarization of each output cell is plotted, in the same
+	 * order as Circuit.getOutputCells().
+	 */
+	protected DataTrace[] _outputTraces;
+
+	/**
+	 * The values of each input cell, one per sample, in the same order as
+	 * Circuit.getInputCells().
+	 */
+	protected DataTrace[] _inputTraces;
+
+	/**
+	 * For the worklist relaxation, the relaxed cells in each clock zone.
+	 */
+	protected int[][] _zoneCells;
+
+	/**
+	 * For the worklist relaxation, the cells queued up for the next pass and
+	 * whether or not each cell is in that queue.
+	 */
+	protected int[] _worklist;
+	protected int _worklistSize;
+	protected boolean[] _queued;
+
+	/**
+	 * For the worklist relaxation, the cells of the pass being run. Swapped
+	 * with _worklist at the start of every pass.
+	 */
+	protected int[] _worklistPass;
+
+	/**
+	 * For the worklist relaxation, what the clocks and the inputs were in the
+	 * previous sample. Used to tell which cells need to be woken up.
+	 */
+	protected final double[] _previousClockValues = new double[4];
+	protected double[] _previousInputs;
+
+	/**
+	 * For the multigrid relaxation, the coarse versions of the network.
+	 */
+	protected MultigridHierarchy _multigrid;
+
+	/**
+	 * The over-relaxation factor the current sample is using. It drops back
+	 * to 1 if the sample goes on for too long.
+	 */
+	protected double _omega = 1;
+
+	/**
+	 * Accelerates the sweeps when anderson_window is set, and whether it's
+	 * still being used for the current sample.
+	 */
+	protected AndersonAccelerator _anderson;
+	protected boolean _andersonActive;
+
+	/**
+	 * What the clocks and the inputs were the last time the cells were
+	 * relaxed. While they stay the same, and that relaxation didn't move any
+	 * cell, the samples are quiescent and don't need relaxing.
+	 */
+	protected final double[] _quiescentClockValues = new double[4];
+	protected double[] _quiescentInputs;
+
+	/**
+	 * For batched runs, the number of lanes and the polarization of every
+	 * cell in every lane. Lane l of cell i is at i * _laneCount + l, so the
+	 * lanes of a neighbor are always next to each other.
+	 */
+	protected int _laneCount;
+	protected double[] _lanePolarizations;
+
+	/**
+	 * For batched runs, scratch space for the neighbor sum of each lane.
+	 */
+	protected double[] _laneSums;
+
+	/**
+	 * For batched runs, how many samples the last batch got through before
+	 * it ended or was stopped.
+	 */
+	protected int _laneSampleCount;
+
+	/**
+	 * The current value of each of the four clocks.
+	 */
+	protected final double[] _clockValues = new double[4];
+
+	/**
+	 * For each clock zone, the clock value at or above which the zone is
+	 * held, i.e., no cell in it can get further than the hold tolerance from
+	 * a polarization of zero. Infinite when zones aren't being skipped.
+	 */
+	protected final double[] _holdThresholds = new double[4];
+
+	/**
+	 * Whether each clock zone is held during the current sample.
+	 */
+	protected final boolean[] _heldZones = new boolean[4];
 
+	/**
+	 * Where to write checkpoints of the run to, or null for nowhere.
+	 */
+	protected String _checkpointFileName;
+
+	/**
+	 * The checkpoint the next run picks up from, if any.
+	 */
+	protected Checkpoint _resumeCheckpoint;
 
 	public BistableEngine( Circuit circuit )
 		throws	FileNotFoundException, IOException, ConfigFile.ParseException,
 				EngineException
 	{
-		this( circuit, null );
+		this( circuit, (String)null );
 	}
 	
 	public BistableEngine( Circuit circuit, String configFileName )
 		throws	FileNotFoundException, IOException, ConfigFile.ParseException,
 				EngineException
 	{
-		super( circuit, configFileName );
-
-		// Either they both should be null or neither should be null.
-		assert !(configFileName == null ^ _configFile == null);
-
-		SettingsSection configSect;
+		this(	circuit,
+				configFileName == null ? null : new ConfigFile( configFileName ),
+				null );
+	}
 
-		if( _configFile == null )
-		{
-			// No config file was loaded so we need to create an empty
-			// SettingsSection to signify that we haven't loaded any extrenal
-			// settings -- i.e., we should use the defaults.
-			configSect = new SettingsSection();
-		}
-		else
-		{
-			Section section = _configFile.get( "BISTABLE_OPTIONS" ).get( 0 );
+	/**
+	 * Construct the engine from settings that didn't come from a config
+	 * file, e.g., one point of a ParameterSweep.
+	 *
+	 * @param circuit
+	 * @param settings The BISTABLE_OPTIONS settings. Anything that isn't set
+	 *		gets its default.
+	 * @throws EngineException
+	 */
+	public BistableEngine( Circuit circuit, SettingsSection settings )
+		throws EngineException
+	{
+		this( circuit, null, settings );
+	}
 
-			if( section == null || !section.hasSettings() )
-			{
-				String msg = "Bistable engine config file needs settings.";
-				throw new EngineException( msg );
-			}
+	private BistableEngine(	Circuit circuit, ConfigFile configFile,
+							SettingsSection settings )
+		throws EngineException
+	{
+		super( circuit, configFile );
 
-			configSect = (SettingsSection)section;
-		}
+		// Settings handed to us directly win over the config file's.
+		SettingsSection configSect	= settings != null
+									? settings
+									: _bistableSettings();
 		
 		// Load the config settings.
 		_numberOfSamples		= configSect.get(	"number_of_samples",
@@ -176,190 +479,2058 @@ public final class BistableEngine extends Engine
 		_randomizeCells			= configSect.get(	"randomize_cells",
 													DefaultConfig.RANDOMIZE_CELLS );
 
-		// Used by _calcKinkEnergy
-		_kinkConstant = 1 / (JQCADConstants.FOUR_PI_EPSILON * _epsilonR);
+		_kinkEnergyMemo			= configSect.get(	"kink_energy_memo",
+													DefaultConfig.KINK_ENERGY_MEMO );
+
+		_skipHeldZones			= configSect.get(	"skip_held_zones",
+													DefaultConfig.SKIP_HELD_ZONES );
+
+		_holdTolerance			= configSect.get(	"hold_tolerance",
+													_convergenceTolerance );
+
+		_skipQuiescentSamples	= configSect.get(	"skip_quiescent_samples",
+													DefaultConfig.SKIP_QUIESCENT_SAMPLES );
+
+		_quiescenceTolerance	= configSect.get(	"quiescence_tolerance",
+													DefaultConfig.QUIESCENCE_TOLERANCE );
+
+		// In seconds.
+		_checkpointInterval		= configSect.get(	"checkpoint_interval",
+													DefaultConfig.CHECKPOINT_INTERVAL );
+
+		_threads				= (int)configSect.get(	"threads",
+													(double)DefaultConfig.THREADS );
+
+		String relaxation		= configSect.get(	"relaxation",
+													DefaultConfig.RELAXATION );
+
+		try
+		{
+			_relaxation = Relaxation.valueOf( relaxation.trim().toUpperCase() );
+		}
+		catch( IllegalArgumentException ex )
+		{
+			String msg = "Unknown bistable relaxation: " + relaxation;
+			throw new EngineException( msg );
+		}
+
+		String cellOrder		= configSect.get(	"cell_order",
+													DefaultConfig.CELL_ORDER );
+
+		try
+		{
+			_cellOrder = CellOrder.valueOf( cellOrder.trim().toUpperCase() );
+		}
+		catch( IllegalArgumentException ex )
+		{
+			String msg = "Unknown bistable cell order: " + cellOrder;
+			throw new EngineException( msg );
+		}
+
+		String randomization	= configSect.get(	"randomization",
+													DefaultConfig.RANDOMIZATION );
+
+		try
+		{
+			_randomization = Randomization.valueOf( randomization.trim().toUpperCase() );
+		}
+		catch( IllegalArgumentException ex )
+		{
+			String msg = "Unknown bistable randomization: " + randomization;
+			throw new EngineException( msg );
+		}
+
+		_shuffleBlockSize		= (int)configSect.get(	"shuffle_block_size",
+													(double)DefaultConfig.SHUFFLE_BLOCK_SIZE );
+
+		_permutationCount		= (int)configSect.get(	"permutation_count",
+													(double)DefaultConfig.PERMUTATION_COUNT );
+
+		_multigridLevels		= (int)configSect.get(	"multigrid_levels",
+													(double)DefaultConfig.MULTIGRID_LEVELS );
+
+		if( _shuffleBlockSize < 1 || _permutationCount < 1 )
+		{
+			String msg = "shuffle_block_size and permutation_count must be at least 1.";
+			throw new EngineException( msg );
+		}
+
+		if( _multigridLevels < 0 )
+		{
+			String msg = "multigrid_levels can't be negative.";
+			throw new EngineException( msg );
+		}
+
+		_sorOmega				= configSect.get(	"sor_omega",
+													DefaultConfig.SOR_OMEGA );
+
+		_andersonWindow			= (int)configSect.get(	"anderson_window",
+													(double)DefaultConfig.ANDERSON_WINDOW );
+
+		if( _sorOmega <= 0 || _sorOmega >= 2 )
+		{
+			String msg = "sor_omega must be between 0 and 2.";
+			throw new EngineException( msg );
+		}
+
+		if( _andersonWindow < 0 )
+		{
+			String msg = "anderson_window can't be negative.";
+			throw new EngineException( msg );
+		}
+
+		String randomSeed		= configSect.get( "random_seed", "" ).trim();
+
+		try
+		{
+			_random	= randomSeed.equals( "" )
+					? new MersenneTwisterFast()
+					: new MersenneTwisterFast( Long.parseLong( randomSeed ) );
+		}
+		catch( NumberFormatException ex )
+		{
+			String msg = "The random seed must be a whole number: " + randomSeed;
+			throw new EngineException( msg );
+		}
+
+		String kernel			= configSect.get(	"kernel",
+													DefaultConfig.KERNEL ).trim();
+
+		if( kernel.equalsIgnoreCase( "scalar" ) )
+		{
+			_kernel = CellKernel.scalar();
+		}
+		else if( kernel.equalsIgnoreCase( "vector" ) )
+		{
+			CellKernel vectorKernel = CellKernel.vector();
+
+			if( vectorKernel == null )
+			{
+				_log.warning(	"The vector kernel isn't built or the "
+								+ "jdk.incubator.vector module is missing. "
+								+ "Using the scalar kernel instead." );
+
+				vectorKernel = CellKernel.scalar();
+			}
+
+			_kernel = vectorKernel;
+		}
+		else
+		{
+			String msg = "Unknown bistable kernel: " + kernel;
+			throw new EngineException( msg );
+		}
+
+		if( _threads < 0 )
+		{
+			String msg = "The number of threads can't be negative.";
+			throw new EngineException( msg );
+		}
+
+		// Zero threads means one per processor.
+		final int threads	= _threads == 0
+							? Runtime.getRuntime().availableProcessors()
+							: _threads;
+
+		_pool = threads > 1 ? new ForkJoinPool( threads ) : null;
+
+		_kinkCalculator = new KinkEnergyCalculator(	_kernel, _epsilonR, _layerSeparation,
+													_kinkEnergyMemo, _pool );
+		_kinkConstant = _kinkCalculator.kinkConstant;
+
+		_replica = false;
 	}
 
-	// TODO: should this be a part of the engine super class?
-	public void stop()
+	/**
+	 * Finds the bistable engine's settings in the config file.
+	 *
+	 * @return The BISTABLE_OPTIONS settings, or empty settings, i.e., all the
+	 *		defaults, if there's no config file.
+	 * @throws EngineException If the config file has no BISTABLE_OPTIONS
+	 *		settings.
+	 */
+	protected SettingsSection _bistableSettings() throws EngineException
 	{
-		_stopSimulation = true;
+		if( _configFile == null )
+		{
+			// No config file was loaded so we need to create an empty
+			// SettingsSection to signify that we haven't loaded any extrenal
+			// settings -- i.e., we should use the defaults.
+			return new SettingsSection();
+		}
+
+		SectionGroup group = _configFile.get( "BISTABLE_OPTIONS" );
+		Section section = group == null || group.isEmpty() ? null : group.get( 0 );
+
+		if( section == null || !section.hasSettings() )
+		{
+			String msg = "Bistable engine config file needs settings.";
+			throw new EngineException( msg );
+		}
+
+		return (SettingsSection)section;
 	}
 
-	@Override
-	protected void _init( VectorTable vectorTable )
+	/**
+	 * Makes a replica of an initialized engine, for running another
+	 * simulation of the same circuit alongside it.
+	 *
+	 * The replica shares the prototype's settings and network, and the
+	 * inputs and clocks that the prototype set up in the circuit, none of
+	 * which change during a run. Everything a run does change, i.e., the
+	 * polarizations, the cell order and the output traces, belongs to the
+	 * replica. A replica runs on the calling thread and never writes back
+	 * to the circuit, so any number of them can run at once.
+	 *
+	 * @param prototype An engine that has been through _init.
+	 * @param seed Seeds the replica's cell randomization.
+	 */
+	protected BistableEngine( final BistableEngine prototype, final long seed )
 	{
-		_log.info( "Bistable engine initializing..." );
-
-		// Put the values in the vectorTable into their associated input cell.
-		_circuit.updateInputs( vectorTable, _numberOfSamples );
+		this( prototype, prototype._network, seed );
+	}
 
-		_circuit.updateOutputs( _numberOfSamples );
+	/**
+	 * Makes a replica of an initialized engine that runs on a different
+	 * network of the same cells, e.g., with the cells moved around a bit.
+	 *
+	 * @param prototype An engine that has been through _init.
+	 * @param network The network to run on. Must have the same cells, in the
+	 *		same order, as the prototype's.
+	 * @param seed Seeds the replica's cell randomization.
+	 */
+	protected BistableEngine(	final BistableEngine prototype,
+								final CellNetwork network,
+								final long seed )
+	{
+		super( prototype );
+
+		_numberOfSamples		= prototype._numberOfSamples;
+		_convergenceTolerance	= prototype._convergenceTolerance;
+		_radiusOfEffect			= prototype._radiusOfEffect;
+		_epsilonR				= prototype._epsilonR;
+		_clockHigh				= prototype._clockHigh;
+		_clockLow				= prototype._clockLow;
+		_clockShift				= prototype._clockShift;
+		_clockAmplitudeFactor	= prototype._clockAmplitudeFactor;
+		_maxIterationsPerSample	= prototype._maxIterationsPerSample;
+		_layerSeparation		= prototype._layerSeparation;
+		_randomizeCells			= prototype._randomizeCells;
+		_randomization			= prototype._randomization;
+		_shuffleBlockSize		= prototype._shuffleBlockSize;
+		_permutationCount		= prototype._permutationCount;
+		_threads				= 1;
+		_relaxation				= prototype._relaxation;
+		_kinkEnergyMemo			= prototype._kinkEnergyMemo;
+		_skipHeldZones			= prototype._skipHeldZones;
+		_holdTolerance			= prototype._holdTolerance;
+		_skipQuiescentSamples	= prototype._skipQuiescentSamples;
+		_quiescenceTolerance	= prototype._quiescenceTolerance;
+		_checkpointInterval		= prototype._checkpointInterval;
+		_multigridLevels		= prototype._multigridLevels;
+		_sorOmega				= prototype._sorOmega;
+		_andersonWindow			= prototype._andersonWindow;
+		_cellOrder				= prototype._cellOrder;
+		_kernel					= prototype._kernel;
+		_pool					= null;
+		_kinkConstant			= prototype._kinkConstant;
+		_kinkCalculator			= new KinkEnergyCalculator(	_kernel, _epsilonR,
+															_layerSeparation,
+															_kinkEnergyMemo, null );
+
+		_random = new MersenneTwisterFast( seed );
+
+		_attach( prototype, network, prototype._clocks );
+	}
+
+	/**
+	 * Sets this engine up to run off of what another engine's _init did,
+	 * instead of going through _init itself. The engine becomes a replica.
+	 *
+	 * @param prototype An engine that has been through _init.
+	 * @param network The network to run on. Must have the same cells, in the
+	 *		same order, as the prototype's.
+	 * @param clocks The clocks to run with. Must have as many samples as the
+	 *		prototype's.
+	 */
+	protected void _attach(	final BistableEngine prototype,
+							final CellNetwork network,
+							final Clock[] clocks )
+	{
+		assert prototype._network != null
+			&& network.getCellCount() == prototype._network.getCellCount()
+			&& clocks.length == 4;
+
+		// The engine's own pool was only for _init, which it skips, so it
+		// runs on the prototype's.
+		if( _pool != null )
+		{
+			_shutdownPool();
+			_pool = prototype._pool;
+		}
+
+		_replica = true;
+		_clocks = clocks;
+		_network = network;
+		_polarizations = _network.getPolarizations();
+		_order = prototype._order.clone();
+		_distanceRuns = prototype._distanceRuns;
+		_inputIndices = prototype._inputIndices;
+		_inputTraces = prototype._inputTraces;
+
+		final OutputCell[] outputCells = _circuit.getOutputCells();
+		_outputTraces = new DataTrace[ outputCells.length ];
+
+		for( int j = 0; j < outputCells.length; ++j )
+		{
+			_outputTraces[j] = new DataTrace( outputCells[j].getName(), _numberOfSamples );
+		}
+
+		_initHeldZones();
+		_initRelaxation();
+	}
+
+	/**
+	 * Shuts down the engine's thread pool, if it has one, once the engine and
+	 * anything attached to it are done running. The pool's threads would
+	 * otherwise idle on until they time out.
+	 */
+	protected void _shutdownPool()
+	{
+		if( _pool != null )
+		{
+			_pool.shutdown();
+			_pool = null;
+		}
+	}
+
+	/**
+	 * Gives a replica its own input values, so that it can run a different
+	 * vector table than its prototype.
+	 *
+	 * @param vectorTable The table. It has to have the same active inputs and
+	 *		the same number of vectors as the prototype's, since the clocks are
+	 *		shared.
+	 */
+	protected void _replaceInputs( final VectorTable vectorTable )
+	{
+		assert _replica && vectorTable.inputs.length == _inputTraces.length;
+
+		final DataTrace[] inputTraces = new DataTrace[ _inputTraces.length ];
+
+		for( int j = 0; j < inputTraces.length; ++j )
+		{
+			inputTraces[j] = InputCell.makeTrace( vectorTable.inputs[j], _numberOfSamples );
+		}
+
+		_inputTraces = inputTraces;
+	}
+
+	/**
+	 * Has the runs write a checkpoint every checkpoint_interval seconds, so
+	 * that a run that dies can be resumed. The checkpoints are written on a
+	 * background thread.
+	 *
+	 * @param fileName The file to write to, or null to stop checkpointing.
+	 */
+	public void checkpointTo( String fileName )
+	{
+		_checkpointFileName = fileName;
+	}
+
+	/**
+	 * Has the next run pick up from a checkpoint instead of from the first
+	 * sample. The run has to use the same circuit, settings and vector table
+	 * as the one that wrote the checkpoint.
+	 *
+	 * @param fileName
+	 * @param vectorTable The vector table the next run will be of.
+	 * @throws IOException If the checkpoint can't be read.
+	 * @throws EngineException If the checkpoint is of a different circuit,
+	 *		different settings or a different vector table.
+	 */
+	public void resumeFrom( String fileName, VectorTable vectorTable )
+		throws IOException, EngineException
+	{
+		Checkpoint checkpoint = Checkpoint.read( fileName );
+
+		if(		checkpoint.cellCount != _circuit.getCellList().length
+			||	checkpoint.outputTraces.length != _circuit.getOutputCells().length )
+		{
+			String msg	= "The checkpoint <" + fileName + "> is of a different "
+						+ "circuit.";
+			throw new EngineException( msg );
+		}
+
+		if(		checkpoint.numberOfSamples != _numberOfSamples
+			||	checkpoint.settingsFingerprint != _settingsFingerprint() )
+		{
+			String msg	= "The checkpoint <" + fileName + "> was written with "
+						+ "different settings.";
+			throw new EngineException( msg );
+		}
+
+		if(		checkpoint.vectorCount != vectorTable.inputs[0].length
+			||	checkpoint.vectorTableFingerprint != Checkpoint.fingerprint( vectorTable ) )
+		{
+			String msg	= "The checkpoint <" + fileName + "> is of a different "
+						+ "vector table.";
+			throw new EngineException( msg );
+		}
+
+		_resumeCheckpoint = checkpoint;
+	}
+
+	/**
+	 * Fingerprints every setting that changes how a run goes, for the
+	 * checkpoints. The number of threads only changes how fast it goes, and
+	 * the kink energy memo only changes the last bits of the kink energies,
+	 * so they're left out.
+	 *
+	 * @return The fingerprint.
+	 */
+	protected long _settingsFingerprint()
+	{
+		return Checkpoint.fingerprint( new Object[]
+		{
+			_numberOfSamples, _convergenceTolerance, _radiusOfEffect,
+			_epsilonR, _clockHigh, _clockLow, _clockShift,
+			_clockAmplitudeFactor, _maxIterationsPerSample, _layerSeparation,
+			_randomizeCells, _randomization, _shuffleBlockSize,
+			_permutationCount, _cellOrder, _relaxation, _skipHeldZones,
+			_holdTolerance, _skipQuiescentSamples, _quiescenceTolerance,
+			_multigridLevels, _sorOmega, _andersonWindow,
+			_kernel.getClass().getName()
+		} );
+	}
+
+	/**
+	 * Runs the engine against several vector tables at once.
+	 *
+	 * The engine is only initialized once, and every table gets its own lane
+	 * of polarizations over the shared neighbors and kink energies. Each
+	 * sweep then does one pass over the topology for all the lanes, rather
+	 * than one per table. A lane stops being swept once it's stable, just
+	 * like a run on its own would, so without randomize_cells every lane
+	 * gets exactly the result that running its table alone would. Batched
+	 * runs always relax the cells one at a time, in the Gauss-Seidel order.
+	 *
+	 * Like run, a batch can be ended early with stop, in which case every
+	 * table's results only go as far as the batch got.
+	 *
+	 * @param vectorTables The tables. They all have to have the same active
+	 *		inputs and the same number of vectors, since they share clocks.
+	 * @return The results for each table, in the same order.
+	 */
+	public synchronized RunResults[] runBatch( final VectorTable[] vectorTables )
+	{
+		try
+		{
+			return _runBatch( vectorTables );
+		}
+		finally
+		{
+			// A stop only applies to one run.
+			_stopSimulation = false;
+		}
+	}
+
+	private RunResults[] _runBatch( final VectorTable[] vectorTables )
+	{
+		if( vectorTables == null || vectorTables.length == 0 )
+		{
+			String msg = "Can't run an empty batch of vector tables.";
+			throw new IllegalArgumentException( msg );
+		}
+
+		final VectorTable first = vectorTables[0];
+
+		for( VectorTable vectorTable : vectorTables )
+		{
+			if(		!Arrays.equals( vectorTable.active, first.active )
+				||	vectorTable.inputs[0].length != first.inputs[0].length )
+			{
+				String msg	= "Every vector table in a batch must have the same "
+							+ "active inputs and the same number of vectors.";
+				throw new IllegalArgumentException( msg );
+			}
+		}
+
+		// Initialize the engine.
+		long initTime = System.currentTimeMillis();
+		_init( first );
+		final double[][] laneInputs = _initLanes( vectorTables );
+		initTime = System.currentTimeMillis() - initTime;
+
+		// Run the engine.
+		long runTime = System.currentTimeMillis();
+		final DataTrace[][] laneTraces = _runLanes( laneInputs );
+		runTime = System.currentTimeMillis() - runTime;
+
+		final OutputCell[] outputCells = _circuit.getOutputCells();
+		final RunResults[] results = new RunResults[ vectorTables.length ];
+		final int sampleCount = _laneSampleCount;
+		final boolean stopped = sampleCount < _numberOfSamples;
+
+		for( int l = 0; l < results.length; ++l )
+		{
+			results[l]	= new RunResults(	outputCells,
+											stopped
+											? _trimTraces( laneTraces[l], sampleCount )
+											: laneTraces[l] );
+			results[l].initTime = initTime;
+			results[l].runTime = runTime;
+			results[l].stopped = stopped;
+			results[l].samples = sampleCount;
+		}
+
+		return results;
+	}
+
+	@Override
+	protected void _init( VectorTable vectorTable )
+	{
+		_log.info( "Bistable engine initializing..." );
+
+		// Put the values in the vectorTable into their associated input cell.
+		_circuit.updateInputs( vectorTable, _numberOfSamples );
+
+		_circuit.updateOutputs( _numberOfSamples );
+
+		// TODO: Am I initializing the outputs?
+
+		// Prepare the clocks.
+		_circuit.updateClocks(	vectorTable.inputs[0].length,
+								_numberOfSamples,
+								_clockLow,
+								_clockHigh,
+								_clockAmplitudeFactor,
+								_clockShift );
+
+		_clocks = _circuit.getClocks();
+
+		final Cell[] cellList = _circuit.getCellList();
+
+		// Tell the cells not to update their dots, we don't need this information
+		// for this engine and it will just waste CPU.
+		for( Cell cell : cellList )
+		{
+			cell.setUpdateDots( false );
+		}
+
+		// After the first run, only the parts of the network that the
+		// circuit's edits touched are worked out again.
+		_network	= _network == null || _syncedEdits < 0
+					? _initCells( cellList )
+					: _patchNetwork( cellList, _circuit.getEdits( _syncedEdits ) );
+		_syncedEdits = _circuit.getEditCount();
+
+		_polarizations = _network.getPolarizations();
+		_order = _findRelaxedCells( _network );
+		_distanceRuns = null;
+
+		if( _cellOrder == CellOrder.SIGNAL_FLOW )
+		{
+			_orderBySignalFlow();
+		}
+
+		final InputCell[] inputCells = _circuit.getInputCells();
+		_inputIndices = _network.indicesOf( inputCells );
+		_inputTraces = new DataTrace[ inputCells.length ];
+
+		for( int j = 0; j < inputCells.length; ++j )
+		{
+			_inputTraces[j] = inputCells[j].getTrace();
+		}
+
+		final OutputCell[] outputCells = _circuit.getOutputCells();
+		_outputTraces = new DataTrace[ outputCells.length ];
+
+		for( int j = 0; j < outputCells.length; ++j )
+		{
+			_outputTraces[j] = outputCells[j].getTrace();
+		}
+
+		_initHeldZones();
+		_initRelaxation();
+
+		_log.info( "Bistable engine finished initializing." );
+	}
+
+	/**
+	 * Does whatever setting up the relaxation needs once _order is known.
+	 */
+	protected void _initRelaxation()
+	{
+		_quiescentInputs = new double[ _inputIndices.length ];
+		_anderson = null;
+
+		if( _andersonWindow > 0 )
+		{
+			if(		_relaxation == Relaxation.GAUSS_SEIDEL
+				||	_relaxation == Relaxation.COLORED )
+			{
+				_anderson = new AndersonAccelerator( _order, _andersonWindow );
+			}
+			else if( !_replica )
+			{
+				_log.warning(	"anderson_window only works with the gauss_seidel "
+								+ "and colored relaxations. Ignoring it." );
+			}
+		}
+
+		if( _randomizeCells )
+		{
+			_initRandomization();
+		}
+
+		if( _relaxation == Relaxation.COLORED )
+		{
+			_initColorSweeps( _network.colorCells( _order ) );
+		}
+		else if( _relaxation == Relaxation.WORKLIST )
+		{
+			_initWorklist();
+		}
+		else
+		{
+			if( _relaxation == Relaxation.MULTIGRID )
+			{
+				_initMultigrid();
+			}
+
+			if( _randomizeCells )
+			{
+				_randomizeCells( _order );
+			}
+		}
+	}
+
+	@Override
+	protected RunResults _run( VectorTable vectorTable )
+	{
+		assert vectorTable != null;
+
+		_log.info( "Bistable engine running..." );
+
+		final Checkpoint resumed = _restore( vectorTable );
+
+		final double[] polarizations = _polarizations;
+		final double[] clockValues = _clockValues;
+
+		final InputCell[] inputCells = _circuit.getInputCells();
+		final int[] inputIndices = _inputIndices;
+		final int inputCellsCount = inputCells.length;
+
+		final DataTrace[] inputTraces = _inputTraces;
+
+		final OutputCell[] outputCells = _circuit.getOutputCells();
+		final int[] outputIndices = _network.indicesOf( outputCells );
+		final DataTrace[] outputTraces = _outputTraces;
+		final int outputCellsCount = outputCells.length;
+
+		// The clocks and the inputs are only read, by sample, so that other
+		// engines can run off of the same circuit at the same time.
+		final Clock clock0 = _clocks[0];
+		final Clock clock1 = _clocks[1];
+		final Clock clock2 = _clocks[2];
+		final Clock clock3 = _clocks[3];
+
+		boolean quiescent = false;
+		int quiescentSamples = 0;
+		int sampleCount = 0;
+		int slowSamples = 0;
+		int maxSweeps = 0;
+		long sweepTotal = 0;
+
+		if( resumed != null )
+		{
+			quiescent = resumed.quiescent;
+			quiescentSamples = resumed.quiescentSamples;
+			sampleCount = resumed.nextSample;
+			slowSamples = resumed.slowSamples;
+			maxSweeps = resumed.maxSweeps;
+			sweepTotal = resumed.sweepTotal;
+		}
+
+		final Checkpoint.Writer checkpointWriter	= _checkpointFileName == null || _replica
+													? null
+													: new Checkpoint.Writer( _checkpointFileName );
+		final long checkpointInterval = (long)(_checkpointInterval * 1e9);
+		long nextCheckpoint = System.nanoTime() + checkpointInterval;
+
+		_startProgress( sampleCount );
+
+		for( int i = sampleCount; i < _numberOfSamples && !_stopSimulation; ++i )
+		{
+			// Advance the clocks.
+			clockValues[0] = clock0.get( i );
+			clockValues[1] = clock1.get( i );
+			clockValues[2] = clock2.get( i );
+			clockValues[3] = clock3.get( i );
+
+			for( int z = 0; z < 4; ++z )
+			{
+				_heldZones[z] = clockValues[z] >= _holdThresholds[z];
+			}
+
+			// Update the input cells.
+			for( int j = inputCellsCount - 1; j >= 0; --j )
+			{
+				if( inputCells[j].active )
+				{
+					polarizations[ inputIndices[j] ] = inputTraces[j].get( i );
+				}
+			}
+
+			// Nothing can move if the clocks and the inputs are where they
+			// were when the cells last settled without moving, so the state
+			// is just carried forward.
+			if( quiescent && _isQuiescent() )
+			{
+				++quiescentSamples;
+			}
+			else
+			{
+				// An inactive input acts just like a normal cell.
+				for( int j = inputCellsCount - 1; j >= 0; --j )
+				{
+					if( !inputCells[j].active )
+					{
+						_tickCell( inputIndices[j] );
+					}
+				}
+
+				_beforeRelaxation();
+				_startSweeps();
+
+				final int sweepCount;
+
+				if( _relaxation == Relaxation.COLORED )
+				{
+					sweepCount = _relaxColored();
+				}
+				else if( _relaxation == Relaxation.WORKLIST )
+				{
+					sweepCount = _relaxWorklist();
+				}
+				else if( _relaxation == Relaxation.MULTIGRID )
+				{
+					sweepCount = _relaxMultigrid();
+				}
+				else
+				{
+					sweepCount = _relaxGaussSeidel();
+				}
+
+				// Cells updated outside the sweeps, like the inactive inputs,
+				// get the plain update.
+				_omega = 1;
+
+				sweepTotal += sweepCount;
+				maxSweeps = Math.max( maxSweeps, sweepCount );
+
+				// The relaxation always runs until every cell is stable;
+				// max_iterations_per_sample has never cut it short, since
+				// doing so leaves long wires undecided. Samples that go over
+				// it are only counted.
+				if( sweepCount > _maxIterationsPerSample )
+				{
+					++slowSamples;
+				}
+
+				quiescent = _skipQuiescentSamples && sweepCount == 1;
+
+				if( quiescent )
+				{
+					_saveQuiescentState();
+				}
+			}
+
+			// Plot the stable values of the output cells.
+			for( int j = outputCellsCount - 1; j >= 0; --j )
+			{
+				outputTraces[j].addNext( polarizations[ outputIndices[j] ] );
+			}
+
+			++sampleCount;
+
+			_reportProgress( sampleCount, _numberOfSamples, sweepTotal, false );
+
+			if( checkpointWriter != null && System.nanoTime() >= nextCheckpoint )
+			{
+				Checkpoint checkpoint = _checkpoint( vectorTable, sampleCount );
+				checkpoint.quiescent = quiescent;
+				checkpoint.quiescentSamples = quiescentSamples;
+				checkpoint.slowSamples = slowSamples;
+				checkpoint.maxSweeps = maxSweeps;
+				checkpoint.sweepTotal = sweepTotal;
+
+				checkpointWriter.submit( checkpoint );
+				nextCheckpoint = System.nanoTime() + checkpointInterval;
+			}
+		}
+
+		if( checkpointWriter != null )
+		{
+			checkpointWriter.close();
+		}
+
+		_reportProgress( sampleCount, _numberOfSamples, sweepTotal, true );
+
+		final boolean stopped = sampleCount < _numberOfSamples;
+		DataTrace[] resultTraces = outputTraces;
+
+		if( stopped )
+		{
+			resultTraces = _trimTraces( outputTraces, sampleCount );
+
+			_log.log(	Level.INFO,
+						"Stopped after {0} of {1} samples.",
+						new Object[]{ sampleCount, _numberOfSamples } );
+		}
+
+		if( !_replica )
+		{
+			// Leave the cells in the state the simulation ended in.
+			_network.setPolarizations( polarizations );
+
+			if( _skipQuiescentSamples )
+			{
+				_log.log(	Level.INFO,
+							"Skipped {0} of {1} samples as quiescent.",
+							new Object[]{ quiescentSamples, _numberOfSamples } );
+			}
+		}
+
+		if( slowSamples > 0 && !_replica )
+		{
+			_log.log(	Level.INFO,
+						"{0} of {1} samples took more than {2} sweeps to relax.",
+						new Object[]{ slowSamples, sampleCount, _maxIterationsPerSample } );
+		}
+
+		_log.info( "Bistable engine finished running." );
+
+		RunResults results = new RunResults( outputCells, resultTraces );
+		results.stopped = stopped;
+		results.samples = sampleCount;
+		results.sweeps = sweepTotal;
+		results.maxSweeps = maxSweeps;
+		results.slowSamples = slowSamples;
+		results.quiescentSamples = quiescentSamples;
+
+		return results;
+	}
+
+	/**
+	 * Takes a snapshot of the run for a checkpoint, other than the counters
+	 * kept by _run.
+	 *
+	 * Everything the run goes on changing is copied, so the snapshot can be
+	 * written out while the run carries on.
+	 *
+	 * @param vectorTable
+	 * @param nextSample The first sample that hasn't been run.
+	 * @return The checkpoint.
+	 */
+	protected Checkpoint _checkpoint( final VectorTable vectorTable, final int nextSample )
+	{
+		Checkpoint checkpoint = new Checkpoint();
+
+		checkpoint.cellCount = _network.getCellCount();
+		checkpoint.numberOfSamples = _numberOfSamples;
+		checkpoint.vectorCount = vectorTable.inputs[0].length;
+		checkpoint.settingsFingerprint = _settingsFingerprint();
+		checkpoint.vectorTableFingerprint = Checkpoint.fingerprint( vectorTable );
+		checkpoint.nextSample = nextSample;
+
+		checkpoint.polarizations = _polarizations.clone();
+		checkpoint.order = _order.clone();
+		checkpoint.permutationIndex = _permutationIndex;
+
+		// The permutations never change once they're made.
+		checkpoint.permutations = _permutations;
+
+		checkpoint.quiescentClockValues = _quiescentClockValues.clone();
+		checkpoint.quiescentInputs = _quiescentInputs.clone();
+
+		if( _relaxation == Relaxation.WORKLIST )
+		{
+			checkpoint.previousClockValues = _previousClockValues.clone();
+			checkpoint.previousInputs = _previousInputs.clone();
+		}
+
+		try
+		{
+			ByteArrayOutputStream randomState = new ByteArrayOutputStream();
+			_random.writeState( new DataOutputStream( randomState ) );
+			checkpoint.randomState = randomState.toByteArray();
+		}
+		catch( IOException ex )
+		{
+			// It's only writing to memory.
+			throw new IllegalStateException( ex );
+		}
+
+		checkpoint.outputTraces = _outputTraces;
+
+		return checkpoint;
+	}
+
+	/**
+	 * Puts the engine back the way the checkpoint from resumeFrom found it,
+	 * if there is one. The engine has to have been through _init.
+	 *
+	 * @param vectorTable
+	 * @return The checkpoint, or null if the run starts from the beginning.
+	 */
+	protected Checkpoint _restore( final VectorTable vectorTable )
+	{
+		final Checkpoint checkpoint = _resumeCheckpoint;
+
+		if( checkpoint == null )
+		{
+			return null;
+		}
+
+		// Only the next run resumes.
+		_resumeCheckpoint = null;
+
+		if(		checkpoint.vectorCount != vectorTable.inputs[0].length
+			||	checkpoint.vectorTableFingerprint != Checkpoint.fingerprint( vectorTable )
+			||	checkpoint.cellCount != _network.getCellCount()
+			||	checkpoint.order.length != _order.length )
+		{
+			String msg = "The checkpoint is of a different circuit or vector table.";
+			throw new IllegalArgumentException( msg );
+		}
+
+		System.arraycopy( checkpoint.polarizations, 0, _polarizations, 0, _polarizations.length );
+		System.arraycopy( checkpoint.order, 0, _order, 0, _order.length );
+
+		_permutationIndex = checkpoint.permutationIndex;
+
+		if( checkpoint.permutations != null )
+		{
+			_permutations = checkpoint.permutations;
+		}
+
+		System.arraycopy( checkpoint.quiescentClockValues, 0, _quiescentClockValues, 0, 4 );
+		_quiescentInputs = checkpoint.quiescentInputs;
+
+		if( _relaxation == Relaxation.WORKLIST && checkpoint.previousClockValues != null )
+		{
+			System.arraycopy( checkpoint.previousClockValues, 0, _previousClockValues, 0, 4 );
+			_previousInputs = checkpoint.previousInputs;
+		}
+
+		try
+		{
+			_random.readState( new DataInputStream(
+				new ByteArrayInputStream( checkpoint.randomState ) ) );
+		}
+		catch( IOException ex )
+		{
+			throw new IllegalArgumentException( "The checkpoint's random state is corrupt.", ex );
+		}
+
+		for( int j = 0; j < _outputTraces.length; ++j )
+		{
+			final DataTrace saved = checkpoint.outputTraces[j];
+
+			for( int i = 0; i < checkpoint.nextSample; ++i )
+			{
+				_outputTraces[j].addNext( saved.get( i ) );
+			}
+		}
+
+		_log.log(	Level.INFO,
+					"Resuming from sample {0} of {1}.",
+					new Object[]{ checkpoint.nextSample, _numberOfSamples } );
+
+		return checkpoint;
+	}
+
+	/**
+	 * Checks whether the clocks and the active inputs are still where they
+	 * were when the state was last saved by _saveQuiescentState. The clocks
+	 * may have moved by up to the quiescence tolerance, relative to their
+	 * saved values.
+	 *
+	 * @return True if relaxing the cells can be skipped.
+	 */
+	protected final boolean _isQuiescent()
+	{
+		for( int z = 0; z < 4; ++z )
+		{
+			final double saved = _quiescentClockValues[z];
+
+			if( Math.abs( _clockValues[z] - saved ) > _quiescenceTolerance * Math.abs( saved ) )
+			{
+				return false;
+			}
+		}
+
+		final double[] polarizations = _polarizations;
+		final int[] inputIndices = _inputIndices;
+
+		for( int j = inputIndices.length - 1; j >= 0; --j )
+		{
+			if( polarizations[ inputIndices[j] ] != _quiescentInputs[j] )
+			{
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Remembers the clocks and the inputs the cells just settled under.
+	 */
+	protected final void _saveQuiescentState()
+	{
+		System.arraycopy( _clockValues, 0, _quiescentClockValues, 0, 4 );
+
+		final double[] polarizations = _polarizations;
+		final int[] inputIndices = _inputIndices;
+
+		for( int j = inputIndices.length - 1; j >= 0; --j )
+		{
+			_quiescentInputs[j] = polarizations[ inputIndices[j] ];
+		}
+	}
+
+	/**
+	 * Relaxes the cells one at a time until they're all stable.
+	 *
+	 * @return The number of sweeps it took.
+	 */
+	protected int _relaxGaussSeidel()
+	{
+		final int[] order = _order;
+		final int relaxedCount = order.length;
+
+		if( _randomizeCells )
+		{
+			_randomizeCells( order );
+		}
+
+		int sweepCount = 0;
+		boolean stable;
+
+		do
+		{
+			stable = true;
+			++sweepCount;
+
+			// Update the cells.
+			for( int k = relaxedCount - 1; k >= 0; --k )
+			{
+				// We don't want to set the flag to true just because this
+				// one cell is stable.  They all have to be stable for the
+				// system to be considered stable.
+				if( !_tickCell( order[k] ) )
+				{
+					stable = false;
+				}
+			}
+
+			if( !stable )
+			{
+				_afterSweep( sweepCount );
+			}
+		}
+		while( !stable );
+
+		return sweepCount;
+	}
+
+	/**
+	 * Relaxes the cells one color at a time until they're all stable. The
+	 * cells of each color are spread across the thread pool, and each chunk
+	 * reports whether its own cells were stable.
+	 *
+	 * @return The number of sweeps it took.
+	 */
+	protected int _relaxColored()
+	{
+		final ParallelLoop.Test[] colorSweeps = _colorSweeps;
+		final int[] colorCounts = _colorCounts;
+		final int colorCount = colorSweeps.length;
+		final ForkJoinPool pool = _pool;
+
+		int sweepCount = 0;
+		boolean stable;
+
+		do
+		{
+			stable = true;
+			++sweepCount;
+
+			for( int c = 0; c < colorCount; ++c )
+			{
+				if( !ParallelLoop.all(	pool, colorCounts[c], PARALLEL_GRAIN,
+										colorSweeps[c] ) )
+				{
+					stable = false;
+				}
+			}
+
+			if( !stable )
+			{
+				_afterSweep( sweepCount );
+			}
+		}
+		while( !stable );
+
+		return sweepCount;
+	}
+
+	/**
+	 * Relaxes only the cells that could have changed, until none of them do.
+	 *
+	 * The cells in any clock zone whose clock moved, and the neighbors of any
+	 * input that changed, are queued up. Each pass updates the queued cells
+	 * and queues up the neighbors of every cell that wasn't stable. The
+	 * sample is done once a pass leaves nothing queued.
+	 *
+	 * @return The number of passes it took.
+	 */
+	protected int _relaxWorklist()
+	{
+		final double[] polarizations = _polarizations;
+		final double[] clockValues = _clockValues;
+		final double[] previousClockValues = _previousClockValues;
+		final double[] previousInputs = _previousInputs;
+		final int[] inputIndices = _inputIndices;
+
+		// Wake up the zones whose clock changed.
+		for( int z = 0; z < 4; ++z )
+		{
+			if( clockValues[z] != previousClockValues[z] )
+			{
+				previousClockValues[z] = clockValues[z];
+
+				for( int cell : _zoneCells[z] )
+				{
+					_enqueue( cell );
+				}
+			}
+		}
+
+		// Wake up the neighbors of the inputs that changed.
+		for( int j = inputIndices.length - 1; j >= 0; --j )
+		{
+			final double inputValue = polarizations[ inputIndices[j] ];
+
+			if( inputValue != previousInputs[j] )
+			{
+				previousInputs[j] = inputValue;
+				_enqueueNeighbors( inputIndices[j] );
+			}
+		}
+
+		int sweepCount = 0;
+
+		do
+		{
+			++sweepCount;
+
+			// Take the queued cells for this pass, leaving an empty queue for
+			// the next one.
+			final int passSize = _worklistSize;
+			final int[] pass = _worklist;
+			_worklist = _worklistPass;
+			_worklistPass = pass;
+			_worklistSize = 0;
+
+			for( int k = 0; k < passSize; ++k )
+			{
+				_queued[ pass[k] ] = false;
+			}
+
+			for( int k = 0; k < passSize; ++k )
+			{
+				final int cell = pass[k];
+
+				if( !_tickCell( cell ) )
+				{
+					_enqueueNeighbors( cell );
+				}
+			}
+
+			if( _worklistSize > 0 )
+			{
+				_afterSweep( sweepCount );
+			}
+		}
+		while( _worklistSize > 0 );
+
+		return sweepCount;
+	}
+
+	/**
+	 * Called every sample that's relaxed, once the clocks and the inputs are
+	 * in place and before the relaxation, for subclasses that set the
+	 * polarizations of cells outside _order themselves. Cells it changes
+	 * have to have their neighbors queued if the relaxation is WORKLIST.
+	 */
+	protected void _beforeRelaxation()
+	{
+	}
+
+	/**
+	 * Gets sor_omega and anderson_window going for a new sample.
+	 */
+	protected void _startSweeps()
+	{
+		_omega = _sorOmega;
+		_andersonActive = _anderson != null;
+
+		if( _andersonActive )
+		{
+			_anderson.reset( _polarizations );
+		}
+	}
+
+	/**
+	 * Called after every sweep that left a cell unstable.
+	 *
+	 * Once a sample has taken max_iterations_per_sample sweeps, or the
+	 * Anderson acceleration has made things worse twice in a row, the sample
+	 * falls back to the plain update. Either way the sweeps only stop once
+	 * every cell is stable under the plain update, so the result is the same
+	 * to within convergence_tolerance.
+	 *
+	 * @param sweepCount The sweeps made so far in this sample.
+	 */
+	protected void _afterSweep( final int sweepCount )
+	{
+		if( sweepCount >= _maxIterationsPerSample )
+		{
+			_omega = 1;
+			_andersonActive = false;
+		}
+		else if( _andersonActive && !_anderson.mix( _polarizations ) )
+		{
+			_andersonActive = false;
+		}
+	}
+
+	/**
+	 * Relaxes the cells one at a time, like _relaxGaussSeidel, correcting
+	 * them from the coarse levels after every sweep that leaves one of them
+	 * unstable.
+	 *
+	 * A correction costs about as much as a sweep, and most samples settle
+	 * within a few sweeps anyway, so the first three sweeps go uncorrected.
+	 * Past max_iterations_per_sample sweeps the corrections stop, in case
+	 * they're getting in the way, and the sweeps finish off on their own.
+	 *
+	 * @return The number of sweeps it took.
+	 */
+	protected int _relaxMultigrid()
+	{
+		final int[] order = _order;
+		final int relaxedCount = order.length;
+
+		if( _randomizeCells )
+		{
+			_randomizeCells( order );
+		}
+
+		int sweepCount = 0;
+
+		while( true )
+		{
+			boolean stable = true;
+			++sweepCount;
+
+			for( int k = relaxedCount - 1; k >= 0; --k )
+			{
+				if( !_tickCell( order[k] ) )
+				{
+					stable = false;
+				}
+			}
+
+			if( stable )
+			{
+				break;
+			}
+
+			_afterSweep( sweepCount );
+
+			if( sweepCount > 3 && sweepCount <= _maxIterationsPerSample )
+			{
+				_multigrid.correct(	_polarizations, _clockValues, _heldZones,
+									_convergenceTolerance );
+			}
+		}
+
+		return sweepCount;
+	}
+
+	/**
+	 * Builds the coarse levels used by _relaxMultigrid.
+	 */
+	protected void _initMultigrid()
+	{
+		_multigrid = new MultigridHierarchy( _network, _order, _multigridLevels );
+
+		if( !_replica )
+		{
+			StringBuilder sizes = new StringBuilder();
+			sizes.append( _multigrid.getRelaxedCount( 0 ) );
+
+			for( int l = 1; l <= _multigrid.getCoarseLevelCount(); ++l )
+			{
+				sizes.append( ", " ).append( _multigrid.getRelaxedCount( l ) );
+			}
+
+			_log.log(	Level.INFO,
+						"Multigrid levels: {0}, relaxed nodes per level: {1}",
+						new Object[]{ _multigrid.getCoarseLevelCount(), sizes } );
+		}
+	}
+
+	/**
+	 * Queues up a cell for the next worklist pass, if it isn't already.
+	 *
+	 * @param cell
+	 */
+	protected final void _enqueue( final int cell )
+	{
+		if( !_queued[ cell ] )
+		{
+			_queued[ cell ] = true;
+			_worklist[ _worklistSize++ ] = cell;
+		}
+	}
+
+	/**
+	 * Queues up the relaxed neighbors of a cell for the next worklist pass.
+	 *
+	 * @param cell
+	 */
+	protected final void _enqueueNeighbors( final int cell )
+	{
+		final CellNetwork network = _network;
+		final int[] neighbors = network.neighborIndices;
+		final int end = network.neighborOffsets[ cell + 1 ];
+
+		for( int k = network.neighborOffsets[ cell ]; k < end; ++k )
+		{
+			_enqueue( neighbors[k] );
+		}
+	}
+
+	/**
+	 * Prepares the queue and zone lists used by _relaxWorklist.
+	 */
+	protected void _initWorklist()
+	{
+		final int[] order = _order;
+		final byte[] clockNums = _network.clockNums;
+		final int cellCount = _network.getCellCount();
+
+		int[] zoneSizes = new int[4];
+		for( int cell : order )
+		{
+			++zoneSizes[ clockNums[ cell ] ];
+		}
+
+		_zoneCells = new int[4][];
+		for( int z = 0; z < 4; ++z )
+		{
+			_zoneCells[z] = new int[ zoneSizes[z] ];
+			zoneSizes[z] = 0;
+		}
+
+		for( int cell : order )
+		{
+			final int zone = clockNums[ cell ];
+			_zoneCells[ zone ][ zoneSizes[ zone ]++ ] = cell;
+		}
+
+		_worklist = new int[ cellCount ];
+		_worklistPass = new int[ cellCount ];
+		_worklistSize = 0;
+
+		// Only relaxed cells are ever queued. Marking everything else as
+		// already queued keeps _enqueue from having to check.
+		_queued = new boolean[ cellCount ];
+		Arrays.fill( _queued, true );
+		for( int cell : order )
+		{
+			_queued[ cell ] = false;
+		}
+
+		// Make sure every zone and every input counts as changed in the
+		// first sample.
+		Arrays.fill( _previousClockValues, Double.NaN );
+		_previousInputs = new double[ _inputIndices.length ];
+		Arrays.fill( _previousInputs, Double.NaN );
+	}
+
+	/**
+	 * Prepares the sweeps used by _relaxColored.
+	 *
+	 * @param colorClasses The cells of each color.
+	 */
+	protected void _initColorSweeps( final int[][] colorClasses )
+	{
+		final int colorCount = colorClasses.length;
+
+		_colorSweeps = new ParallelLoop.Test[ colorCount ];
+		_colorCounts = new int[ colorCount ];
+
+		for( int c = 0; c < colorCount; ++c )
+		{
+			final int[] colorClass = colorClasses[c];
+
+			_colorCounts[c] = colorClass.length;
+			_colorSweeps[c] = new ParallelLoop.Test()
+			{
+				public boolean run( int from, int to )
+				{
+					boolean stable = true;
+
+					for( int k = from; k < to; ++k )
+					{
+						if( !_tickCell( colorClass[k] ) )
+						{
+							stable = false;
+						}
+					}
+
+					return stable;
+				}
+			};
+		}
+
+		if( !_replica )
+		{
+			_log.log( Level.INFO, "Colored {0} cells with {1} colors.",
+					new Object[]{ _order.length, colorCount } );
+		}
+	}
+
+	/**
+	 * The polarization a cell settles into for a given neighbor pull, i.e.,
+	 * the sum of the neighbors' kink energies times their polarizations over
+	 * twice the cell's clock.
+	 *
+	 * @param polarizationMath
+	 * @return The cell's new polarization.
+	 */
+	protected static double _polarizationResponse( final double polarizationMath )
+	{
+		return	(polarizationMath > 1000)
+				? 1 : (polarizationMath < -1000)
+					? -1 : (Math.abs( polarizationMath ) < 0.001)
+						? polarizationMath
+						: polarizationMath / Math.sqrt( 1 + polarizationMath * polarizationMath );
+	}
+
+	/**
+	 * Works out the clock value above which each zone can be held.
+	 *
+	 * A cell's new polarization is never bigger in magnitude than the sum of
+	 * its neighbors' kink energies, taken as absolute values, over twice its
+	 * clock. So once the clock reaches the largest such sum in the zone over
+	 * twice the hold tolerance, every cell in the zone can simply be put in
+	 * the null state.
+	 */
+	protected void _initHeldZones()
+	{
+		Arrays.fill( _holdThresholds, Double.POSITIVE_INFINITY );
+		Arrays.fill( _heldZones, false );
+
+		if( !_skipHeldZones || _holdTolerance <= 0 )
+		{
+			return;
+		}
+
+		final CellNetwork network = _network;
+		final double[] ke = network.kinkEnergies;
+		final double[] maxSums = new double[4];
+
+		for( int cell : _updatedCells() )
+		{
+			final int end = network.neighborOffsets[ cell + 1 ];
+			double sum = 0;
+
+			for( int k = network.neighborOffsets[ cell ]; k < end; ++k )
+			{
+				sum += Math.abs( ke[k] );
+			}
+
+			final int zone = network.clockNums[ cell ];
+			maxSums[ zone ] = Math.max( maxSums[ zone ], sum );
+		}
+
+		for( int z = 0; z < 4; ++z )
+		{
+			_holdThresholds[z] = maxSums[z] / (2.0 * _holdTolerance);
+
+			// See how much of the time the zone will be held.
+			final Clock clock = _clocks[z];
+			int heldSamples = 0;
+
+			for( int i = 0; i < clock.granularity; ++i )
+			{
+				if( clock.get( i ) >= _holdThresholds[z] )
+				{
+					++heldSamples;
+				}
+			}
+
+			if( !_replica )
+			{
+				_log.log(	Level.INFO,
+							"Clock zone {0} is held for {1} of {2} samples.",
+							new Object[]{ z, heldSamples, clock.granularity } );
+			}
+		}
+	}
+
+	/**
+	 * @return Every cell whose polarization is worked out from its
+	 *		neighbors' during a sample, not only the relaxed ones.
+	 */
+	protected int[] _updatedCells()
+	{
+		return _order;
+	}
+
+	/**
+	 * Sets up the lanes for a batched run.
+	 *
+	 * @param vectorTables
+	 * @return For each input cell, its value in each lane, one sample after
+	 *		another.
+	 */
+	protected double[][] _initLanes( final VectorTable[] vectorTables )
+	{
+		final int laneCount = vectorTables.length;
+		final int cellCount = _network.getCellCount();
+		final InputCell[] inputCells = _circuit.getInputCells();
+
+		_laneCount = laneCount;
+		_laneSums = new double[ laneCount ];
+		_lanePolarizations = new double[ cellCount * laneCount ];
+
+		for( int i = 0; i < cellCount; ++i )
+		{
+			Arrays.fill(	_lanePolarizations, i * laneCount, (i + 1) * laneCount,
+							_polarizations[i] );
+		}
+
+		// Let the input cells work out each table's values, then gather them
+		// up lane by lane.
+		final double[][] laneInputs = new double[ inputCells.length ][ _numberOfSamples * laneCount ];
+
+		for( int l = 0; l < laneCount; ++l )
+		{
+			_circuit.updateInputs( vectorTables[l], _numberOfSamples );
+
+			for( int j = 0; j < inputCells.length; ++j )
+			{
+				final DataTrace trace = inputCells[j].getTrace();
+
+				for( int i = 0; i < _numberOfSamples; ++i )
+				{
+					laneInputs[j][ i * laneCount + l ] = trace.get( i );
+				}
+			}
+		}
+
+		_log.log( Level.INFO, "Batching {0} vector tables.", laneCount );
+
+		return laneInputs;
+	}
+
+	/**
+	 * Runs every lane of a batch.
+	 *
+	 * @param laneInputs From _initLanes.
+	 * @return The trace of every output cell in every lane.
+	 */
+	protected DataTrace[][] _runLanes( final double[][] laneInputs )
+	{
+		_log.info( "Bistable engine running batch..." );
+
+		final int laneCount = _laneCount;
+		final double[] lanePolarizations = _lanePolarizations;
+		final double[] clockValues = _clockValues;
+
+		final int[] order = _order;
+		final int relaxedCount = order.length;
+
+		final InputCell[] inputCells = _circuit.getInputCells();
+		final int[] inputIndices = _inputIndices;
+
+		final OutputCell[] outputCells = _circuit.getOutputCells();
+		final int[] outputIndices = _network.indicesOf( outputCells );
+
+		final DataTrace[][] laneTraces = new DataTrace[ laneCount ][ outputCells.length ];
+		for( int l = 0; l < laneCount; ++l )
+		{
+			for( int j = 0; j < outputCells.length; ++j )
+			{
+				laneTraces[l][j] = new DataTrace( outputCells[j].getName(), _numberOfSamples );
+			}
+		}
+
+		final boolean[] allLanes = new boolean[ laneCount ];
+		final boolean[] activeLanes = new boolean[ laneCount ];
+		final boolean[] unstableLanes = new boolean[ laneCount ];
+		Arrays.fill( allLanes, true );
+
+		final Clock clock0 = _clocks[0];
+		final Clock clock1 = _clocks[1];
+		final Clock clock2 = _clocks[2];
+		final Clock clock3 = _clocks[3];
+
+		int sampleCount = 0;
+
+		for( int i = 0; i < _numberOfSamples && !_stopSimulation; ++i )
+		{
+			// Advance the clocks.
+			clockValues[0] = clock0.get( i );
+			clockValues[1] = clock1.get( i );
+			clockValues[2] = clock2.get( i );
+			clockValues[3] = clock3.get( i );
+
+			for( int z = 0; z < 4; ++z )
+			{
+				_heldZones[z] = clockValues[z] >= _holdThresholds[z];
+			}
+
+			// Update the input cells.
+			for( int j = inputCells.length - 1; j >= 0; --j )
+			{
+				if( inputCells[j].active )
+				{
+					System.arraycopy(	laneInputs[j], i * laneCount,
+										lanePolarizations, inputIndices[j] * laneCount,
+										laneCount );
+				}
+				else
+				{
+					// An inactive input acts just like a normal cell.
+					_tickCellLanes( inputIndices[j], allLanes, unstableLanes );
+				}
+			}
+
+			if( _randomizeCells )
+			{
+				_randomizeCells( order );
+			}
+
+			// Sweep until every lane has had a sweep in which all of its cells
+			// were stable.
+			System.arraycopy( allLanes, 0, activeLanes, 0, laneCount );
+			int activeCount = laneCount;
+
+			do
+			{
+				Arrays.fill( unstableLanes, false );
+
+				for( int k = relaxedCount - 1; k >= 0; --k )
+				{
+					_tickCellLanes( order[k], activeLanes, unstableLanes );
+				}
+
+				for( int l = 0; l < laneCount; ++l )
+				{
+					if( activeLanes[l] && !unstableLanes[l] )
+					{
+						activeLanes[l] = false;
+						--activeCount;
+					}
+				}
+			}
+			while( activeCount > 0 );
+
+			// Plot the stable values of the output cells.
+			for( int j = outputCells.length - 1; j >= 0; --j )
+			{
+				final int base = outputIndices[j] * laneCount;
+
+				for( int l = 0; l < laneCount; ++l )
+				{
+					laneTraces[l][j].addNext( lanePolarizations[ base + l ] );
+				}
+			}
+
+			++sampleCount;
+		}
+
+		// Leave the cells in the state the last lane ended in, as if the
+		// tables had been run one after another.
+		for( int i = _polarizations.length - 1; i >= 0; --i )
+		{
+			_polarizations[i] = lanePolarizations[ (i + 1) * laneCount - 1 ];
+		}
+
+		_network.setPolarizations( _polarizations );
+
+		_laneSampleCount = sampleCount;
+
+		if( sampleCount < _numberOfSamples )
+		{
+			_log.log(	Level.INFO,
+						"Stopped the batch after {0} of {1} samples.",
+						new Object[]{ sampleCount, _numberOfSamples } );
+		}
+
+		_log.info( "Bistable engine finished running batch." );
+
+		return laneTraces;
+	}
+
+	/**
+	 * Only hands back the samples that were run, for a run that was stopped.
+	 *
+	 * @param traces The output traces, sized for every sample.
+	 * @param sampleCount How many samples were run.
+	 * @return Copies of the traces, with just those samples.
+	 */
+	protected static DataTrace[] _trimTraces( DataTrace[] traces, int sampleCount )
+	{
+		final DataTrace[] trimmed = new DataTrace[ traces.length ];
+
+		for( int j = 0; j < traces.length; ++j )
+		{
+			trimmed[j] = new DataTrace( traces[j].name, sampleCount );
+
+			for( int i = 0; i < sampleCount; ++i )
+			{
+				trimmed[j].addNext( traces[j].get( i ) );
+			}
+		}
+
+		return trimmed;
+	}
+
+	/**
+	 * Advances one cell in several lanes at once.
+	 *
+	 * @param cell The index of the cell in _network.
+	 * @param activeLanes Which lanes to update. The rest are left alone.
+	 * @param unstableLanes Set for every updated lane in which the cell's
+	 *		polarization changed by more than the convergence tolerance.
+	 */
+	protected final void _tickCellLanes(	final int cell,
+											final boolean[] activeLanes,
+											final boolean[] unstableLanes )
+	{
+		final int laneCount = _laneCount;
+		final double[] lanePolarizations = _lanePolarizations;
+		final double[] sums = _laneSums;
+		final CellNetwork network = _network;
+		final int zone = network.clockNums[ cell ];
+		final boolean held = _heldZones[ zone ];
+
+		Arrays.fill( sums, 0 );
+
+		if( !held )
+		{
+			final int[] neighbors = network.neighborIndices;
+			final double[] ke = network.kinkEnergies;
+			final int end = network.neighborOffsets[ cell + 1 ];
+
+			for( int k = network.neighborOffsets[ cell ]; k < end; ++k )
+			{
+				final double kinkEnergy = ke[k];
+				final int neighborBase = neighbors[k] * laneCount;
+
+				for( int l = 0; l < laneCount; ++l )
+				{
+					sums[l] += kinkEnergy * lanePolarizations[ neighborBase + l ];
+				}
+			}
+		}
+
+		final double twiceClock = 2.0 * _clockValues[ zone ];
+		final int base = cell * laneCount;
+
+		for( int l = 0; l < laneCount; ++l )
+		{
+			if( !activeLanes[l] )
+			{
+				continue;
+			}
+
+			final double newPol = held ? 0 : _polarizationResponse( sums[l] / twiceClock );
+			final double oldPol = lanePolarizations[ base + l ];
+			lanePolarizations[ base + l ] = newPol;
+
+			if( Math.abs( newPol - oldPol ) > _convergenceTolerance )
+			{
+				unstableLanes[l] = true;
+			}
+		}
+	}
+
+	/**
+	 * Advances a single cell's polarization based on its neighbors,
+	 * over-relaxed by the current sample's sor_omega.
+	 *
+	 * @param cell The index of the cell in _network.
+	 * @return Whether or not the cell was stable, i.e., its polarization
+	 *		changed by no more than the convergence tolerance.
+	 */
+	protected final boolean _tickCell( final int cell )
+	{
+		final double[] polarizations = _polarizations;
+		final CellNetwork network = _network;
 
-		// TODO: Am I initializing the outputs?
+		final int zone = network.clockNums[ cell ];
 
-		// Prepare the clocks.
-		_circuit.updateClocks(	vectorTable.inputs[0].length,
-								_numberOfSamples,
-								_clockLow,
-								_clockHigh,
-								_clockAmplitudeFactor,
-								_clockShift );
+		double newPol;
 
+		if( _heldZones[ zone ] )
+		{
+			// The clock is high enough that the neighbors can't push the cell
+			// meaningfully away from the null state.
+			newPol = 0;
+		}
+		else
+		{
+			double polarizationMath = _kernel.sum(	network.kinkEnergies,
+													network.neighborIndices,
+													polarizations,
+													network.neighborOffsets[ cell ],
+													network.neighborOffsets[ cell + 1 ] );
 
+			polarizationMath /= 2.0 * _clockValues[ zone ];
 
-		final Cell[][] cellMatrix = _circuit.getCellMatrix();
-		final Cell[] cellList = _circuit.getCellList();
+			newPol = _polarizationResponse( polarizationMath );
+		}
 
-		// Tell the cells not to update their dots, we don't need this information
-		// for this engine and it will just waste CPU.
-//		for( Cell[] layer : cellMatrix )
-//		{
-//			for( Cell cell : layer )
-//			{
-//				cell.setUpdateDots( false );
-//			}
-//		}
+		final double oldPol = polarizations[ cell ];
+		final double omega = _omega;
 
-		for( Cell cell : cellList )
+		// Over-relaxing a held cell would only push it past the null state,
+		// and over-relaxing a cell that's changing sides can tip a bistable
+		// wire the wrong way, so both just get the plain update.
+		if( omega == 1 || _heldZones[ zone ] || newPol * oldPol <= 0 )
 		{
-			cell.setUpdateDots( false );
+			polarizations[ cell ] = newPol;
 		}
-
-		if( _randomizeCells )
+		else
 		{
-			_randomizeCells( cellList );
+			polarizations[ cell ] = Math.max( -1, Math.min( 1, oldPol + omega * (newPol - oldPol) ) );
 		}
 
-		_initCells( cellList, _circuit.getClocks() );
-
-		_cellList = cellList;
-		_log.info( "Bistable engine finished initializing." );
+		// Stability is always judged by the plain update.
+		return Math.abs( newPol - oldPol ) <= _convergenceTolerance;
 	}
 
-	@Override
-	protected RunResults _run( VectorTable vectorTable )
+	/**
+	 * Sorts _order by distance from the inputs and the fixed cells, nearest
+	 * last, since the sweeps go from the end of _order to the front.
+	 */
+	protected void _orderBySignalFlow()
 	{
-		assert vectorTable != null;
+		final Cell[] cells = _network.cells;
+		final int cellCount = cells.length;
 
-		_log.info( "Bistable engine running..." );
+		int[] sources = new int[ cellCount ];
+		int sourceCount = 0;
 
-		final Cell[] cellList = _cellList;
-		final int cellCount = cellList.length;
+		for( int i = 0; i < cellCount; ++i )
+		{
+			if( LogicNetlist.isSource( cells[i] ) )
+			{
+				sources[ sourceCount++ ] = i;
+			}
+		}
 
-		final InputCell[] inputCells = _circuit.getInputCells();
-		final int inputCellsCount = inputCells.length;
+		final int[] distances	= _network.signalDistances(
+									Arrays.copyOf( sources, sourceCount ) );
 
-		final OutputCell[] outputCells = _circuit.getOutputCells();
-		final int outputCellsCount = outputCells.length;
+		// Counting sort by distance, farthest first. It's stable, so cells
+		// the same distance away stay in circuit order. Cells that aren't
+		// connected to any source go first of all.
+		final int cellTotal = _order.length;
+		int maxDistance = 0;
 
-		final int maxIterationsPerSample = _maxIterationsPerSample;
+		for( int cell : _order )
+		{
+			if( distances[ cell ] != Integer.MAX_VALUE )
+			{
+				maxDistance = Math.max( maxDistance, distances[ cell ] );
+			}
+		}
 
-		final Clock clock0 = _circuit.getClock( 0 );
-		final Clock clock1 = _circuit.getClock( 1 );
-		final Clock clock2 = _circuit.getClock( 2 );
-		final Clock clock3 = _circuit.getClock( 3 );
+		final int bucketCount = maxDistance + 2;
+		final int[] buckets = new int[ cellTotal ];
+		final int[] offsets = new int[ bucketCount + 1 ];
 
-		for( int i = _numberOfSamples; i > 0 && !_stopSimulation; --i )
+		for( int k = 0; k < cellTotal; ++k )
 		{
-			// Advance the clocks.
-			clock0.tick();
-			clock1.tick();
-			clock2.tick();
-			clock3.tick();
+			final int distance = distances[ _order[k] ];
 
-			// Update the input cells.
-			for( int j = inputCellsCount - 1; j >= 0; --j )
+			buckets[k]	= distance == Integer.MAX_VALUE
+						? 0
+						: maxDistance + 1 - distance;
+			++offsets[ buckets[k] + 1 ];
+		}
+
+		for( int b = 0; b < bucketCount; ++b )
+		{
+			offsets[ b + 1 ] += offsets[b];
+		}
+
+		final int[] sorted = new int[ cellTotal ];
+		final int[] next = offsets.clone();
+
+		for( int k = 0; k < cellTotal; ++k )
+		{
+			sorted[ next[ buckets[k] ]++ ] = _order[k];
+		}
+
+		System.arraycopy( sorted, 0, _order, 0, cellTotal );
+
+		// The buckets that aren't empty are the runs of cells at the same
+		// distance.
+		int runCount = 0;
+		int[] runs = new int[ bucketCount + 1 ];
+
+		for( int b = 0; b < bucketCount; ++b )
+		{
+			if( offsets[b] < offsets[ b + 1 ] )
 			{
-				inputCells[j].tick();
+				runs[ runCount++ ] = offsets[b];
 			}
+		}
 
-			if( _randomizeCells )
+		runs[ runCount++ ] = cellTotal;
+		_distanceRuns = Arrays.copyOf( runs, runCount );
+	}
+
+	/**
+	 * Randomly reorders the cells, the way the randomization setting says to.
+	 *
+	 * @param order The indices of the cells to shuffle.
+	 */
+	protected void _randomizeCells( final int[] order )
+	{
+		assert order != null;
+
+		final MersenneTwisterFast rand = _random;
+		final int cellCount = order.length;
+
+		if( _distanceRuns != null )
+		{
+			// Keep the cells in signal order.
+			for( int r = 0; r < _distanceRuns.length - 1; ++r )
 			{
-				_randomizeCells( cellList );
+				_shuffle( order, _distanceRuns[r], _distanceRuns[ r + 1 ] );
 			}
 
-			int iterationCount = 0;
+			return;
+		}
 
-			do
-			{
-				_stableFlag = true;
-				if( iterationCount > maxIterationsPerSample )
+		switch( _randomization )
+		{
+			case SWAPS:
+				// Perform as many swaps as there are cells.
+				for( int i = cellCount - 1; i >= 0; --i )
 				{
-					// TODO: make note that we couldn't get to a stable state.
-					break;
+					int index1 = rand.nextInt( cellCount );
+					int index2 = rand.nextInt( cellCount );
+
+					int swap = order[ index1 ];
+					order[ index1 ] = order[ index2 ];
+					order[ index2 ] = swap;
 				}
+				break;
 
-				// Update the cells.
-				for( int cellNum = cellCount - 1; cellNum >= 0; --cellNum )
-				{
-					final Cell crtCell = cellList[ cellNum ];
+			case SHUFFLE:
+				_shuffle( order, 0, cellCount );
+				break;
 
-					final Cell.Function crtFunc = crtCell.function;
-					if( crtFunc == Cell.Function.NORMAL
-						|| crtFunc == Cell.Function.OUTPUT
-						|| (crtFunc == Cell.Function.INPUT
-							&& !((InputCell)crtCell).active) )
-					{
-						crtCell.tick();
-					}
+			case BLOCKS:
+				for( int from = 0; from < cellCount; from += _shuffleBlockSize )
+				{
+					_shuffle( order, from, Math.min( from + _shuffleBlockSize, cellCount ) );
 				}
-			}
-			while( !_stableFlag );
+				break;
 
-			// Have the output cells plot their stable values.
-			for( int j = outputCellsCount - 1; j >= 0; --j )
-			{
-				outputCells[j].plotPolarization();
-			}
+			case ROTATE:
+				_permutationIndex = (_permutationIndex + 1) % _permutations.length;
+				System.arraycopy( _permutations[ _permutationIndex ], 0, order, 0, cellCount );
+				break;
 		}
-		_log.info( "Bistable engine finished running." );
-
-		return new RunResults( outputCells );
 	}
 
 	/**
-	 * Randomly swaps the cells around. Makes as many swaps as there are cells.
+	 * Fisher-Yates shuffles part of an order.
 	 *
-	 * @param cellList
+	 * @param order
+	 * @param from The first index to shuffle.
+	 * @param to One past the last index to shuffle.
 	 */
-	protected void _randomizeCells( final Cell[] cellList )
+	protected final void _shuffle( final int[] order, final int from, final int to )
 	{
-		assert cellList != null;
+		final MersenneTwisterFast rand = _random;
 
-		MersenneTwisterFast rand = new MersenneTwisterFast();
+		for( int i = to - 1; i > from; --i )
+		{
+			final int j = from + rand.nextInt( i - from + 1 );
 
-		// Perform as many swaps as there are cells.
-		final int cellCount = cellList.length;
-		for( int i = cellCount - 1; i >= 0; --i )
+			final int swap = order[i];
+			order[i] = order[j];
+			order[j] = swap;
+		}
+	}
+
+	/**
+	 * Does whatever setting up the randomization needs once _order is known.
+	 */
+	protected void _initRandomization()
+	{
+		if( _randomization != Randomization.ROTATE || _distanceRuns != null )
 		{
-			int index1 = rand.nextInt( cellCount );
-			int index2 = rand.nextInt( cellCount );
+			return;
+		}
+
+		_permutations = new int[ _permutationCount ][];
 
-			Cell swap = cellList[ index1 ];
-			cellList[ index1 ] = cellList[ index2 ];
-			cellList[ index2 ] = swap;
+		for( int p = 0; p < _permutationCount; ++p )
+		{
+			_permutations[p] = _order.clone();
+			_shuffle( _permutations[p], 0, _order.length );
 		}
+
+		_permutationIndex = 0;
 	}
 
 	/**
-	 * Initializes each of the cells.
-	 *
-	 * Calculates the _neighbors and kink energies for each cell in the
-	 * cellMatrix. Sets the cells' TickHandlers.
+	 * Finds the cells whose polarization the engine has to relax, i.e., the
+	 * normal cells, the output cells and the inactive input cells.
 	 *
-	 * @param cellList
+	 * @param network
+	 * @return The indices of the cells.
 	 */
-	protected void _initCells( final Cell[] cellList, final Clock[] clocks )
+	protected int[] _findRelaxedCells( final CellNetwork network )
 	{
-		final KinkEnergyCache kinkCache = new KinkEnergyCache();
+		final Cell[] cells = network.cells;
+		final int cellCount = cells.length;
 
-		final int cellCount = cellList.length;
+		int[] relaxed = new int[ cellCount ];
+		int relaxedCount = 0;
 
-		// Counting backwards for performance
-		for( int i = cellCount - 1; i >= 0; --i )
+		for( int i = 0; i < cellCount; ++i )
 		{
-			final Cell crtCell = cellList[i];
+			final Cell crtCell = cells[i];
 			final Cell.Function crtFunc = crtCell.function;
 
 			if( crtFunc == Cell.Function.NORMAL
@@ -367,247 +2538,370 @@ public final class BistableEngine extends Engine
 				|| (crtFunc == Cell.Function.INPUT
 					&& !((InputCell)crtCell).active) )
 			{
-				Cell[] neighbors = _findCellNeighbors( cellList, crtCell );
-				double[] kinkEnergies = _calcKinkEnergies( kinkCache, crtCell, neighbors );
-
-				TickHandler th = new TickHandler(	crtCell,
-													neighbors,
-													kinkEnergies,
-													clocks[ crtCell.clockNum ] );
-				crtCell.setTickHandler( th );
+				relaxed[ relaxedCount++ ] = i;
 			}
 		}
+
+		return Arrays.copyOf( relaxed, relaxedCount );
 	}
 
 	/**
-	 * Finds the _neighbors of a cell within a cellMatrix.
+	 * Compiles the cells into a CellNetwork.
+	 *
+	 * Calculates the _neighbors and kink energies for each cell in the
+	 * cellList. The neighbors are found through a SpatialGrid, so this is
+	 * linear in the number of cells rather than quadratic.
 	 *
 	 * @param cellList
-	 * @param cell The cell to find the _neighbors of.
-	 * @return The cells determined to be within the radius of effect.
+	 * @return The network, indexed in the same order as cellList.
 	 */
-	protected Cell[] _findCellNeighbors(	final Cell[] cellList,
-											final Cell cell )
+	protected CellNetwork _initCells( final Cell[] cellList )
 	{
-		assert cellList != null && cell != null;
+		final CellNetwork topology = _initTopology( cellList, _radiusOfEffect );
 
-		final int cellLayerNum = cell.layerNum;
+		final double[] kinkEnergies = _calcKinkEnergies(	cellList,
+															topology.neighborOffsets,
+															topology.neighborIndices );
 
-		final double radiusOfEffectSqrd = _radiusOfEffect*_radiusOfEffect;
-		final double layerSeparation = _layerSeparation;
+		return topology.withKinkEnergies( kinkEnergies );
+	}
 
-		final ArrayList<Cell> neighbors = new ArrayList<Cell>();
+	/**
+	 * Brings _network up to date with edits made to the circuit since it was
+	 * built, without going over the whole circuit again.
+	 *
+	 * Kink energies only depend on where cells are, so a cell that was just
+	 * re-clocked keeps its row. Only the rows of moved or added cells and of
+	 * the cells near where something was moved, added or removed are worked
+	 * out again, and even then only the pairs with a moved or added cell get
+	 * new kink energies. Every other row is copied over, renumbered.
+	 *
+	 * @param cellList The circuit's cells now.
+	 * @param edits The edits made since _network was built.
+	 * @return The network, indexed in the same order as cellList.
+	 */
+	protected CellNetwork _patchNetwork( final Cell[] cellList, final Circuit.Edit[] edits )
+	{
+		final CellNetwork old = _network;
 
-		int cellCount = cellList.length;
-		for( int i = cellCount - 1; i >= 0; --i )
+		if( edits.length == 0 && Arrays.equals( cellList, old.cells ) )
 		{
-			Cell crtCell = cellList[i];
+			return old;
+		}
+
+		// A re-clocked cell is a copy of a cell that's still in the same spot,
+		// so it takes over that cell's row.
+		final IdentityHashMap<Cell, Cell> origins = new IdentityHashMap<Cell, Cell>();
 
-			if( crtCell != cell )
+		for( Circuit.Edit edit : edits )
+		{
+			if( edit.oldCell != null && edit.newCell != null && !edit.movesCells() )
 			{
-				double xDiff = crtCell.xCoord - cell.xCoord;
-				double yDiff = crtCell.yCoord - cell.yCoord;
+				final Cell origin = origins.get( edit.oldCell );
+				origins.put( edit.newCell, origin == null ? edit.oldCell : origin );
+			}
+		}
 
-				double zDiff	= Math.abs( crtCell.layerNum - cellLayerNum )
-								* layerSeparation;
+		final int cellCount = cellList.length;
+		final int oldCount = old.getCellCount();
 
-				double distanceSqrd	=	(xDiff * xDiff)
-									+	(yDiff * yDiff)
-									+	(zDiff * zDiff);
+		final int[] newToOld = new int[ cellCount ];
+		final int[] oldToNew = new int[ oldCount ];
+		Arrays.fill( oldToNew, -1 );
 
-				if( distanceSqrd < radiusOfEffectSqrd )
-				{
-					neighbors.add( crtCell );
-				}
+		boolean changed = false;
+
+		for( int i = 0; i < cellCount; ++i )
+		{
+			final Cell origin = origins.get( cellList[i] );
+			newToOld[i] = old.indexOf( origin == null ? cellList[i] : origin );
+
+			if( newToOld[i] < 0 )
+			{
+				changed = true;
+			}
+			else
+			{
+				oldToNew[ newToOld[i] ] = i;
 			}
 		}
 
-		return neighbors.toArray( new Cell[ neighbors.size() ] );
-	}
+		// Every cell whose neighbors may have changed.
+		final boolean[] affected = new boolean[ cellCount ];
 
-	/**
-	 * Calculate the kink energies between the cell and its _neighbors.
-	 *
-	 * @param kinkCache A cache of kink energies to speed up the process.
-	 * @param cell The main cell.
-	 * @param _neighbors The main cell's _neighbors.
-	 * @return The kink energies for all of the _neighbors.
-	 */
-	protected double[] _calcKinkEnergies(	KinkEnergyCache kinkCache,
-											final Cell cell,
-											final Cell[] neighbors )
-	{
-		assert kinkCache != null;
+		for( int o = 0; o < oldCount; ++o )
+		{
+			if( oldToNew[o] >= 0 )
+			{
+				continue;
+			}
+
+			// The cell was moved or removed, so its old neighbors lost it.
+			changed = true;
 
-		int neighborsCount = neighbors.length;
-		double[] kinkEnergies = new double[ neighborsCount ];
+			for( int k = old.neighborOffsets[o]; k < old.neighborOffsets[ o + 1 ]; ++k )
+			{
+				final int neighbor = oldToNew[ old.neighborIndices[k] ];
+
+				if( neighbor >= 0 )
+				{
+					affected[ neighbor ] = true;
+				}
+			}
+		}
 
-		HashMap<Cell, Double> cellCache = new HashMap<Cell, Double>();
+		final int[][] patchedRows = new int[ cellCount ][];
 
-		for( int i = neighborsCount - 1; i >= 0; --i )
+		if( changed )
 		{
-			final Cell crtNeighbor = neighbors[i];
-			final HashMap<Cell, Double> neighborCache = kinkCache.get( crtNeighbor );
+			final SpatialGrid grid = new SpatialGrid( cellList, _radiusOfEffect, _pool );
 
-			Double cachedValue;
-			if( neighborCache != null
-				&& (cachedValue = neighborCache.get( cell )) != null )
+			// A moved or added cell is new to its neighbors.
+			for( int i = 0; i < cellCount; ++i )
 			{
-				kinkEnergies[i] = cachedValue;
+				if( newToOld[i] < 0 )
+				{
+					affected[i] = true;
+					patchedRows[i] = grid.findNeighbors( i, _radiusOfEffect, _layerSeparation );
+
+					for( int j : patchedRows[i] )
+					{
+						affected[j] = true;
+					}
+				}
 			}
-			else
+
+			for( int i = 0; i < cellCount; ++i )
 			{
-				kinkEnergies[i] = _calcKinkEnergy( cell, neighbors[i] );
-				cellCache.put( crtNeighbor, kinkEnergies[i] );
+				if( affected[i] && patchedRows[i] == null )
+				{
+					patchedRows[i] = grid.findNeighbors( i, _radiusOfEffect, _layerSeparation );
+				}
 			}
 		}
 
-		if( cellCache.size() > 0 )
+		final int[] offsets = new int[ cellCount + 1 ];
+
+		for( int i = 0; i < cellCount; ++i )
 		{
-			kinkCache.put( cell, cellCache );
+			offsets[ i + 1 ]	= offsets[i]
+								+ (patchedRows[i] != null
+									? patchedRows[i].length
+									: old.getNeighborCount( newToOld[i] ));
 		}
 
-		return kinkEnergies;
-	}
-
-	/**
-	 * Calculate the kink energy between two cells.
-	 *
-	 * @param cell1
-	 * @param cell2
-	 * @return The kink energy.
-	 */
-	protected double _calcKinkEnergy( final Cell cell1, final Cell cell2 )
-	{
-		final double zDiff	= Math.abs( cell1.layerNum - cell2.layerNum )
-							* _layerSeparation;
-		final double zDiffSqrd = zDiff * zDiff;
-		final double qcharge_sqrd_over_four = JQCADConstants.QCHARGE_SQRD_OVER_FOUR;
-		final double[][] samePolarization = _kinkSamePolarization;
-
-		double energySame = 0;
-		double energyDiff = 0;
+		final int[] indices = new int[ offsets[ cellCount ] ];
+		final double[] kinkEnergies = new double[ indices.length ];
+		final double[] dots = changed ? CellKernel.packDots( cellList ) : null;
+		int patchedPairs = 0;
 
-		for( int i = 0; i < 4; ++i )
+		for( int i = 0; i < cellCount; ++i )
 		{
-			QuantumDot cell1dot = cell1.dots[i];
+			int k = offsets[i];
 
-			for( int j = 0; j < 4; ++j )
+			if( patchedRows[i] == null )
 			{
-				QuantumDot cell2dot = cell2.dots[j];
+				// Cells keep their order relative to each other through edits,
+				// so the renumbered row is still sorted.
+				final int o = newToOld[i];
+
+				for( int m = old.neighborOffsets[o]; m < old.neighborOffsets[ o + 1 ]; ++m, ++k )
+				{
+					indices[k] = oldToNew[ old.neighborIndices[m] ];
+					kinkEnergies[k] = old.kinkEnergies[m];
+					assert k == offsets[i] || indices[k] > indices[ k - 1 ];
+				}
 
-				double xDiff = cell1dot.xCoord - cell2dot.xCoord;
-				double yDiff = cell1dot.yCoord - cell2dot.yCoord;
+				continue;
+			}
 
-				double distanceSqrd	= (xDiff * xDiff)
-									+ (yDiff * yDiff)
-									+ zDiffSqrd;
+			for( int j : patchedRows[i] )
+			{
+				double kinkEnergy = Double.NaN;
 
-				// TODO: Is there a way to get out of having to do this sqrt?
-				// TODO: Figure out what's the deal with this constant here.
-				double distance = 1e-9 * Math.sqrt( distanceSqrd );
+				if( newToOld[i] >= 0 && newToOld[j] >= 0 )
+				{
+					// Neither cell moved, so they were neighbors before too.
+					final int o = newToOld[i];
+					final int m = Arrays.binarySearch(	old.neighborIndices,
+														old.neighborOffsets[o],
+														old.neighborOffsets[ o + 1 ],
+														newToOld[j] );
+
+					if( m >= 0 )
+					{
+						kinkEnergy = old.kinkEnergies[m];
+					}
+				}
 
-				assert distance != 0;
+				if( Double.isNaN( kinkEnergy ) )
+				{
+					// Always worked out from the cell with the higher index,
+					// the same as _calcKinkEnergies does.
+					kinkEnergy = _calcKinkEnergy(	cellList, dots,
+													Math.max( i, j ), Math.min( i, j ) );
+					++patchedPairs;
+				}
 
-				// TODO: make sure this is equivalent to what is in the original code.
-				double newEnergySame = samePolarization[i][j] / distance;
-				energySame += newEnergySame;
-				energyDiff -= newEnergySame;
+				indices[k] = j;
+				kinkEnergies[k] = kinkEnergy;
+				++k;
 			}
 		}
 
-		return _kinkConstant * (energyDiff - energySame);
+		_log.log(	Level.INFO,
+					"Patched the network for {0} edits, working out {1} kink energies.",
+					new Object[]{ edits.length, patchedPairs } );
+
+		return new CellNetwork( cellList, offsets, indices, kinkEnergies );
+	}
+
+	/**
+	 * Finds the neighbors of every cell, without working out their kink
+	 * energies.
+	 *
+	 * @param cellList
+	 * @param radius Cells closer than this are neighbors.
+	 * @return The network, with every kink energy set to 0.
+	 */
+	protected CellNetwork _initTopology( final Cell[] cellList, final double radius )
+	{
+		return CellNetwork.withNeighbors( cellList, radius, _layerSeparation, _pool );
 	}
 
-	protected class TickHandler extends Cell.TickHandler
+	/**
+	 * Calculate the kink energies between every cell and its _neighbors,
+	 * with the engine's KinkEnergyCalculator.
+	 *
+	 * @param cellList
+	 * @param offsets Where each cell's neighbors start in indices.
+	 * @param indices The neighbors of every cell, ascending within each row.
+	 * @return The kink energy for each entry in indices.
+	 */
+	protected double[] _calcKinkEnergies(	final Cell[] cellList,
+											final int[] offsets,
+											final int[] indices )
 	{
-		/**
-		 * The cells determined to be within the radius of effect of the cell.
-		 */
-		protected final Cell[] _neighbors;
+		return _kinkCalculator.calcKinkEnergies( cellList, offsets, indices );
+	}
 
-		/**
-		 *  Kink energies between this cell and each of its _neighbors.
-		 */
-		protected final double[] _kinkEnergies;
+	/**
+	 * Calculates the kink energies of a network whose cells have each been
+	 * moved by some offset, dots and all.
+	 *
+	 * Only the kink energies are worked out again: the neighbors are taken
+	 * from topology, which should have been found with a radius big enough
+	 * to cover every pair that the offsets could bring within the radius of
+	 * effect. Pairs that end up no closer than the radius of effect get a
+	 * kink energy of 0, which is the same as not being neighbors.
+	 *
+	 * Runs on the calling thread, so that several can run at once.
+	 *
+	 * @param topology
+	 * @param nominalDots The packed dots of the cells where they were
+	 *		designed to be, from CellKernel.packDots.
+	 * @param xOffsets How far each cell moved along x.
+	 * @param yOffsets How far each cell moved along y.
+	 * @return The kink energy for each entry in topology.neighborIndices.
+	 */
+	protected double[] _calcDisplacedKinkEnergies(	final CellNetwork topology,
+													final double[] nominalDots,
+													final double[] xOffsets,
+													final double[] yOffsets )
+	{
+		final Cell[] cellList = topology.cells;
+		final int cellCount = cellList.length;
+		final int[] offsets = topology.neighborOffsets;
+		final int[] indices = topology.neighborIndices;
+		final double radiusOfEffectSqrd = _radiusOfEffect * _radiusOfEffect;
 
-		protected final Clock _clock;
+		final double[] dots = nominalDots.clone();
 
-		/**
-		 * Construct the TickHandler.
-		 *
-		 * @param c The cell to which this handler belongs.
-		 * @param n The _neighbors of the cell.
-		 * @param ke The kink energies of the between this cell and its _neighbors.
-		 */
-		public TickHandler( Cell cell, Cell[] n, double[] ke, Clock cl )
+		for( int i = 0; i < cellCount; ++i )
 		{
-			super( cell );
-
-			assert n.length == ke.length;
+			final int base = i * CellKernel.DOTS_STRIDE;
 
-			_neighbors = n;
-			_kinkEnergies = ke;
-			_clock = cl;
+			for( int d = 0; d < 4; ++d )
+			{
+				dots[ base + d ] += xOffsets[i];
+				dots[ base + 4 + d ] += yOffsets[i];
+			}
 		}
 
-		@Override
-		public double tick()
+		final double[] kinkEnergies = new double[ indices.length ];
+
+		for( int i = 0; i < cellCount; ++i )
 		{
-			final Cell cell = _cell;
-			final double oldPol = cell.getPolarization();
+			final Cell cell = cellList[i];
+			final int end = offsets[ i + 1 ];
 
-			final Cell[] neighbors = _neighbors;
-			final int neighborCount = neighbors.length;
+			for( int k = offsets[i]; k < end; ++k )
+			{
+				final int j = indices[k];
 
-			final double[] ke = _kinkEnergies;
+				// Each pair is done once, by the cell with the higher index.
+				if( j > i )
+				{
+					break;
+				}
 
-			double polarizationMath = 0;
+				final Cell neighbor = cellList[j];
 
-			for( int i = neighborCount - 1; i >= 0; --i )
-			{
-				polarizationMath += ke[i] * neighbors[i].getPolarization();
-			}
+				final double xDiff = (cell.xCoord + xOffsets[i]) - (neighbor.xCoord + xOffsets[j]);
+				final double yDiff = (cell.yCoord + yOffsets[i]) - (neighbor.yCoord + yOffsets[j]);
+				final double zDiff	= Math.abs( cell.layerNum - neighbor.layerNum )
+									* _layerSeparation;
 
-			polarizationMath /= 2.0 * _clock.check();
+				if( xDiff * xDiff + yDiff * yDiff + zDiff * zDiff >= radiusOfEffectSqrd )
+				{
+					continue;
+				}
 
-			double newPol =
-				(polarizationMath > 1000)
-				? 1 : (polarizationMath < -1000)
-					? -1 : (Math.abs( polarizationMath ) < 0.001)
-						? polarizationMath
-						: polarizationMath / Math.sqrt( 1 + polarizationMath * polarizationMath );
+				final double kinkEnergy = _calcKinkEnergy( cellList, dots, i, j );
 
-			cell.setPolarization( newPol );
+				final int mirror = Arrays.binarySearch(	indices,
+														offsets[j],
+														offsets[ j + 1 ],
+														i );
+				assert mirror >= 0;
 
-			// _stableFlag and _convergenceTolerance come from the containing
-			// instance of BistableEngine.
-			boolean stable = (Math.abs( newPol - oldPol ) <= _convergenceTolerance);
-			
-			// We don't want to set the flag to true just because this one cell
-			// is stable.  They all have to be stable for the system to be
-			// considered stable.
-			if( !stable )
-			{
-				_stableFlag = false;
+				kinkEnergies[k] = kinkEnergy;
+				kinkEnergies[ mirror ] = kinkEnergy;
 			}
-
-			//_stableFlag = stable;
-
-			return newPol;
 		}
+
+		return kinkEnergies;
 	}
 
 	/**
-	 * A helper class for readability. Used when kink energies are being calculated.
+	 * Calculate the kink energy between two cells.
+	 *
+	 * @param cellList
+	 * @param dots The packed dots of the cells, from CellKernel.packDots.
+	 * @param cell1 The index of the first cell.
+	 * @param cell2 The index of the second cell.
+	 * @return The kink energy.
 	 */
-	protected static class KinkEnergyCache extends
-		HashMap<Cell, HashMap<Cell, Double>>
+	protected double _calcKinkEnergy(	final Cell[] cellList, final double[] dots,
+										final int cell1, final int cell2 )
 	{
+		return _kinkCalculator.calcKinkEnergy( cellList, dots, cell1, cell2 );
 	}
 
 	public class RunResults extends Engine.RunResults
 	{
+		/**
+		 * How the relaxation went: the number of samples run, the sweeps
+		 * made over all of them, the most sweeps any one sample took, the
+		 * samples that took more than max_iterations_per_sample sweeps and
+		 * the samples skipped as quiescent.
+		 */
+		public int samples;
+		public long sweeps;
+		public int maxSweeps;
+		public int slowSamples;
+		public int quiescentSamples;
+
 		protected final OutputCell[] _outputCells;
 
 		public RunResults( OutputCell[] outputCells )
@@ -622,18 +2916,72 @@ public final class BistableEngine extends Engine
 			}
 		}
 
+		/**
+		 * @param outputCells
+		 * @param outputTraces The trace of each output cell, in the same
+		 *		order, to use instead of the cells' own traces.
+		 */
+		public RunResults( OutputCell[] outputCells, DataTrace[] outputTraces )
+		{
+			assert outputTraces.length == outputCells.length;
+
+			_outputCells = outputCells;
+
+			for( int i = 0; i < outputCells.length; ++i )
+			{
+				String name = outputCells[i].getName();
+				_outputValues.put(	name,
+									outputCells[i].getValues(	outputTraces[i],
+																_clocks[ outputCells[i].clockNum ] ) );
+				_outputTraces.put( name, outputTraces[i] );
+			}
+		}
+
+		/**
+		 * @return The average number of sweeps per relaxed sample.
+		 */
+		public double getMeanSweeps()
+		{
+			final int relaxed = samples - quiescentSamples;
+
+			return relaxed > 0 ? (double)sweeps / relaxed : 0;
+		}
+
+		/**
+		 * @return The fraction of samples that took more than
+		 *		max_iterations_per_sample sweeps.
+		 */
+		public double getSlowFraction()
+		{
+			return samples > 0 ? (double)slowSamples / samples : 0;
+		}
+
 		@Override
 		public void printStats()
 		{
 			System.out.printf( "Initialization time: %dms\n", initTime );
 			System.out.printf( "Run time: %dms\n", runTime );
 
+			if( stopped )
+			{
+				System.out.printf(	"Stopped after %d of %d samples\n",
+									samples, _numberOfSamples );
+			}
+
+			if( samples > 0 )
+			{
+				System.out.printf(	"Sweeps per sample: %.2f mean, %d max\n",
+									getMeanSweeps(), maxSweeps );
+				System.out.printf(	"Samples over max_iterations_per_sample: %d of %d\n",
+									slowSamples, samples );
+			}
+
 			System.out.println( "Outputs:");
 			for( int i = 0; i < _outputCells.length; ++i )
 			{
 				System.out.printf( "%10s", _outputCells[i].getName() );
 
-				for( byte v : _outputCells[i].getValues() )
+				for( byte v : _outputValues.get( _outputCells[i].getName() ) )
 				{
 					System.out.printf( " %d", v );
 				}
@@ -0,0 +1,214 @@
+/*
+ *  Copyright (c) 2010 Robert Honer <rhoner@cs.ucla.edu>
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *      * Redistributions of source code must retain the above copyright
+ *        notice, this list of conditions and the following disclaimer.
+ *      * Redistributions in binary form must reproduce the above copyright
+ *        notice, this list of conditions and the following disclaimer in the
+ *        documentation and/or other materials provided with the distribution.
+ *      * Neither the name of the <organization> nor the
+ *        names of its contributors may be used to endorse or promote products
+ *        derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package jqcadesigner.engines;
+
+import jqcadesigner.JQCADConstants;
+import jqcadesigner.circuit.units.Cell;
+import jqcadesigner.circuit.units.QuantumDot;
+
+/**
+ * The arithmetic at the heart of the engines: summing a cell's neighbors and
+ * working out the kink energy between two cells.
+ *
+ * The scalar kernel is always available. The vector kernel, which uses the
+ * jdk.incubator.vector module to fill the machine's SIMD registers, lives in
+ * optional/vector and is only available when it has been built and the
+ * module is present.
+ */
+public abstract class CellKernel
+{
+	/**
+	 * The name of the class implementing the vector kernel. It's only loaded
+	 * by name, so that the rest of the tree builds and runs without it.
+	 */
+	private static final String VECTOR_KERNEL_CLASS = "jqcadesigner.engines.VectorCellKernel";
+
+	/**
+	 * The number of doubles in a cell's packed dots: the x coordinates of its
+	 * four dots followed by their y coordinates.
+	 */
+	public static final int DOTS_STRIDE = 8;
+
+	/**
+	 * The charge product of each pair of dots, dot i of the first cell and
+	 * dot j of the second at i*4 + j, when both cells have the same
+	 * polarization.
+	 */
+	protected static final double[] SAME_POLARIZATION =
+	{
+		JQCADConstants.QCHARGE_SQRD_OVER_FOUR, -JQCADConstants.QCHARGE_SQRD_OVER_FOUR,
+		JQCADConstants.QCHARGE_SQRD_OVER_FOUR, -JQCADConstants.QCHARGE_SQRD_OVER_FOUR,
+		-JQCADConstants.QCHARGE_SQRD_OVER_FOUR, JQCADConstants.QCHARGE_SQRD_OVER_FOUR,
+		-JQCADConstants.QCHARGE_SQRD_OVER_FOUR, JQCADConstants.QCHARGE_SQRD_OVER_FOUR,
+		JQCADConstants.QCHARGE_SQRD_OVER_FOUR, -JQCADConstants.QCHARGE_SQRD_OVER_FOUR,
+		JQCADConstants.QCHARGE_SQRD_OVER_FOUR, -JQCADConstants.QCHARGE_SQRD_OVER_FOUR,
+		-JQCADConstants.QCHARGE_SQRD_OVER_FOUR, JQCADConstants.QCHARGE_SQRD_OVER_FOUR,
+		-JQCADConstants.QCHARGE_SQRD_OVER_FOUR, JQCADConstants.QCHARGE_SQRD_OVER_FOUR
+	};
+
+	private static final CellKernel _scalar = new Scalar();
+
+	/**
+	 * @return The kernel that does everything one value at a time.
+	 */
+	public static CellKernel scalar()
+	{
+		return _scalar;
+	}
+
+	/**
+	 * Loads the vector kernel.
+	 *
+	 * @return The kernel, or null if it wasn't built or the
+	 *		jdk.incubator.vector module isn't available (e.g., the JVM wasn't
+	 *		started with --add-modules jdk.incubator.vector).
+	 */
+	public static CellKernel vector()
+	{
+		try
+		{
+			Class<?> kernelClass = Class.forName( VECTOR_KERNEL_CLASS );
+
+			return (CellKernel)kernelClass.getDeclaredConstructor().newInstance();
+		}
+		catch( Exception ex )
+		{
+			return null;
+		}
+		catch( LinkageError ex )
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * Packs the coordinates of every cell's dots into one array, DOTS_STRIDE
+	 * doubles per cell, in the layout kinkSum expects.
+	 *
+	 * @param cells The cells. Each must have four dots.
+	 * @return The packed dots, indexed the same way as cells.
+	 */
+	public static double[] packDots( final Cell[] cells )
+	{
+		final double[] dots = new double[ cells.length * DOTS_STRIDE ];
+
+		for( int i = cells.length - 1; i >= 0; --i )
+		{
+			final QuantumDot[] cellDots = cells[i].dots;
+			final int base = i * DOTS_STRIDE;
+
+			for( int d = 0; d < 4; ++d )
+			{
+				dots[ base + d ] = cellDots[d].xCoord;
+				dots[ base + 4 + d ] = cellDots[d].yCoord;
+			}
+		}
+
+		return dots;
+	}
+
+	/**
+	 * Sums ke[k] * polarizations[ neighbors[k] ] for k in [from, to).
+	 *
+	 * @param ke
+	 * @param neighbors
+	 * @param polarizations
+	 * @param from
+	 * @param to
+	 * @return The sum.
+	 */
+	public abstract double sum(	double[] ke, int[] neighbors,
+								double[] polarizations, int from, int to );
+
+	/**
+	 * Sums the electrostatic energy between the dots of two cells, assuming
+	 * they have the same polarization, without the 1/(4 pi epsilon) factor.
+	 * The kink energy is that constant times -2 times this sum.
+	 *
+	 * @param dots The packed dots, from packDots.
+	 * @param cell1 The index of the first cell in dots.
+	 * @param cell2 The index of the second cell in dots.
+	 * @param zDiffSqrd The square of the vertical distance between the cells.
+	 * @return The sum.
+	 */
+	public abstract double kinkSum(	double[] dots, int cell1, int cell2,
+									double zDiffSqrd );
+
+	/**
+	 * The plain Java kernel.
+	 */
+	private static final class Scalar extends CellKernel
+	{
+		@Override
+		public double sum(	final double[] ke, final int[] neighbors,
+							final double[] polarizations, final int from,
+							final int to )
+		{
+			double sum = 0;
+
+			for( int k = from; k < to; ++k )
+			{
+				sum += ke[k] * polarizations[ neighbors[k] ];
+			}
+
+			return sum;
+		}
+
+		@Override
+		public double kinkSum(	final double[] dots, final int cell1,
+								final int cell2, final double zDiffSqrd )
+		{
+			final int base1 = cell1 * DOTS_STRIDE;
+			final int base2 = cell2 * DOTS_STRIDE;
+
+			double energySame = 0;
+
+			for( int i = 0; i < 4; ++i )
+			{
+				for( int j = 0; j < 4; ++j )
+				{
+					double xDiff = dots[ base1 + i ] - dots[ base2 + j ];
+					double yDiff = dots[ base1 + 4 + i ] - dots[ base2 + 4 + j ];
+
+					double distanceSqrd	= (xDiff * xDiff)
+										+ (yDiff * yDiff)
+										+ zDiffSqrd;
+
+					// The coordinates are in nanometers.
+					double distance = 1e-9 * Math.sqrt( distanceSqrd );
+
+					assert distance != 0;
+
+					energySame += SAME_POLARIZATION[ i * 4 + j ] / distance;
+				}
+			}
+
+			return energySame;
+		}
+	}
+}
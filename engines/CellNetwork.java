@@ -0,0 +1,390 @@
+/*
+ *  Copyright (c) 2010 Robert Honer <rhoner@cs.ucla.edu>
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *      * Redistributions of source code must retain the above copyright
+ *        notice, this list of conditions and the following disclaimer.
+ *      * Redistributions in binary form must reproduce the above copyright
+ *        notice, this list of conditions and the following disclaimer in the
+ *        documentation and/or other materials provided with the distribution.
+ *      * Neither the name of the <organization> nor the
+ *        names of its contributors may be used to endorse or promote products
+ *        derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package jqcadesigner.engines;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.concurrent.ForkJoinPool;
+import jqcadesigner.circuit.units.Cell;
+
+/**
+ * The compiled, index-based form of a circuit's cells.
+ *
+ * Every cell is identified by its index into the cells array. The neighbors
+ * of cell i are stored in compressed sparse row form: they are
+ * neighborIndices[ neighborOffsets[i] ] through
+ * neighborIndices[ neighborOffsets[i+1] - 1 ], and the kink energy between
+ * cell i and each of those neighbors is stored at the same position in
+ * kinkEnergies.  Keeping everything in flat primitive arrays means the
+ * simulation kernels never have to chase pointers through the Cell objects.
+ */
+public final class CellNetwork
+{
+	public final Cell[]		cells;
+	public final int[]		neighborOffsets;
+	public final int[]		neighborIndices;
+	public final double[]	kinkEnergies;
+
+	/**
+	 * The clock zone of each cell.
+	 */
+	public final byte[]		clockNums;
+
+	private final IdentityHashMap<Cell, Integer> _indices;
+
+	/**
+	 * Construct the CellNetwork.
+	 *
+	 * @param c The cells, in index order.
+	 * @param offsets Where each cell's neighbors start. Must be one longer than c.
+	 * @param indices The neighbor indices of every cell, one row after another.
+	 * @param ke The kink energy for each entry in indices.
+	 */
+	public CellNetwork( Cell[] c, int[] offsets, int[] indices, double[] ke )
+	{
+		assert c != null && offsets != null && indices != null && ke != null;
+		assert offsets.length == c.length + 1;
+		assert indices.length == ke.length && offsets[ c.length ] == indices.length;
+
+		cells = c;
+		neighborOffsets = offsets;
+		neighborIndices = indices;
+		kinkEnergies = ke;
+
+		final int cellCount = c.length;
+
+		clockNums = new byte[ cellCount ];
+		_indices = new IdentityHashMap<Cell, Integer>( cellCount );
+
+		for( int i = 0; i < cellCount; ++i )
+		{
+			clockNums[i] = c[i].clockNum;
+			_indices.put( c[i], i );
+		}
+	}
+
+	/**
+	 * Finds the neighbors of every cell, without working out their kink
+	 * energies. The neighbors are found through a SpatialGrid, so this is
+	 * linear in the number of cells rather than quadratic.
+	 *
+	 * @param cells
+	 * @param radius Cells closer than this are neighbors.
+	 * @param layerSeparation The distance between two adjacent layers.
+	 * @param pool Used to find the neighbors in parallel. May be null.
+	 * @return The network, with every kink energy set to 0.
+	 */
+	public static CellNetwork withNeighbors(	final Cell[] cells,
+												final double radius,
+												final double layerSeparation,
+												final ForkJoinPool pool )
+	{
+		final int cellCount = cells.length;
+
+		final SpatialGrid grid = new SpatialGrid( cells, radius, pool );
+		final int[][] neighborRows = grid.findAllNeighbors(	radius,
+															layerSeparation,
+															pool );
+
+		// Flatten the rows.
+		final int[] offsets = new int[ cellCount + 1 ];
+
+		for( int i = 0; i < cellCount; ++i )
+		{
+			offsets[ i + 1 ] = offsets[i] + neighborRows[i].length;
+		}
+
+		final int[] indices = new int[ offsets[ cellCount ] ];
+
+		for( int i = 0; i < cellCount; ++i )
+		{
+			System.arraycopy(	neighborRows[i], 0, indices, offsets[i],
+								neighborRows[i].length );
+		}
+
+		return new CellNetwork( cells, offsets, indices, new double[ indices.length ] );
+	}
+
+	/**
+	 * Shares everything but the kink energies with another network.
+	 */
+	private CellNetwork( CellNetwork network, double[] ke )
+	{
+		assert ke.length == network.neighborIndices.length;
+
+		cells = network.cells;
+		neighborOffsets = network.neighborOffsets;
+		neighborIndices = network.neighborIndices;
+		kinkEnergies = ke;
+		clockNums = network.clockNums;
+		_indices = network._indices;
+	}
+
+	/**
+	 * Makes a network with the same cells and neighbors as this one, but
+	 * different kink energies. Nothing is copied, so this is cheap.
+	 *
+	 * @param ke The kink energy for each entry in neighborIndices.
+	 * @return The new network.
+	 */
+	public CellNetwork withKinkEnergies( double[] ke )
+	{
+		return new CellNetwork( this, ke );
+	}
+
+	public int getCellCount()
+	{
+		return cells.length;
+	}
+
+	public int getNeighborCount( int cell )
+	{
+		return neighborOffsets[ cell + 1 ] - neighborOffsets[ cell ];
+	}
+
+	/**
+	 * Looks up the index of a cell.
+	 *
+	 * @param cell
+	 * @return The cell's index, or -1 if it isn't part of this network.
+	 */
+	public int indexOf( Cell cell )
+	{
+		Integer index = _indices.get( cell );
+
+		return index == null ? -1 : index;
+	}
+
+	/**
+	 * Looks up the indices of several cells at once.
+	 *
+	 * @param c
+	 * @return The index of each cell, in the same order as c.
+	 */
+	public int[] indicesOf( Cell[] c )
+	{
+		int[] retval = new int[ c.length ];
+
+		for( int i = 0; i < c.length; ++i )
+		{
+			retval[i] = indexOf( c[i] );
+
+			if( retval[i] < 0 )
+			{
+				String msg = "Cell is not part of this network.";
+				throw new IllegalArgumentException( msg );
+			}
+		}
+
+		return retval;
+	}
+
+	/**
+	 * Copies the current polarization of every cell into an array.
+	 *
+	 * @return The polarizations, indexed by cell.
+	 */
+	public double[] getPolarizations()
+	{
+		final int cellCount = cells.length;
+		double[] polarizations = new double[ cellCount ];
+
+		for( int i = 0; i < cellCount; ++i )
+		{
+			polarizations[i] = cells[i].getPolarization();
+		}
+
+		return polarizations;
+	}
+
+	/**
+	 * Writes the polarizations back into the Cell objects.
+	 *
+	 * @param polarizations The polarizations, indexed by cell.
+	 */
+	public void setPolarizations( double[] polarizations )
+	{
+		assert polarizations.length == cells.length;
+
+		for( int i = cells.length - 1; i >= 0; --i )
+		{
+			cells[i].setPolarization( polarizations[i] );
+		}
+	}
+
+	/**
+	 * Colors a set of cells so that no two neighboring cells in the set share
+	 * a color.
+	 *
+	 * Since a cell's new polarization only depends on its neighbors, all the
+	 * cells of one color can be updated at the same time without racing each
+	 * other. The coloring is greedy, so it uses at most one more color than
+	 * the largest number of neighbors any cell has.
+	 *
+	 * @param subset The indices of the cells to color.
+	 * @return The cells of each color, in the order they appear in subset.
+	 */
+	public int[][] colorCells( final int[] subset )
+	{
+		final int cellCount = cells.length;
+		final int subsetCount = subset.length;
+
+		// -1 means the cell either isn't in the subset or isn't colored yet.
+		final int[] colors = new int[ cellCount ];
+		Arrays.fill( colors, -1 );
+
+		// Which colors the current cell's neighbors are using. Stamping
+		// avoids having to clear the array for every cell.
+		int[] usedStamps = new int[ 8 ];
+		int colorCount = 0;
+
+		for( int s = 0; s < subsetCount; ++s )
+		{
+			final int cell = subset[s];
+			final int stamp = s + 1;
+			final int end = neighborOffsets[ cell + 1 ];
+
+			for( int k = neighborOffsets[ cell ]; k < end; ++k )
+			{
+				final int neighborColor = colors[ neighborIndices[k] ];
+
+				if( neighborColor >= 0 )
+				{
+					usedStamps[ neighborColor ] = stamp;
+				}
+			}
+
+			int color = 0;
+			while( color < colorCount && usedStamps[ color ] == stamp )
+			{
+				++color;
+			}
+
+			if( color == colorCount )
+			{
+				++colorCount;
+
+				if( colorCount > usedStamps.length )
+				{
+					usedStamps = Arrays.copyOf( usedStamps, usedStamps.length * 2 );
+				}
+			}
+
+			colors[ cell ] = color;
+		}
+
+		// Group the cells by color.
+		final int[] classSizes = new int[ colorCount ];
+		for( int s = 0; s < subsetCount; ++s )
+		{
+			++classSizes[ colors[ subset[s] ] ];
+		}
+
+		final int[][] classes = new int[ colorCount ][];
+		for( int c = 0; c < colorCount; ++c )
+		{
+			classes[c] = new int[ classSizes[c] ];
+			classSizes[c] = 0;
+		}
+
+		for( int s = 0; s < subsetCount; ++s )
+		{
+			final int color = colors[ subset[s] ];
+			classes[ color ][ classSizes[ color ]++ ] = subset[s];
+		}
+
+		return classes;
+	}
+
+	/**
+	 * Works out how far every cell is from a set of source cells, in hops
+	 * through the neighbors, following the clocks.
+	 *
+	 * A signal only moves forward through the clock zones, so a hop is only
+	 * taken within a zone or into the next one, except out of a source,
+	 * which can reach any zone. Cells that can't be reached that way, e.g.,
+	 * ones only driven from further along, are then reached through any
+	 * neighbor, and are counted from the cells already reached.
+	 *
+	 * @param sources The indices of the source cells.
+	 * @return The distance of each cell. Sources are at 0. A cell that isn't
+	 *		connected to any source at all is at Integer.MAX_VALUE.
+	 */
+	public int[] signalDistances( final int[] sources )
+	{
+		final int cellCount = cells.length;
+		final int[] distances = new int[ cellCount ];
+		Arrays.fill( distances, Integer.MAX_VALUE );
+
+		final boolean[] isSource = new boolean[ cellCount ];
+		final int[] queue = new int[ cellCount ];
+		int head = 0, tail = 0;
+
+		for( int source : sources )
+		{
+			if( !isSource[ source ] )
+			{
+				isSource[ source ] = true;
+				distances[ source ] = 0;
+				queue[ tail++ ] = source;
+			}
+		}
+
+		for( int pass = 0; pass < 2; ++pass )
+		{
+			if( pass == 1 )
+			{
+				// Go over every cell reached again, in the order they were
+				// reached, this time without the clocks.
+				head = 0;
+			}
+
+			while( head < tail )
+			{
+				final int u = queue[ head++ ];
+				final int end = neighborOffsets[ u + 1 ];
+
+				for( int k = neighborOffsets[u]; k < end; ++k )
+				{
+					final int v = neighborIndices[k];
+
+					if(		distances[v] == Integer.MAX_VALUE
+						&&	(pass == 1 || isSource[u]
+							|| clockNums[v] == clockNums[u]
+							|| clockNums[v] == (clockNums[u] + 1) % 4) )
+					{
+						distances[v] = distances[u] + 1;
+						queue[ tail++ ] = v;
+					}
+				}
+			}
+		}
+
+		return distances;
+	}
+}
@@ -0,0 +1,486 @@
+/*
+ *  Copyright (c) 2010 Robert Honer <rhoner@cs.ucla.edu>
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *      * Redistributions of source code must retain the above copyright
+ *        notice, this list of conditions and the following disclaimer.
+ *      * Redistributions in binary form must reproduce the above copyright
+ *        notice, this list of conditions and the following disclaimer in the
+ *        documentation and/or other materials provided with the distribution.
+ *      * Neither the name of the <organization> nor the
+ *        names of its contributors may be used to endorse or promote products
+ *        derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package jqcadesigner.engines;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jqcadesigner.JQCADesigner;
+import jqcadesigner.VectorTable;
+import jqcadesigner.circuit.DataTrace;
+
+/**
+ * Everything a BistableEngine run needs to pick up where it left off.
+ *
+ * The clocks and the inputs are read by sample, so the sample the run got to
+ * is all that's needed to find its place in them. The rest is what the
+ * relaxation carries from one sample to the next: the polarizations, the
+ * order the cells are relaxed in, what the quiescence check and the
+ * worklist compare against, the random number generator and the output
+ * values plotted so far.
+ *
+ * A checkpoint is a small binary file, written with DataOutputStream.
+ */
+public final class Checkpoint
+{
+	private static final int MAGIC = 0x4a514350;
+	private static final int VERSION = 2;
+
+	/**
+	 * The 64 bit FNV-1a constants the fingerprints are hashed with.
+	 */
+	private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	/**
+	 * What the run was of. A checkpoint can only be resumed by a run with the
+	 * same counts, settings and vector table.
+	 */
+	public int cellCount;
+	public int numberOfSamples;
+	public int vectorCount;
+	public long settingsFingerprint;
+	public long vectorTableFingerprint;
+
+	/**
+	 * The first sample that hasn't been run.
+	 */
+	public int nextSample;
+
+	/**
+	 * The counters of the run so far, as kept by BistableEngine._run.
+	 */
+	public boolean quiescent;
+	public int quiescentSamples;
+	public int slowSamples;
+	public int maxSweeps;
+	public long sweepTotal;
+
+	public double[] polarizations;
+	public int[] order;
+	public int permutationIndex;
+
+	/**
+	 * The permutations rotated through, or null if the cells aren't
+	 * randomized by rotating.
+	 */
+	public int[][] permutations;
+
+	public double[] quiescentClockValues;
+	public double[] quiescentInputs;
+
+	/**
+	 * What the worklist compares against, or null if the cells aren't
+	 * relaxed with a worklist.
+	 */
+	public double[] previousClockValues;
+	public double[] previousInputs;
+
+	/**
+	 * The random number generator's state, from writeState.
+	 */
+	public byte[] randomState;
+
+	/**
+	 * The output traces. Only the first nextSample values of each belong to
+	 * the checkpoint. Those values are never written again by the run, so
+	 * the traces don't have to be copied to be written out in the background.
+	 */
+	public DataTrace[] outputTraces;
+
+	/**
+	 * Writes the checkpoint to a file. It's written next to the file first and
+	 * then moved over it, so a run that dies part way through a write leaves
+	 * the last checkpoint as it was.
+	 *
+	 * @param fileName
+	 * @throws IOException
+	 */
+	public void write( String fileName ) throws IOException
+	{
+		File file = new File( fileName );
+		File partial = new File( fileName + ".part" );
+
+		DataOutputStream out = new DataOutputStream(
+			new BufferedOutputStream( new FileOutputStream( partial ) ) );
+
+		try
+		{
+			out.writeInt( MAGIC );
+			out.writeInt( VERSION );
+
+			out.writeInt( cellCount );
+			out.writeInt( numberOfSamples );
+			out.writeInt( vectorCount );
+			out.writeLong( settingsFingerprint );
+			out.writeLong( vectorTableFingerprint );
+
+			out.writeInt( nextSample );
+			out.writeBoolean( quiescent );
+			out.writeInt( quiescentSamples );
+			out.writeInt( slowSamples );
+			out.writeInt( maxSweeps );
+			out.writeLong( sweepTotal );
+
+			_writeDoubles( out, polarizations );
+			_writeInts( out, order );
+			out.writeInt( permutationIndex );
+
+			out.writeInt( permutations == null ? -1 : permutations.length );
+			if( permutations != null )
+			{
+				for( int[] permutation : permutations )
+				{
+					_writeInts( out, permutation );
+				}
+			}
+
+			_writeDoubles( out, quiescentClockValues );
+			_writeDoubles( out, quiescentInputs );
+			_writeDoubles( out, previousClockValues );
+			_writeDoubles( out, previousInputs );
+
+			out.writeInt( randomState.length );
+			out.write( randomState );
+
+			out.writeInt( outputTraces.length );
+			for( DataTrace trace : outputTraces )
+			{
+				out.writeUTF( trace.name );
+
+				for( int i = 0; i < nextSample; ++i )
+				{
+					out.writeDouble( trace.get( i ) );
+				}
+			}
+		}
+		finally
+		{
+			out.close();
+		}
+
+		Files.move(	partial.toPath(), file.toPath(),
+					StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE );
+	}
+
+	/**
+	 * Reads a checkpoint from a file.
+	 *
+	 * @param fileName
+	 * @return The checkpoint. Its output traces are just as long as the
+	 *		samples that were run.
+	 * @throws IOException If the file can't be read or isn't a checkpoint.
+	 */
+	public static Checkpoint read( String fileName ) throws IOException
+	{
+		DataInputStream in = new DataInputStream(
+			new BufferedInputStream( new FileInputStream( fileName ) ) );
+
+		try
+		{
+			if( in.readInt() != MAGIC || in.readInt() != VERSION )
+			{
+				throw new IOException( "<" + fileName + "> isn't a checkpoint." );
+			}
+
+			Checkpoint checkpoint = new Checkpoint();
+
+			checkpoint.cellCount = in.readInt();
+			checkpoint.numberOfSamples = in.readInt();
+			checkpoint.vectorCount = in.readInt();
+			checkpoint.settingsFingerprint = in.readLong();
+			checkpoint.vectorTableFingerprint = in.readLong();
+
+			checkpoint.nextSample = in.readInt();
+			checkpoint.quiescent = in.readBoolean();
+			checkpoint.quiescentSamples = in.readInt();
+			checkpoint.slowSamples = in.readInt();
+			checkpoint.maxSweeps = in.readInt();
+			checkpoint.sweepTotal = in.readLong();
+
+			checkpoint.polarizations = _readDoubles( in );
+			checkpoint.order = _readInts( in );
+			checkpoint.permutationIndex = in.readInt();
+
+			final int permutationCount = in.readInt();
+			if( permutationCount >= 0 )
+			{
+				checkpoint.permutations = new int[ permutationCount ][];
+
+				for( int p = 0; p < permutationCount; ++p )
+				{
+					checkpoint.permutations[p] = _readInts( in );
+				}
+			}
+
+			checkpoint.quiescentClockValues = _readDoubles( in );
+			checkpoint.quiescentInputs = _readDoubles( in );
+			checkpoint.previousClockValues = _readDoubles( in );
+			checkpoint.previousInputs = _readDoubles( in );
+
+			checkpoint.randomState = new byte[ in.readInt() ];
+			in.readFully( checkpoint.randomState );
+
+			checkpoint.outputTraces = new DataTrace[ in.readInt() ];
+			for( int j = 0; j < checkpoint.outputTraces.length; ++j )
+			{
+				DataTrace trace = new DataTrace( in.readUTF(), checkpoint.nextSample );
+
+				for( int i = 0; i < checkpoint.nextSample; ++i )
+				{
+					trace.addNext( in.readDouble() );
+				}
+
+				checkpoint.outputTraces[j] = trace;
+			}
+
+			return checkpoint;
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	/**
+	 * Fingerprints the settings of a run, so that a checkpoint isn't resumed
+	 * with different ones.
+	 *
+	 * @param settings The values of the settings, in a fixed order. Each is
+	 *		fingerprinted by its string form.
+	 * @return The fingerprint.
+	 */
+	public static long fingerprint( Object[] settings )
+	{
+		long hash = FNV_OFFSET_BASIS;
+
+		for( Object setting : settings )
+		{
+			final String value = String.valueOf( setting );
+
+			for( int i = 0; i < value.length(); ++i )
+			{
+				hash = (hash ^ value.charAt( i )) * FNV_PRIME;
+			}
+
+			// Keeps "1", "23" apart from "12", "3".
+			hash = (hash ^ 0xffff) * FNV_PRIME;
+		}
+
+		return hash;
+	}
+
+	/**
+	 * Fingerprints a vector table, so that a checkpoint isn't resumed with a
+	 * different one.
+	 *
+	 * @param vectorTable
+	 * @return The fingerprint.
+	 */
+	public static long fingerprint( VectorTable vectorTable )
+	{
+		long hash = FNV_OFFSET_BASIS;
+
+		for( int j = 0; j < vectorTable.inputs.length; ++j )
+		{
+			hash = (hash ^ (vectorTable.active[j] ? 1 : 0)) * FNV_PRIME;
+
+			for( boolean value : vectorTable.inputs[j] )
+			{
+				hash = (hash ^ (value ? 3 : 2)) * FNV_PRIME;
+			}
+		}
+
+		return hash;
+	}
+
+	private static void _writeDoubles( DataOutputStream out, double[] values )
+		throws IOException
+	{
+		out.writeInt( values == null ? -1 : values.length );
+
+		if( values != null )
+		{
+			for( double value : values )
+			{
+				out.writeDouble( value );
+			}
+		}
+	}
+
+	private static void _writeInts( DataOutputStream out, int[] values )
+		throws IOException
+	{
+		out.writeInt( values.length );
+
+		for( int value : values )
+		{
+			out.writeInt( value );
+		}
+	}
+
+	private static double[] _readDoubles( DataInputStream in ) throws IOException
+	{
+		final int length = in.readInt();
+
+		if( length < 0 )
+		{
+			return null;
+		}
+
+		double[] values = new double[ length ];
+
+		for( int i = 0; i < length; ++i )
+		{
+			values[i] = in.readDouble();
+		}
+
+		return values;
+	}
+
+	private static int[] _readInts( DataInputStream in ) throws IOException
+	{
+		int[] values = new int[ in.readInt() ];
+
+		for( int i = 0; i < values.length; ++i )
+		{
+			values[i] = in.readInt();
+		}
+
+		return values;
+	}
+
+	/**
+	 * Writes checkpoints to a file on a background thread, so that the run
+	 * doesn't wait on the disk.
+	 *
+	 * Only one write is ever in flight. A checkpoint handed over while the
+	 * last one is still being written is dropped; the next one will cover
+	 * it.
+	 */
+	public static final class Writer
+	{
+		private static final Logger _log = JQCADesigner.log;
+
+		private final String			_fileName;
+		private final ExecutorService	_executor;
+		private Future<?>				_pending;
+
+		public Writer( final String fileName )
+		{
+			_fileName = fileName;
+			_executor = Executors.newSingleThreadExecutor( new ThreadFactory()
+			{
+				public Thread newThread( Runnable r )
+				{
+					Thread thread = new Thread( r, "checkpoint writer" );
+					thread.setDaemon( true );
+					return thread;
+				}
+			} );
+		}
+
+		/**
+		 * Starts writing a checkpoint, unless the last one is still being
+		 * written.
+		 *
+		 * @param checkpoint Nothing in it may change until it's written,
+		 *		other than the output traces past nextSample.
+		 * @return Whether the checkpoint is being written.
+		 */
+		public boolean submit( final Checkpoint checkpoint )
+		{
+			if( _pending != null && !_pending.isDone() )
+			{
+				return false;
+			}
+
+			_pending = _executor.submit( new Runnable()
+			{
+				public void run()
+				{
+					try
+					{
+						checkpoint.write( _fileName );
+					}
+					catch( IOException ex )
+					{
+						// The run can go on without it.
+						_log.log(	Level.WARNING,
+									"Couldn''t write the checkpoint to <{0}>: {1}",
+									new Object[]{ _fileName, ex.getMessage() } );
+					}
+				}
+			} );
+
+			return true;
+		}
+
+		/**
+		 * Waits for the last checkpoint to be written and stops the thread.
+		 */
+		public void close()
+		{
+			try
+			{
+				if( _pending != null )
+				{
+					_pending.get();
+				}
+			}
+			catch( InterruptedException ex )
+			{
+				Thread.currentThread().interrupt();
+			}
+			catch( ExecutionException ex )
+			{
+				_log.log( Level.WARNING, "Checkpoint writer failed.", ex.getCause() );
+			}
+			finally
+			{
+				_executor.shutdown();
+			}
+		}
+	}
+}
@@ -0,0 +1,701 @@
+/*
+ *  Copyright (c) 2010 Robert Honer <rhoner@cs.ucla.edu>
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *      * Redistributions of source code must retain the above copyright
+ *        notice, this list of conditions and the following disclaimer.
+ *      * Redistributions in binary form must reproduce the above copyright
+ *        notice, this list of conditions and the following disclaimer in the
+ *        documentation and/or other materials provided with the distribution.
+ *      * Neither the name of the <organization> nor the
+ *        names of its contributors may be used to endorse or promote products
+ *        derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package jqcadesigner.engines;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import jqcadesigner.JQCADConstants;
+import jqcadesigner.VectorTable;
+import jqcadesigner.circuit.Circuit;
+import jqcadesigner.circuit.DataTrace;
+import jqcadesigner.circuit.units.Cell;
+import jqcadesigner.circuit.units.Clock;
+import jqcadesigner.circuit.units.InputCell;
+import jqcadesigner.circuit.units.OutputCell;
+import jqcadesigner.config.ConfigFile;
+import jqcadesigner.config.syntaxtree.SectionGroup;
+import jqcadesigner.config.syntaxtree.SettingsSection;
+
+/**
+ * Simulates the circuit through time, following each cell's coherence
+ * vector (lambda_x, lambda_y, lambda_z), whose polarization is -lambda_z.
+ *
+ * Each cell is a two state system with a tunneling energy gamma, set by its
+ * clock, and a kink energy E, the sum of its neighbors' polarizations
+ * weighted by their kink energies. Its coherence vector precesses about
+ * Omega = (-2 gamma, 0, E) / hbar while relaxing towards the thermal steady
+ * state,
+ *
+ *		d(lambda)/dt = Omega x lambda - (lambda - lambda_ss) / tau,
+ *		lambda_ss = -tanh( hbar |Omega| / 2kT ) Omega / |Omega|.
+ *
+ * Every time step, each cell's E is worked out from where its neighbors
+ * were at the start of the step, and its vector is advanced with that E held
+ * fixed, by a Runge-Kutta or Euler step. Since no cell reads anything
+ * another cell writes during a step, the cells are split across threads.
+ * The vectors are kept in one flat array per component, and the neighbors
+ * and kink energies in the same CellNetwork the bistable engine uses.
+ */
+public class CoherenceVectorEngine extends Engine
+{
+	public static final class DefaultConfig
+	{
+		public static final double	TEMPERATURE					= 1;
+		public static final double	RELAXATION					= 1e-15;
+		public static final double	TIME_STEP					= 1e-16;
+		public static final double	DURATION					= 1e-11;
+		public static final double	CLOCK_HIGH					= 9.8e-22;
+		public static final double	CLOCK_LOW					= 3.8e-23;
+		public static final double	CLOCK_SHIFT					= 0;
+		public static final double	CLOCK_AMPLITUDE_FACTOR		= 2;
+		public static final double	RADIUS_OF_EFFECT			= 80;
+		public static final double	EPSILON_R					= 12.9;
+		public static final double	LAYER_SEPARATION			= 11.5;
+		public static final String	ALGORITHM					= "runge_kutta";
+		public static final int		THREADS						= 0;
+	}
+
+	/**
+	 * How the coherence vectors are advanced over a time step.
+	 */
+	public static enum Algorithm
+	{
+		/**
+		 * Fourth order Runge-Kutta.
+		 */
+		RUNGE_KUTTA,
+
+		/**
+		 * A single forward Euler step. Cheaper, but needs a smaller time step.
+		 */
+		EULER
+	}
+
+	/**
+	 * The smallest number of cells worth handing to another thread.
+	 */
+	protected static final int PARALLEL_GRAIN = 512;
+
+	protected final double		_temperature;
+	protected final double		_relaxation;
+	protected final double		_timeStep;
+	protected final double		_duration;
+	protected final double		_clockHigh;
+	protected final double		_clockLow;
+	protected final double		_clockShift;
+	protected final double		_clockAmplitudeFactor;
+	protected final double		_radiusOfEffect;
+	protected final double		_epsilonR;
+	protected final double		_layerSeparation;
+	protected final Algorithm	_algorithm;
+	protected final int			_threads;
+
+	/**
+	 * 1 / kT, or infinity at absolute zero.
+	 */
+	protected final double		_overKT;
+
+	/**
+	 * The number of time steps in a run, duration / time_step.
+	 */
+	protected final int _numberOfSamples;
+
+	/**
+	 * Runs the parallel parts of the engine. Null when running on one thread.
+	 */
+	protected final ForkJoinPool _pool;
+
+	protected final CellKernel _kernel;
+
+	protected CellNetwork _network;
+
+	/**
+	 * The coherence vector of each cell in _network, one array per component.
+	 * A step reads the current arrays and writes the next ones, then the two
+	 * are swapped.
+	 */
+	protected double[] _lambdaX;
+	protected double[] _lambdaY;
+	protected double[] _lambdaZ;
+	protected double[] _nextLambdaX;
+	protected double[] _nextLambdaY;
+	protected double[] _nextLambdaZ;
+
+	/**
+	 * The cells whose vectors evolve, i.e., the normal cells, the output cells
+	 * and the inactive input cells.
+	 */
+	protected int[] _evolved;
+
+	protected int[] _inputIndices;
+	protected DataTrace[] _inputTraces;
+	protected int[] _outputIndices;
+	protected DataTrace[] _outputTraces;
+
+	/**
+	 * The tunneling energy of each clock zone during the current step.
+	 */
+	protected final double[] _gammas = new double[4];
+
+	protected ParallelLoop.Body _step;
+
+	public CoherenceVectorEngine( Circuit circuit )
+		throws	FileNotFoundException, IOException, ConfigFile.ParseException,
+				EngineException
+	{
+		this( circuit, null );
+	}
+
+	public CoherenceVectorEngine( Circuit circuit, String configFileName )
+		throws	FileNotFoundException, IOException, ConfigFile.ParseException,
+				EngineException
+	{
+		super( circuit, configFileName );
+
+		// The same config file is handed to every engine, so it may well not
+		// have a COHERENCE_OPTIONS section. Use the defaults if it doesn't.
+		SettingsSection configSect = new SettingsSection();
+
+		if( _configFile != null )
+		{
+			SectionGroup group = _configFile.get( "COHERENCE_OPTIONS" );
+
+			if( group != null && !group.isEmpty() && group.get( 0 ).hasSettings() )
+			{
+				configSect = (SettingsSection)group.get( 0 );
+			}
+		}
+
+		_temperature			= configSect.get(	"temperature",
+													DefaultConfig.TEMPERATURE );
+
+		_relaxation				= configSect.get(	"relaxation",
+													DefaultConfig.RELAXATION );
+
+		_timeStep				= configSect.get(	"time_step",
+													DefaultConfig.TIME_STEP );
+
+		_duration				= configSect.get(	"duration",
+													DefaultConfig.DURATION );
+
+		_clockHigh				= configSect.get(	"clock_high",
+													DefaultConfig.CLOCK_HIGH );
+
+		_clockLow				= configSect.get(	"clock_low",
+													DefaultConfig.CLOCK_LOW );
+
+		_clockShift				= configSect.get(	"clock_shift",
+													DefaultConfig.CLOCK_SHIFT );
+
+		_clockAmplitudeFactor	= configSect.get(	"clock_amplitude_factor",
+													DefaultConfig.CLOCK_AMPLITUDE_FACTOR );
+
+		_radiusOfEffect			= configSect.get(	"radius_of_effect",
+													DefaultConfig.RADIUS_OF_EFFECT );
+
+		_epsilonR				= configSect.get(	"epsilonR",
+													DefaultConfig.EPSILON_R );
+
+		_layerSeparation		= configSect.get(	"layer_separation",
+													DefaultConfig.LAYER_SEPARATION );
+
+		_threads				= (int)configSect.get(	"threads",
+													(double)DefaultConfig.THREADS );
+
+		String algorithm		= configSect.get(	"algorithm",
+													DefaultConfig.ALGORITHM );
+
+		try
+		{
+			_algorithm = Algorithm.valueOf( algorithm.trim().toUpperCase() );
+		}
+		catch( IllegalArgumentException ex )
+		{
+			String msg = "Unknown coherence vector algorithm: " + algorithm;
+			throw new EngineException( msg );
+		}
+
+		if( _relaxation <= 0 || _timeStep <= 0 || _duration < _timeStep )
+		{
+			String msg	= "The relaxation time and time step must be positive, "
+						+ "and the duration at least one time step.";
+			throw new EngineException( msg );
+		}
+
+		if( _duration / _timeStep > Integer.MAX_VALUE )
+		{
+			String msg = "The duration is too many time steps.";
+			throw new EngineException( msg );
+		}
+
+		_numberOfSamples = (int)Math.round( _duration / _timeStep );
+
+		_overKT	= _temperature > 0
+				? 1 / (JQCADConstants.BOLTZMANN * _temperature)
+				: Double.POSITIVE_INFINITY;
+
+		if( _threads < 0 )
+		{
+			String msg = "The number of threads can't be negative.";
+			throw new EngineException( msg );
+		}
+
+		// Zero threads means one per processor.
+		final int threads	= _threads == 0
+							? Runtime.getRuntime().availableProcessors()
+							: _threads;
+
+		_pool = threads > 1 ? new ForkJoinPool( threads ) : null;
+		_kernel = CellKernel.scalar();
+	}
+
+	@Override
+	protected void _init( VectorTable vectorTable )
+	{
+		_log.info( "Coherence vector engine initializing..." );
+
+		_circuit.updateInputs( vectorTable, _numberOfSamples );
+		_circuit.updateOutputs( _numberOfSamples );
+		_circuit.updateClocks(	vectorTable.inputs[0].length,
+								_numberOfSamples,
+								_clockLow,
+								_clockHigh,
+								_clockAmplitudeFactor,
+								_clockShift );
+
+		final Cell[] cellList = _circuit.getCellList();
+
+		for( Cell cell : cellList )
+		{
+			cell.setUpdateDots( false );
+		}
+
+		final CellNetwork topology = CellNetwork.withNeighbors(	cellList,
+																_radiusOfEffect,
+																_layerSeparation,
+																_pool );
+
+		final KinkEnergyCalculator kinkCalculator
+			= new KinkEnergyCalculator( _kernel, _epsilonR, _layerSeparation, true, _pool );
+
+		_network = topology.withKinkEnergies(
+			kinkCalculator.calcKinkEnergies(	cellList,
+												topology.neighborOffsets,
+												topology.neighborIndices ) );
+
+		// Every cell starts out at rest at its polarization.
+		final int cellCount = cellList.length;
+
+		_lambdaX = new double[ cellCount ];
+		_lambdaY = new double[ cellCount ];
+		_lambdaZ = new double[ cellCount ];
+
+		for( int i = 0; i < cellCount; ++i )
+		{
+			_lambdaZ[i] = -cellList[i].getPolarization();
+		}
+
+		// Cells that don't evolve are the same in both sets of arrays.
+		_nextLambdaX = _lambdaX.clone();
+		_nextLambdaY = _lambdaY.clone();
+		_nextLambdaZ = _lambdaZ.clone();
+
+		int[] evolved = new int[ cellCount ];
+		int evolvedCount = 0;
+
+		for( int i = 0; i < cellCount; ++i )
+		{
+			final Cell.Function function = cellList[i].function;
+
+			if(		function == Cell.Function.NORMAL
+				||	function == Cell.Function.OUTPUT
+				||	(function == Cell.Function.INPUT && !((InputCell)cellList[i]).active) )
+			{
+				evolved[ evolvedCount++ ] = i;
+			}
+		}
+
+		_evolved = Arrays.copyOf( evolved, evolvedCount );
+
+		final InputCell[] inputCells = _circuit.getInputCells();
+		_inputIndices = _network.indicesOf( inputCells );
+		_inputTraces = new DataTrace[ inputCells.length ];
+
+		for( int j = 0; j < inputCells.length; ++j )
+		{
+			_inputTraces[j] = inputCells[j].active ? inputCells[j].getTrace() : null;
+		}
+
+		final OutputCell[] outputCells = _circuit.getOutputCells();
+		_outputIndices = _network.indicesOf( outputCells );
+		_outputTraces = new DataTrace[ outputCells.length ];
+
+		for( int j = 0; j < outputCells.length; ++j )
+		{
+			_outputTraces[j] = outputCells[j].getTrace();
+		}
+
+		_step = _algorithm == Algorithm.EULER ? _eulerStep() : _rungeKuttaStep();
+
+		_log.info( "Coherence vector engine finished initializing." );
+	}
+
+	@Override
+	protected RunResults _run( VectorTable vectorTable )
+	{
+		assert vectorTable != null;
+
+		_log.info( "Coherence vector engine running..." );
+
+		final Clock[] clocks = _circuit.getClocks();
+		final int[] inputIndices = _inputIndices;
+		final DataTrace[] inputTraces = _inputTraces;
+		final int[] outputIndices = _outputIndices;
+		final DataTrace[] outputTraces = _outputTraces;
+		final int evolvedCount = _evolved.length;
+
+		int sampleCount = 0;
+
+		_startProgress( 0 );
+
+		for( int i = 0; i < _numberOfSamples && !_stopSimulation; ++i )
+		{
+			for( int z = 0; z < 4; ++z )
+			{
+				_gammas[z] = clocks[z].get( i );
+			}
+
+			// The active inputs are simply held at their values.
+			for( int j = inputIndices.length - 1; j >= 0; --j )
+			{
+				if( inputTraces[j] != null )
+				{
+					_lambdaZ[ inputIndices[j] ] = -inputTraces[j].get( i );
+				}
+			}
+
+			ParallelLoop.run( _pool, evolvedCount, PARALLEL_GRAIN, _step );
+
+			double[] swap = _lambdaX;
+			_lambdaX = _nextLambdaX;
+			_nextLambdaX = swap;
+
+			swap = _lambdaY;
+			_lambdaY = _nextLambdaY;
+			_nextLambdaY = swap;
+
+			swap = _lambdaZ;
+			_lambdaZ = _nextLambdaZ;
+			_nextLambdaZ = swap;
+
+			for( int j = outputIndices.length - 1; j >= 0; --j )
+			{
+				outputTraces[j].addNext( _polarization( outputIndices[j] ) );
+			}
+
+			++sampleCount;
+
+			_reportProgress( sampleCount, _numberOfSamples, sampleCount, false );
+		}
+
+		_reportProgress( sampleCount, _numberOfSamples, sampleCount, true );
+
+		// Leave the cells in the state the simulation ended in.
+		final Cell[] cells = _network.cells;
+
+		for( int i = cells.length - 1; i >= 0; --i )
+		{
+			cells[i].setPolarization( _polarization( i ) );
+		}
+
+		final OutputCell[] outputCells = _circuit.getOutputCells();
+		final boolean stopped = sampleCount < _numberOfSamples;
+		DataTrace[] resultTraces = outputTraces;
+
+		if( stopped )
+		{
+			// Only hand back the samples that were run.
+			resultTraces = new DataTrace[ outputTraces.length ];
+
+			for( int j = 0; j < outputTraces.length; ++j )
+			{
+				resultTraces[j] = new DataTrace( outputTraces[j].name, sampleCount );
+
+				for( int i = 0; i < sampleCount; ++i )
+				{
+					resultTraces[j].addNext( outputTraces[j].get( i ) );
+				}
+			}
+		}
+
+		_log.info( "Coherence vector engine finished running." );
+
+		RunResults results = new RunResults( outputCells, resultTraces );
+		results.stopped = stopped;
+		results.samples = sampleCount;
+
+		return results;
+	}
+
+	/**
+	 * @param cell
+	 * @return The polarization of the cell, kept within [-1, 1] against
+	 *		rounding.
+	 */
+	protected final double _polarization( final int cell )
+	{
+		return Math.max( -1, Math.min( 1, -_lambdaZ[ cell ] ) );
+	}
+
+	/**
+	 * Works out a cell's kink energy, the sum of its neighbors' polarizations
+	 * weighted by their kink energies.
+	 */
+	protected final double _kinkEnergy( final int cell )
+	{
+		final CellNetwork network = _network;
+
+		// The polarizations are -lambda_z.
+		return -_kernel.sum(	network.kinkEnergies, network.neighborIndices,
+								_lambdaZ, network.neighborOffsets[ cell ],
+								network.neighborOffsets[ cell + 1 ] );
+	}
+
+	/**
+	 * Advances every evolving cell by a step of the fourth order Runge-Kutta
+	 * method. A cell's Omega and steady state are fixed over the step, so
+	 * each stage is just a cross product.
+	 */
+	protected ParallelLoop.Body _rungeKuttaStep()
+	{
+		return new ParallelLoop.Body()
+		{
+			public void run( int from, int to )
+			{
+				final int[] evolved = _evolved;
+				final byte[] clockNums = _network.clockNums;
+				final double dt = _timeStep;
+				final double halfDt = 0.5 * dt;
+				final double overTau = 1 / _relaxation;
+				final double[] lambdaX = _lambdaX;
+				final double[] lambdaY = _lambdaY;
+				final double[] lambdaZ = _lambdaZ;
+				final double[] nextLambdaX = _nextLambdaX;
+				final double[] nextLambdaY = _nextLambdaY;
+				final double[] nextLambdaZ = _nextLambdaZ;
+				final double[] ss = new double[3];
+
+				for( int k = from; k < to; ++k )
+				{
+					final int cell = evolved[k];
+					final double gamma = _gammas[ clockNums[ cell ] ];
+					final double kinkEnergy = _kinkEnergy( cell );
+
+					final double omegaX = -2 * gamma * JQCADConstants.OVER_HBAR;
+					final double omegaZ = kinkEnergy * JQCADConstants.OVER_HBAR;
+					_steadyState( gamma, kinkEnergy, ss );
+					final double ssX = ss[0];
+					final double ssZ = ss[2];
+
+					final double x = lambdaX[ cell ];
+					final double y = lambdaY[ cell ];
+					final double z = lambdaZ[ cell ];
+
+					final double k1x = -omegaZ * y - (x - ssX) * overTau;
+					final double k1y = omegaZ * x - omegaX * z - y * overTau;
+					final double k1z = omegaX * y - (z - ssZ) * overTau;
+
+					double sx = x + halfDt * k1x;
+					double sy = y + halfDt * k1y;
+					double sz = z + halfDt * k1z;
+
+					final double k2x = -omegaZ * sy - (sx - ssX) * overTau;
+					final double k2y = omegaZ * sx - omegaX * sz - sy * overTau;
+					final double k2z = omegaX * sy - (sz - ssZ) * overTau;
+
+					sx = x + halfDt * k2x;
+					sy = y + halfDt * k2y;
+					sz = z + halfDt * k2z;
+
+					final double k3x = -omegaZ * sy - (sx - ssX) * overTau;
+					final double k3y = omegaZ * sx - omegaX * sz - sy * overTau;
+					final double k3z = omegaX * sy - (sz - ssZ) * overTau;
+
+					sx = x + dt * k3x;
+					sy = y + dt * k3y;
+					sz = z + dt * k3z;
+
+					final double k4x = -omegaZ * sy - (sx - ssX) * overTau;
+					final double k4y = omegaZ * sx - omegaX * sz - sy * overTau;
+					final double k4z = omegaX * sy - (sz - ssZ) * overTau;
+
+					nextLambdaX[ cell ] = x + dt / 6 * (k1x + 2 * k2x + 2 * k3x + k4x);
+					nextLambdaY[ cell ] = y + dt / 6 * (k1y + 2 * k2y + 2 * k3y + k4y);
+					nextLambdaZ[ cell ] = z + dt / 6 * (k1z + 2 * k2z + 2 * k3z + k4z);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Advances every evolving cell by a forward Euler step.
+	 */
+	protected ParallelLoop.Body _eulerStep()
+	{
+		return new ParallelLoop.Body()
+		{
+			public void run( int from, int to )
+			{
+				final int[] evolved = _evolved;
+				final byte[] clockNums = _network.clockNums;
+				final double dt = _timeStep;
+				final double overTau = 1 / _relaxation;
+				final double[] lambdaX = _lambdaX;
+				final double[] lambdaY = _lambdaY;
+				final double[] lambdaZ = _lambdaZ;
+				final double[] nextLambdaX = _nextLambdaX;
+				final double[] nextLambdaY = _nextLambdaY;
+				final double[] nextLambdaZ = _nextLambdaZ;
+				final double[] ss = new double[3];
+
+				for( int k = from; k < to; ++k )
+				{
+					final int cell = evolved[k];
+					final double gamma = _gammas[ clockNums[ cell ] ];
+					final double kinkEnergy = _kinkEnergy( cell );
+
+					final double omegaX = -2 * gamma * JQCADConstants.OVER_HBAR;
+					final double omegaZ = kinkEnergy * JQCADConstants.OVER_HBAR;
+					_steadyState( gamma, kinkEnergy, ss );
+
+					final double x = lambdaX[ cell ];
+					final double y = lambdaY[ cell ];
+					final double z = lambdaZ[ cell ];
+
+					nextLambdaX[ cell ] = x + dt * (-omegaZ * y - (x - ss[0]) * overTau);
+					nextLambdaY[ cell ] = y + dt * (omegaZ * x - omegaX * z - y * overTau);
+					nextLambdaZ[ cell ] = z + dt * (omegaX * y - (z - ss[2]) * overTau);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Works out the coherence vector a cell relaxes towards, anti-parallel to
+	 * Omega and shortened by the temperature.
+	 *
+	 * @param gamma The cell's tunneling energy.
+	 * @param kinkEnergy The cell's kink energy.
+	 * @param ss Where to put the steady state. Its y component is always 0.
+	 */
+	protected final void _steadyState( final double gamma, final double kinkEnergy, final double[] ss )
+	{
+		// The energies are far from overflowing, so there's no need for the
+		// much slower Math.hypot.
+		final double magnitude = Math.sqrt( 4 * gamma * gamma + kinkEnergy * kinkEnergy );
+
+		if( magnitude == 0 )
+		{
+			ss[0] = ss[1] = ss[2] = 0;
+			return;
+		}
+
+		// hbar |Omega| / 2kT. At absolute zero, or once tanh has saturated,
+		// the cell relaxes all the way to its ground state.
+		// Math.tanh is several times slower than Math.exp, and this is
+		// worked out for every cell on every step.
+		final double thermalRatio = 0.5 * magnitude * _overKT;
+		final double thermal	= thermalRatio > 20
+								? 1 : 1 - 2 / (Math.exp( 2 * thermalRatio ) + 1);
+
+		ss[0] = thermal * 2 * gamma / magnitude;
+		ss[1] = 0;
+		ss[2] = -thermal * kinkEnergy / magnitude;
+	}
+
+	public class RunResults extends Engine.RunResults
+	{
+		/**
+		 * The number of time steps run.
+		 */
+		public int samples;
+
+		protected final OutputCell[] _outputCells;
+
+		/**
+		 * @param outputCells
+		 * @param outputTraces The trace of each output cell, in the same
+		 *		order.
+		 */
+		public RunResults( OutputCell[] outputCells, DataTrace[] outputTraces )
+		{
+			assert outputTraces.length == outputCells.length;
+
+			_outputCells = outputCells;
+
+			for( int i = 0; i < outputCells.length; ++i )
+			{
+				String name = outputCells[i].getName();
+				_outputValues.put(	name,
+									outputCells[i].getSettledValues(
+										outputTraces[i],
+										_circuit.getClock( outputCells[i].clockNum ) ) );
+				_outputTraces.put( name, outputTraces[i] );
+			}
+		}
+
+		@Override
+		public void printStats()
+		{
+			System.out.printf( "Initialization time: %dms\n", initTime );
+			System.out.printf( "Run time: %dms\n", runTime );
+
+			if( stopped )
+			{
+				System.out.printf(	"Stopped after %d of %d time steps\n",
+									samples, _numberOfSamples );
+			}
+
+			System.out.println( "Outputs:");
+			for( int i = 0; i < _outputCells.length; ++i )
+			{
+				System.out.printf( "%10s", _outputCells[i].getName() );
+
+				for( byte v : _outputValues.get( _outputCells[i].getName() ) )
+				{
+					System.out.printf( " %d", v );
+				}
+
+				System.out.println();
+			}
+		}
+	}
+}
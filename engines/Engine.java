@@ -32,6 +32,7 @@ import java.io.IOException;
 import java.io.PrintStream;
 import java.util.HashMap;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.logging.Logger;
 import jqcadesigner.JQCADesigner;
 
@@ -48,30 +49,249 @@ public abstract class Engine
 	protected final ConfigFile _configFile;
 	protected static final Logger _log = JQCADesigner.log;
 
+	/**
+	 * Set by stop, from any thread, to have the run end at the next sample.
+	 */
+	protected volatile boolean _stopSimulation;
+
+	/**
+	 * Told how the runs are going, if not null.
+	 */
+	protected ProgressListener _progressListener;
+
+	/**
+	 * The least time between two progress reports, in nanoseconds.
+	 */
+	protected long _progressInterval;
+
+	private long _progressStart;
+	private int _progressStartSamples;
+	private long _nextProgress;
+
 	public Engine( Circuit circuit )
 		throws FileNotFoundException, IOException, ParseException
 	{
-		this( circuit, null );
+		this( circuit, (String)null );
 	}
 	
 	public Engine( Circuit circuit, String configFileName )
 		throws FileNotFoundException, IOException, ParseException
+	{
+		this( circuit, configFileName != null ? new ConfigFile( configFileName ) : null );
+	}
+
+	/**
+	 * @param circuit
+	 * @param configFile An already loaded config file. May be null.
+	 */
+	protected Engine( Circuit circuit, ConfigFile configFile )
 	{
 		assert(circuit != null);
 
 		_circuit = circuit;
+		_configFile = configFile;
+	}
+
+	/**
+	 * Makes an engine for the same circuit, with the same config file, as
+	 * another one.
+	 *
+	 * @param prototype
+	 */
+	protected Engine( Engine prototype )
+	{
+		_circuit = prototype._circuit;
+		_configFile = prototype._configFile;
+	}
+
+	public RunResults run( VectorTable vectorTable ) throws CircuitException
+	{
+		return _initAndRun( vectorTable );
+	}
+
+	/**
+	 * Starts a run on a thread of its own.
+	 *
+	 * The run can be ended early with stop, or by cancelling the future. In
+	 * both cases the future still completes normally, with the results up to
+	 * where the run stopped, so that the work done isn't lost.
+	 *
+	 * @param vectorTable
+	 * @return The results, once the run is done.
+	 */
+	public CompletableFuture<RunResults> runAsync( final VectorTable vectorTable )
+	{
+		final RunFuture future = new RunFuture();
+
+		Thread thread = new Thread( new Runnable()
+		{
+			public void run()
+			{
+				RunResults results = null;
+				Throwable failure = null;
+
+				try
+				{
+					results = Engine.this.run( vectorTable );
+				}
+				catch( Throwable ex )
+				{
+					failure = ex;
+				}
+
+				future._finished();
+
+				if( failure == null )
+				{
+					future.complete( results );
+				}
+				else
+				{
+					future.completeExceptionally( failure );
+				}
+			}
+		}, "engine run" );
+
+		thread.setDaemon( true );
+		thread.start();
+
+		return future;
+	}
+
+	/**
+	 * What runAsync hands back.
+	 *
+	 * Cancelling it stops the run rather than cancelling the future, which
+	 * then completes with the results up to where the run stopped. So cancel
+	 * always returns false, and isCancelled stays false.
+	 */
+	private final class RunFuture extends CompletableFuture<RunResults>
+	{
+		private boolean _running = true;
+		private boolean _stopSent = false;
 
-		if( configFileName != null )
+		@Override
+		public synchronized boolean cancel( boolean mayInterruptIfRunning )
 		{
-			_configFile = new ConfigFile( configFileName );
+			if( _running )
+			{
+				_stopSent = true;
+				stop();
+			}
+
+			return false;
 		}
-		else
+
+		/**
+		 * Called once the run is over, before the future is completed.
+		 */
+		private synchronized void _finished()
 		{
-			_configFile = null;
+			_running = false;
+
+			// A cancel that came in just as the run ended mustn't stop the
+			// engine's next run.
+			if( _stopSent )
+			{
+				_stopSimulation = false;
+			}
 		}
 	}
 
-	public RunResults run( VectorTable vectorTable ) throws CircuitException
+	/**
+	 * Has the run end at the next sample. The run's results go as far as it
+	 * got. If no run is going, the next one stops right away. Safe to call
+	 * from any thread.
+	 */
+	public void stop()
+	{
+		_stopSimulation = true;
+	}
+
+	/**
+	 * Sets who gets told how the runs are going.
+	 *
+	 * @param listener May be null, for nobody.
+	 * @param intervalMillis The least time between two reports.
+	 */
+	public void setProgressListener( ProgressListener listener, long intervalMillis )
+	{
+		_progressListener = listener;
+		_progressInterval = intervalMillis * 1000000;
+	}
+
+	/**
+	 * Starts the clock for the progress reports. Called by _run before the
+	 * first sample.
+	 *
+	 * @param samplesDone The samples already done, e.g., by a run that's
+	 *		being resumed.
+	 */
+	protected final void _startProgress( int samplesDone )
+	{
+		_progressStart = System.nanoTime();
+		_progressStartSamples = samplesDone;
+		_nextProgress = _progressStart + _progressInterval;
+	}
+
+	/**
+	 * Tells the progress listener how the run is going, unless it was told
+	 * too recently. Called by _run after every sample.
+	 *
+	 * @param samplesDone
+	 * @param totalSamples
+	 * @param iterations The relaxation iterations made so far.
+	 * @param last Whether the run is done, in which case the listener is
+	 *		told regardless.
+	 */
+	protected final void _reportProgress(	int samplesDone, int totalSamples,
+											long iterations, boolean last )
+	{
+		final ProgressListener listener = _progressListener;
+
+		if( listener == null )
+		{
+			return;
+		}
+
+		final long now = System.nanoTime();
+
+		if( !last && now < _nextProgress )
+		{
+			return;
+		}
+
+		_nextProgress = now + _progressInterval;
+
+		// Assume the rest of the samples go as fast as the ones so far.
+		final int samplesRun = samplesDone - _progressStartSamples;
+		final long etaMillis	= samplesRun > 0
+								? (now - _progressStart) / 1000000
+									* (totalSamples - samplesDone) / samplesRun
+								: -1;
+
+		listener.progress( samplesDone, totalSamples, iterations, etaMillis );
+	}
+
+	/**
+	 * Runs are one at a time, so a run that was just stopped is done before
+	 * the next one starts.
+	 */
+	private synchronized RunResults _initAndRun( VectorTable vectorTable )
+		throws CircuitException
+	{
+		try
+		{
+			return _timedRun( vectorTable );
+		}
+		finally
+		{
+			// A stop only applies to one run.
+			_stopSimulation = false;
+		}
+	}
+
+	private RunResults _timedRun( VectorTable vectorTable ) throws CircuitException
 	{
 		RunResults retval;
 
@@ -95,10 +315,31 @@ public abstract class Engine
 	abstract protected void _init( VectorTable vectorTable );
 	abstract protected RunResults _run( VectorTable vectorTable );
 	
+	/**
+	 * Gets told how a run is going.
+	 */
+	public interface ProgressListener
+	{
+		/**
+		 * @param samplesDone
+		 * @param totalSamples
+		 * @param iterations The relaxation iterations made so far.
+		 * @param etaMillis About how long the rest of the run will take, or
+		 *		-1 if it's too early to tell.
+		 */
+		void progress( int samplesDone, int totalSamples, long iterations, long etaMillis );
+	}
+
 	public abstract class RunResults
 	{
 		public long initTime;
 		public long runTime;
+
+		/**
+		 * Whether the run was stopped before the end, in which case the output
+		 * traces only go up to where it stopped.
+		 */
+		public boolean stopped;
 		protected final HashMap<String, byte[]> _outputValues;
 		protected final HashMap<String, DataTrace> _outputTraces;
 
@@ -0,0 +1,433 @@
+/*
+ *  Copyright (c) 2010 Robert Honer <rhoner@cs.ucla.edu>
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *      * Redistributions of source code must retain the above copyright
+ *        notice, this list of conditions and the following disclaimer.
+ *      * Redistributions in binary form must reproduce the above copyright
+ *        notice, this list of conditions and the following disclaimer in the
+ *        documentation and/or other materials provided with the distribution.
+ *      * Neither the name of the <organization> nor the
+ *        names of its contributors may be used to endorse or promote products
+ *        derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package jqcadesigner.engines;
+
+import ec.util.MersenneTwisterFast;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jqcadesigner.JQCADesigner;
+import jqcadesigner.VectorTable;
+import jqcadesigner.circuit.Circuit;
+import jqcadesigner.circuit.units.OutputCell;
+import jqcadesigner.config.ConfigFile;
+
+/**
+ * Runs every combination of the circuit's inputs through the bistable engine
+ * and builds the circuit's truth table.
+ *
+ * The 2^N vectors are never put in one vector table. Instead, they're split
+ * into shards of consecutive vectors, and each shard's small vector table is
+ * generated when it's about to run. Every shard is run like a vector table
+ * of its own, with number_of_samples samples, on a replica of one
+ * initialized engine, and the shards run concurrently.
+ *
+ * Since an output can lag its inputs by a clock cycle or more, each shard
+ * also runs the vectors that follow it, and the output sampled latency
+ * cycles after a vector is the one recorded for it.
+ */
+public final class ExhaustiveSimulation
+{
+	/**
+	 * The order the vectors are applied in.
+	 */
+	public static enum Order
+	{
+		/**
+		 * Counting up, with the first input cell as the most significant bit.
+		 */
+		BINARY,
+
+		/**
+		 * The reflected Gray code, so only one input changes between one
+		 * vector and the next.
+		 */
+		GRAY;
+
+		/**
+		 * @param index Where the vector is in the sequence.
+		 * @return The vector, as bits.
+		 */
+		public int vectorAt( int index )
+		{
+			return this == GRAY ? index ^ (index >>> 1) : index;
+		}
+	}
+
+	/**
+	 * The most inputs that can be enumerated.
+	 */
+	public static final int MAX_INPUTS = 30;
+
+	private static final Logger _log = JQCADesigner.log;
+
+	private final Circuit	_circuit;
+	private final String	_configFileName;
+	private final Order		_order;
+	private final int		_shardSize;
+	private final int		_latency;
+	private final int		_threads;
+	private final long		_seed;
+
+	/**
+	 * The number of input cells.
+	 */
+	private final int		_inputCount;
+
+	/**
+	 * @param circuit
+	 * @param configFileName The bistable engine config file. May be null.
+	 * @param order
+	 * @param shardSize The number of vectors in each shard. Rounded down to a
+	 *		power of 2.
+	 * @param latency How many clock cycles the outputs lag the inputs by.
+	 * @param threads How many shards to run at once. Zero means one per
+	 *		processor.
+	 * @param seed Seeds the cell randomization of every shard, so the same
+	 *		seed gives the same results.
+	 */
+	public ExhaustiveSimulation(	Circuit circuit, String configFileName,
+									Order order, int shardSize, int latency,
+									int threads, long seed )
+	{
+		if( shardSize < 1 )
+		{
+			String msg = "There must be at least one vector per shard.";
+			throw new IllegalArgumentException( msg );
+		}
+
+		if( latency < 0 )
+		{
+			String msg = "The latency can't be negative.";
+			throw new IllegalArgumentException( msg );
+		}
+
+		if( threads < 0 )
+		{
+			String msg = "The number of threads can't be negative.";
+			throw new IllegalArgumentException( msg );
+		}
+
+		_inputCount = circuit.getInputCells().length;
+
+		if( _inputCount == 0 || _inputCount > MAX_INPUTS )
+		{
+			String msg	= "Can only enumerate between 1 and " + MAX_INPUTS
+						+ " inputs, not " + _inputCount + ".";
+			throw new IllegalArgumentException( msg );
+		}
+
+		_circuit = circuit;
+		_configFileName = configFileName;
+		_order = order;
+		_shardSize = Math.min( Integer.highestOneBit( shardSize ), 1 << _inputCount );
+		_latency = latency;
+		_threads = threads;
+		_seed = seed;
+	}
+
+	public int getVectorCount()
+	{
+		return 1 << _inputCount;
+	}
+
+	public int getShardCount()
+	{
+		return getVectorCount() / _shardSize;
+	}
+
+	/**
+	 * Generates one shard's vector table: its own vectors and then the
+	 * latency vectors after them, wrapping around at the end of the
+	 * sequence.
+	 *
+	 * @param shard
+	 * @return The table.
+	 */
+	public VectorTable getShard( int shard )
+	{
+		final int vectorMask = getVectorCount() - 1;
+		final int length = _shardSize + _latency;
+		final int start = shard * _shardSize;
+
+		final boolean[] active = new boolean[ _inputCount ];
+		final boolean[][] inputs = new boolean[ _inputCount ][ length ];
+
+		Arrays.fill( active, true );
+
+		for( int m = 0; m < length; ++m )
+		{
+			final int vector = _order.vectorAt( (start + m) & vectorMask );
+
+			for( int j = 0; j < _inputCount; ++j )
+			{
+				inputs[j][m] = ((vector >>> (_inputCount - 1 - j)) & 1) != 0;
+			}
+		}
+
+		return new VectorTable( active, inputs );
+	}
+
+	public Results run()
+		throws	FileNotFoundException, IOException, ConfigFile.ParseException,
+				Engine.EngineException, InterruptedException, ExecutionException
+	{
+		final int shardCount = getShardCount();
+
+		long initTime = System.currentTimeMillis();
+		final BistableEngine prototype = new BistableEngine( _circuit, _configFileName );
+		prototype._init( getShard( 0 ) );
+		initTime = System.currentTimeMillis() - initTime;
+
+		final int threads	= Math.min(	shardCount,
+										_threads == 0
+										? Runtime.getRuntime().availableProcessors()
+										: _threads );
+
+		_log.log(	Level.INFO,
+					"Running {0} vectors in {1} shards on {2} threads with seed {3}.",
+					new Object[]{	getVectorCount(), shardCount, threads,
+									Long.toString( _seed ) } );
+
+		final Results results = new Results( _circuit.getOutputCells(), _inputCount );
+		final AtomicInteger nextShard = new AtomicInteger();
+		final MersenneTwisterFast seeds = new MersenneTwisterFast( _seed );
+		final ExecutorService executor = Executors.newFixedThreadPool( threads );
+
+		long runTime = System.currentTimeMillis();
+
+		try
+		{
+			ArrayList<Future<?>> futures = new ArrayList<Future<?>>( threads );
+
+			// Each thread keeps taking the next shard until there are none
+			// left, so only the shards being run are ever generated.
+			for( int t = 0; t < threads; ++t )
+			{
+				futures.add( executor.submit( new Runnable()
+				{
+					public void run()
+					{
+						while( true )
+						{
+							final int shard;
+							final long seed;
+
+							// Shards draw their seeds in order, so every shard
+							// gets the same seed whichever thread runs it.
+							synchronized( seeds )
+							{
+								shard = nextShard.getAndIncrement();
+								seed = seeds.nextLong();
+							}
+
+							if( shard >= shardCount )
+							{
+								break;
+							}
+
+							final VectorTable vectorTable = getShard( shard );
+
+							BistableEngine replica = new BistableEngine( prototype, seed );
+							replica._replaceInputs( vectorTable );
+
+							results._add(	shard * _shardSize, _shardSize, _latency,
+											replica._run( vectorTable ) );
+						}
+					}
+				} ) );
+			}
+
+			for( Future<?> future : futures )
+			{
+				future.get();
+			}
+		}
+		finally
+		{
+			executor.shutdownNow();
+			prototype._shutdownPool();
+		}
+
+		results.initTime = initTime;
+		results.runTime = System.currentTimeMillis() - runTime;
+
+		_log.log( Level.INFO, "Ran {0} vectors.", getVectorCount() );
+
+		return results;
+	}
+
+	/**
+	 * The truth table: the value of every output for every combination of
+	 * the inputs.
+	 */
+	public final class Results
+	{
+		public long initTime;
+		public long runTime;
+
+		private final String[]	_outputNames;
+
+		/**
+		 * For each output, its value for each vector, indexed by the vector's
+		 * bits rather than by when it was run.
+		 */
+		private final byte[][]	_values;
+
+		private Results( OutputCell[] outputCells, int inputCount )
+		{
+			_outputNames = new String[ outputCells.length ];
+			_values = new byte[ outputCells.length ][ 1 << inputCount ];
+
+			for( int j = 0; j < outputCells.length; ++j )
+			{
+				_outputNames[j] = outputCells[j].getName();
+				Arrays.fill( _values[j], (byte)-1 );
+			}
+		}
+
+		/**
+		 * Records one shard's outputs. Shards cover different vectors, so
+		 * they can be added without locking.
+		 */
+		private void _add( int start, int count, int latency, Engine.RunResults runResults )
+		{
+			for( int j = 0; j < _outputNames.length; ++j )
+			{
+				final byte[] values = runResults.getOutputValues( _outputNames[j] );
+				final byte[] table = _values[j];
+
+				for( int k = 0; k < count; ++k )
+				{
+					final int v = k + latency;
+
+					table[ _order.vectorAt( start + k ) ] = v < values.length ? values[v] : -1;
+				}
+			}
+		}
+
+		public int getInputCount()
+		{
+			return _inputCount;
+		}
+
+		public String[] getOutputNames()
+		{
+			return _outputNames.clone();
+		}
+
+		/**
+		 * @param outputName
+		 * @param vector The inputs, as bits, with the first input cell as the
+		 *		most significant bit.
+		 * @return The output's value, 1, 0 or -1 if it was undecided.
+		 */
+		public byte getValue( String outputName, int vector )
+		{
+			return _values[ _indexOf( outputName ) ][ vector ];
+		}
+
+		/**
+		 * @param outputName
+		 * @return The output's value for every vector, in binary order.
+		 */
+		public byte[] getValues( String outputName )
+		{
+			return _values[ _indexOf( outputName ) ].clone();
+		}
+
+		private int _indexOf( String outputName )
+		{
+			for( int j = 0; j < _outputNames.length; ++j )
+			{
+				if( _outputNames[j].equals( outputName ) )
+				{
+					return j;
+				}
+			}
+
+			throw new IllegalArgumentException( "No such output: " + outputName );
+		}
+
+		public void printStats()
+		{
+			System.out.printf( "Initialization time: %dms\n", initTime );
+			System.out.printf( "Run time: %dms\n", runTime );
+			System.out.printf( "Vectors: %d\n", _values.length > 0 ? _values[0].length : 0 );
+
+			for( int j = 0; j < _outputNames.length; ++j )
+			{
+				int undecided = 0;
+
+				for( byte value : _values[j] )
+				{
+					if( value < 0 )
+					{
+						++undecided;
+					}
+				}
+
+				System.out.printf( "%10s undecided for %d vectors\n", _outputNames[j], undecided );
+			}
+
+			// Printing the whole table is only useful when it's small.
+			if( _inputCount > 8 )
+			{
+				return;
+			}
+
+			System.out.println( "Truth table:" );
+
+			for( int vector = 0; vector < (1 << _inputCount); ++vector )
+			{
+				StringBuilder line = new StringBuilder();
+
+				for( int i = _inputCount - 1; i >= 0; --i )
+				{
+					line.append( (vector >>> i) & 1 );
+				}
+
+				for( int j = 0; j < _outputNames.length; ++j )
+				{
+					final byte value = _values[j][ vector ];
+					line.append( ' ' ).append( value < 0 ? "x" : Byte.toString( value ) );
+				}
+
+				System.out.println( line );
+			}
+		}
+	}
+}
@@ -0,0 +1,536 @@
+/*
+ *  Copyright (c) 2010 Robert Honer <rhoner@cs.ucla.edu>
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *      * Redistributions of source code must retain the above copyright
+ *        notice, this list of conditions and the following disclaimer.
+ *      * Redistributions in binary form must reproduce the above copyright
+ *        notice, this list of conditions and the following disclaimer in the
+ *        documentation and/or other materials provided with the distribution.
+ *      * Neither the name of the <organization> nor the
+ *        names of its contributors may be used to endorse or promote products
+ *        derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package jqcadesigner.engines;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import jqcadesigner.VectorTable;
+import jqcadesigner.circuit.Circuit;
+import jqcadesigner.circuit.Circuit.CircuitException;
+import jqcadesigner.circuit.DataTrace;
+import jqcadesigner.circuit.units.Cell;
+import jqcadesigner.circuit.units.OutputCell;
+import jqcadesigner.config.ConfigFile;
+import jqcadesigner.config.syntaxtree.SectionGroup;
+import jqcadesigner.config.syntaxtree.SettingsSection;
+
+/**
+ * A bistable engine that only relaxes the parts of the circuit that need it.
+ *
+ * The circuit's LogicNetlist splits the cells into simple ones, the wires
+ * and inverters, and complex ones, the majority and threshold gates and
+ * everything within a few netlist hops of them. Only the complex cells are
+ * relaxed. Every sample, before the relaxation, each simple cell is updated
+ * once against its neighbors, going through them in signal order, so a
+ * signal crosses a wire in one pass instead of taking sweep after sweep. A
+ * cell downstream of a gate picks up what the gate settled into a sample
+ * later, which the clocks are far too slow to notice.
+ *
+ * The BISTABLE_OPTIONS settings apply as usual. HYBRID_OPTIONS can set the
+ * halo, the number of hops around a gate that are still relaxed, and
+ * compare_with_bistable, which also runs the plain bistable engine and reports
+ * how far the results are from it.
+ */
+public class HybridEngine extends BistableEngine
+{
+	public static final class DefaultConfig
+	{
+		public static final int		HALO						= 2;
+		public static final boolean	COMPARE_WITH_BISTABLE		= false;
+	}
+
+	protected final int		_halo;
+	protected final boolean	_compareWithBistable;
+
+	protected LogicNetlist _netlist;
+
+	/**
+	 * The cells that aren't relaxed, in signal order.
+	 */
+	protected int[] _simpleCells;
+
+	/**
+	 * The number of separate complex regions.
+	 */
+	protected int _regionCount;
+
+	public HybridEngine( Circuit circuit )
+		throws	FileNotFoundException, IOException, ConfigFile.ParseException,
+				EngineException
+	{
+		this( circuit, null );
+	}
+
+	public HybridEngine( Circuit circuit, String configFileName )
+		throws	FileNotFoundException, IOException, ConfigFile.ParseException,
+				EngineException
+	{
+		super( circuit, configFileName );
+
+		SettingsSection configSect = new SettingsSection();
+
+		if( _configFile != null )
+		{
+			SectionGroup group = _configFile.get( "HYBRID_OPTIONS" );
+
+			if( group != null && !group.isEmpty() && group.get( 0 ).hasSettings() )
+			{
+				configSect = (SettingsSection)group.get( 0 );
+			}
+		}
+
+		_halo					= configSect.get(	"halo",
+													DefaultConfig.HALO );
+
+		_compareWithBistable	= configSect.get(	"compare_with_bistable",
+													DefaultConfig.COMPARE_WITH_BISTABLE );
+
+		if( _halo < 0 )
+		{
+			String msg = "The halo can't be negative.";
+			throw new EngineException( msg );
+		}
+	}
+
+	/**
+	 * Batches would need the simple cells worked out in every lane, so the
+	 * tables are just run one after another. A stop ends the table being run
+	 * and every one after it.
+	 */
+	@Override
+	public synchronized BistableEngine.RunResults[] runBatch( final VectorTable[] vectorTables )
+	{
+		final BistableEngine.RunResults[] results
+			= new BistableEngine.RunResults[ vectorTables.length ];
+
+		boolean stopped = false;
+
+		for( int l = 0; l < vectorTables.length; ++l )
+		{
+			if( stopped )
+			{
+				// Each run clears the stop once it's done, so pass it on.
+				stop();
+			}
+
+			try
+			{
+				results[l] = (BistableEngine.RunResults)run( vectorTables[l] );
+				stopped = stopped || results[l].stopped;
+			}
+			catch( CircuitException ex )
+			{
+				throw new IllegalArgumentException( ex.getMessage() );
+			}
+		}
+
+		return results;
+	}
+
+	/**
+	 * Splits the cells into the complex ones, which are relaxed, and the
+	 * simple ones, which aren't.
+	 */
+	@Override
+	protected int[] _findRelaxedCells( final CellNetwork network )
+	{
+		final int[] relaxed = super._findRelaxedCells( network );
+		final int cellCount = network.getCellCount();
+
+		_netlist = LogicNetlist.extract( network );
+
+		final LogicNetlist netlist = _netlist;
+		final int[] driverOffsets = netlist.driverOffsets;
+		final int[] driverIndices = netlist.driverIndices;
+
+		// Who each cell drives, to go both ways through the netlist.
+		final int[] fanoutOffsets = new int[ cellCount + 1 ];
+
+		for( int k = 0; k < driverIndices.length; ++k )
+		{
+			++fanoutOffsets[ driverIndices[k] + 1 ];
+		}
+
+		for( int i = 0; i < cellCount; ++i )
+		{
+			fanoutOffsets[ i + 1 ] += fanoutOffsets[i];
+		}
+
+		final int[] fanouts = new int[ driverIndices.length ];
+		final int[] fill = Arrays.copyOf( fanoutOffsets, cellCount );
+
+		for( int v = 0; v < cellCount; ++v )
+		{
+			for( int k = driverOffsets[v]; k < driverOffsets[ v + 1 ]; ++k )
+			{
+				fanouts[ fill[ driverIndices[k] ]++ ] = v;
+			}
+		}
+
+		// Grow the gates by the halo.
+		final int[] hops = new int[ cellCount ];
+		Arrays.fill( hops, Integer.MAX_VALUE );
+
+		ArrayDeque<Integer> queue = new ArrayDeque<Integer>();
+
+		for( int cell : relaxed )
+		{
+			if( !_isSimple( network, cell ) )
+			{
+				hops[ cell ] = 0;
+				queue.add( cell );
+			}
+		}
+
+		while( !queue.isEmpty() )
+		{
+			final int u = queue.poll();
+
+			if( hops[u] == _halo )
+			{
+				continue;
+			}
+
+			for( int pass = 0; pass < 2; ++pass )
+			{
+				final int[] offsets = pass == 0 ? driverOffsets : fanoutOffsets;
+				final int[] others = pass == 0 ? driverIndices : fanouts;
+
+				for( int k = offsets[u]; k < offsets[ u + 1 ]; ++k )
+				{
+					final int v = others[k];
+
+					if(		hops[v] == Integer.MAX_VALUE
+						&&	netlist.gates[v] != LogicNetlist.Gate.SOURCE )
+					{
+						hops[v] = hops[u] + 1;
+						queue.add( v );
+					}
+				}
+			}
+		}
+
+		final boolean[] simple = new boolean[ cellCount ];
+		int simpleCount = 0;
+
+		for( int cell : relaxed )
+		{
+			simple[ cell ] = hops[ cell ] == Integer.MAX_VALUE;
+			simpleCount += simple[ cell ] ? 1 : 0;
+		}
+
+		_simpleCells = new int[ simpleCount ];
+		simpleCount = 0;
+
+		for( int v : netlist.order )
+		{
+			if( simple[v] )
+			{
+				_simpleCells[ simpleCount++ ] = v;
+			}
+		}
+
+		// Count the complex regions.
+		final boolean[] seen = new boolean[ cellCount ];
+		_regionCount = 0;
+
+		for( int cell : relaxed )
+		{
+			if( simple[ cell ] || seen[ cell ] )
+			{
+				continue;
+			}
+
+			++_regionCount;
+			seen[ cell ] = true;
+			queue.add( cell );
+
+			while( !queue.isEmpty() )
+			{
+				final int u = queue.poll();
+
+				for( int pass = 0; pass < 2; ++pass )
+				{
+					final int[] offsets = pass == 0 ? driverOffsets : fanoutOffsets;
+					final int[] others = pass == 0 ? driverIndices : fanouts;
+
+					for( int k = offsets[u]; k < offsets[ u + 1 ]; ++k )
+					{
+						final int v = others[k];
+
+						if( !simple[v] && !seen[v] && netlist.gates[v] != LogicNetlist.Gate.SOURCE )
+						{
+							seen[v] = true;
+							queue.add( v );
+						}
+					}
+				}
+			}
+		}
+
+		int[] complex = new int[ relaxed.length ];
+		int complexCount = 0;
+
+		for( int cell : relaxed )
+		{
+			if( !simple[ cell ] )
+			{
+				complex[ complexCount++ ] = cell;
+			}
+		}
+
+		if( !_replica )
+		{
+			_log.info(	"Relaxing " + complexCount + " cells in " + _regionCount
+						+ " regions, and propagating " + simpleCount
+						+ " wire and inverter cells." );
+		}
+
+		return Arrays.copyOf( complex, complexCount );
+	}
+
+	/**
+	 * Whether a cell can be left out of the relaxation, going by its gate
+	 * alone. Only normal and output cells that are wires or inverters can.
+	 */
+	private boolean _isSimple( final CellNetwork network, final int cell )
+	{
+		final Cell.Function function = network.cells[ cell ].function;
+		final LogicNetlist.Gate gate = _netlist.gates[ cell ];
+
+		return	(function == Cell.Function.NORMAL || function == Cell.Function.OUTPUT)
+			&&	(gate == LogicNetlist.Gate.BUFFER || gate == LogicNetlist.Gate.INVERTER);
+	}
+
+	/**
+	 * The simple cells are updated too, so the zones are only held once
+	 * they can be held as well.
+	 */
+	@Override
+	protected int[] _updatedCells()
+	{
+		final int[] cells = Arrays.copyOf( _order, _order.length + _simpleCells.length );
+		System.arraycopy( _simpleCells, 0, cells, _order.length, _simpleCells.length );
+
+		return cells;
+	}
+
+	/**
+	 * The halo changes which cells are relaxed, so a checkpoint is only good
+	 * for the same one.
+	 */
+	@Override
+	protected long _settingsFingerprint()
+	{
+		return Checkpoint.fingerprint( new Object[]{ super._settingsFingerprint(), _halo } );
+	}
+
+	/**
+	 * Updates every simple cell once, in signal order.
+	 */
+	@Override
+	protected void _beforeRelaxation()
+	{
+		final boolean worklist = _relaxation == Relaxation.WORKLIST;
+
+		for( int cell : _simpleCells )
+		{
+			if( !_tickCell( cell ) && worklist )
+			{
+				_enqueueNeighbors( cell );
+			}
+		}
+	}
+
+	/**
+	 * With compare_with_bistable, also runs the plain bistable engine once
+	 * the hybrid run is done. That run isn't part of the hybrid's times.
+	 */
+	@Override
+	public Engine.RunResults run( VectorTable vectorTable ) throws CircuitException
+	{
+		final RunResults results = (RunResults)super.run( vectorTable );
+
+		if( _compareWithBistable && !results.stopped )
+		{
+			BistableEngine reference = null;
+
+			try
+			{
+				reference = new BistableEngine( _circuit, _bistableSettings() );
+				results.compareWith( (BistableEngine.RunResults)reference.run( vectorTable ) );
+			}
+			catch( Exception ex )
+			{
+				_log.warning( "Couldn't run the bistable engine to compare with: " + ex );
+			}
+			finally
+			{
+				if( reference != null )
+				{
+					reference._shutdownPool();
+				}
+			}
+		}
+
+		return results;
+	}
+
+	@Override
+	protected BistableEngine.RunResults _run( VectorTable vectorTable )
+	{
+		return new RunResults( super._run( vectorTable ) );
+	}
+
+	public class RunResults extends BistableEngine.RunResults
+	{
+		/**
+		 * The results of the plain bistable run, if it was compared with.
+		 */
+		public BistableEngine.RunResults reference;
+
+		/**
+		 * How long the plain bistable run took to initialize and run, if it
+		 * was compared with.
+		 */
+		public long referenceInitTime;
+		public long referenceRunTime;
+
+		/**
+		 * How many output values differ from the plain bistable run's, and
+		 * the most any output's polarization differs from it.
+		 */
+		public int valueMismatches;
+		public double maxPolarizationError;
+
+		/**
+		 * @param results The results of the hybrid run. Their traces are
+		 *		copied, since a run to compare with refills the output
+		 *		cells' own.
+		 */
+		public RunResults( BistableEngine.RunResults results )
+		{
+			super( _circuit.getOutputCells(), _copyTraces( results ) );
+
+			stopped = results.stopped;
+			samples = results.samples;
+			sweeps = results.sweeps;
+			maxSweeps = results.maxSweeps;
+			slowSamples = results.slowSamples;
+			quiescentSamples = results.quiescentSamples;
+		}
+
+		/**
+		 * Works out how far these results are from a plain bistable run's.
+		 *
+		 * @param results
+		 */
+		public void compareWith( BistableEngine.RunResults results )
+		{
+			reference = results;
+			referenceInitTime = results.initTime;
+			referenceRunTime = results.runTime;
+			valueMismatches = 0;
+			maxPolarizationError = 0;
+
+			for( String name : getOutputNames() )
+			{
+				final byte[] values = getOutputValues( name );
+				final byte[] referenceValues = results.getOutputValues( name );
+
+				for( int i = 0; i < Math.max( values.length, referenceValues.length ); ++i )
+				{
+					if(		i >= values.length || i >= referenceValues.length
+						||	values[i] != referenceValues[i] )
+					{
+						++valueMismatches;
+					}
+				}
+
+				final DataTrace trace = getOutputTrace( name );
+				final DataTrace referenceTrace = results.getOutputTrace( name );
+				final int samples = Math.min( trace.getSize(), referenceTrace.getSize() );
+
+				for( int i = 0; i < samples; ++i )
+				{
+					maxPolarizationError	= Math.max(	maxPolarizationError,
+														Math.abs( trace.get( i ) - referenceTrace.get( i ) ) );
+				}
+			}
+		}
+
+		@Override
+		public void printStats()
+		{
+			super.printStats();
+
+			System.out.printf(	"Relaxed regions: %d, propagated cells: %d of %d\n",
+								_regionCount, _simpleCells.length,
+								_network.getCellCount() );
+
+			if( reference != null )
+			{
+				System.out.printf(	"Plain bistable init time: %dms\n",
+									referenceInitTime );
+				System.out.printf(	"Plain bistable run time: %dms\n",
+									referenceRunTime );
+				System.out.printf(	"Output values differing from the plain bistable run: %d\n",
+									valueMismatches );
+				System.out.printf(	"Largest output polarization difference: %.4f\n",
+									maxPolarizationError );
+			}
+		}
+	}
+
+	/**
+	 * Copies the output traces of a run, in the order of the circuit's
+	 * output cells.
+	 */
+	private DataTrace[] _copyTraces( BistableEngine.RunResults results )
+	{
+		final OutputCell[] outputCells = _circuit.getOutputCells();
+		final DataTrace[] copies = new DataTrace[ outputCells.length ];
+
+		for( int j = 0; j < outputCells.length; ++j )
+		{
+			final DataTrace trace = results.getOutputTrace( outputCells[j].getName() );
+
+			copies[j] = new DataTrace( trace.name, trace.getSize() );
+
+			for( int i = 0; i < trace.getSize(); ++i )
+			{
+				copies[j].addNext( trace.get( i ) );
+			}
+		}
+
+		return copies;
+	}
+}
@@ -0,0 +1,176 @@
+/*
+ *  Copyright (c) 2010 Robert Honer <rhoner@cs.ucla.edu>
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *      * Redistributions of source code must retain the above copyright
+ *        notice, this list of conditions and the following disclaimer.
+ *      * Redistributions in binary form must reproduce the above copyright
+ *        notice, this list of conditions and the following disclaimer in the
+ *        documentation and/or other materials provided with the distribution.
+ *      * Neither the name of the <organization> nor the
+ *        names of its contributors may be used to endorse or promote products
+ *        derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package jqcadesigner.engines;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import jqcadesigner.JQCADConstants;
+import jqcadesigner.circuit.units.Cell;
+
+/**
+ * Works out the kink energies between neighboring cells, i.e., how much more
+ * energy two cells have with opposite polarizations than with the same one.
+ * Shared by the engines, so that they all see the same electrostatics.
+ */
+public final class KinkEnergyCalculator
+{
+	/**
+	 * The smallest number of rows worth handing to another thread.
+	 */
+	private static final int GRAIN = 512;
+
+	/**
+	 * 1 / (4 pi epsilon), for the relative permittivity the calculator was
+	 * made with.
+	 */
+	public final double kinkConstant;
+
+	private final CellKernel	_kernel;
+	private final double		_layerSeparation;
+	private final boolean		_memo;
+	private final ForkJoinPool	_pool;
+
+	/**
+	 * @param kernel Does the arithmetic.
+	 * @param epsilonR The relative permittivity.
+	 * @param layerSeparation The distance between two adjacent layers.
+	 * @param memo Whether to look pairs up by their geometry in a
+	 *		KinkEnergyMemo.
+	 * @param pool Used to work out the kink energies in parallel. May be null.
+	 */
+	public KinkEnergyCalculator(	CellKernel kernel, double epsilonR,
+									double layerSeparation, boolean memo,
+									ForkJoinPool pool )
+	{
+		kinkConstant = 1 / (JQCADConstants.FOUR_PI_EPSILON * epsilonR);
+
+		_kernel = kernel;
+		_layerSeparation = layerSeparation;
+		_memo = memo;
+		_pool = pool;
+	}
+
+	/**
+	 * Calculate the kink energies between every cell and its neighbors.
+	 *
+	 * The kink energy between two cells is the same in either direction, so
+	 * each pair is only calculated once, by the cell with the higher index,
+	 * and stored in both cells' rows. No two rows ever write to the same
+	 * entry, which lets the rows be split across threads.
+	 *
+	 * Unless the memo is turned off, pairs are also looked up by their
+	 * geometry in a KinkEnergyMemo, so that a regular layout only pays for
+	 * each distinct offset once per chunk of rows.
+	 *
+	 * @param cellList
+	 * @param offsets Where each cell's neighbors start in indices.
+	 * @param indices The neighbors of every cell, ascending within each row.
+	 * @return The kink energy for each entry in indices.
+	 */
+	public double[] calcKinkEnergies(	final Cell[] cellList,
+										final int[] offsets,
+										final int[] indices )
+	{
+		final double[] kinkEnergies = new double[ indices.length ];
+		final double[] dots = CellKernel.packDots( cellList );
+		final KinkEnergyMemo memo	= _memo
+									? new KinkEnergyMemo( cellList ) : null;
+
+		ParallelLoop.run( _pool, cellList.length, GRAIN, new ParallelLoop.Body()
+		{
+			public void run( int from, int to )
+			{
+				final KinkEnergyMemo.Table table	= memo == null
+													? null : memo.newTable();
+
+				for( int i = from; i < to; ++i )
+				{
+					final int end = offsets[ i + 1 ];
+
+					for( int k = offsets[i]; k < end; ++k )
+					{
+						final int j = indices[k];
+
+						// The rows are sorted, so the rest of the row belongs
+						// to cells with a higher index.
+						if( j > i )
+						{
+							break;
+						}
+
+						double kinkEnergy;
+
+						if( table == null )
+						{
+							kinkEnergy = calcKinkEnergy( cellList, dots, i, j );
+						}
+						else if( Double.isNaN( kinkEnergy = table.get( i, j ) ) )
+						{
+							kinkEnergy = calcKinkEnergy( cellList, dots, i, j );
+							table.put( i, j, kinkEnergy );
+						}
+
+						// The matching entry in the neighbor's row.
+						final int mirror = Arrays.binarySearch(	indices,
+																offsets[j],
+																offsets[ j + 1 ],
+																i );
+						assert mirror >= 0;
+
+						kinkEnergies[k] = kinkEnergy;
+						kinkEnergies[ mirror ] = kinkEnergy;
+					}
+				}
+			}
+		} );
+
+		return kinkEnergies;
+	}
+
+	/**
+	 * Calculate the kink energy between two cells.
+	 *
+	 * @param cellList
+	 * @param dots The packed dots of the cells, from CellKernel.packDots.
+	 * @param cell1 The index of the first cell.
+	 * @param cell2 The index of the second cell.
+	 * @return The kink energy.
+	 */
+	public double calcKinkEnergy(	final Cell[] cellList, final double[] dots,
+									final int cell1, final int cell2 )
+	{
+		final double zDiff	= Math.abs( cellList[ cell1 ].layerNum - cellList[ cell2 ].layerNum )
+							* _layerSeparation;
+
+		final double energySame = _kernel.kinkSum( dots, cell1, cell2, zDiff * zDiff );
+		final double energyDiff = -energySame;
+
+		return kinkConstant * (energyDiff - energySame);
+	}
+}
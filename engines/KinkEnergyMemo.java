@@ -0,0 +1,311 @@
+/*
+ *  Copyright (c) 2010 Robert Honer <rhoner@cs.ucla.edu>
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *      * Redistributions of source code must retain the above copyright
+ *        notice, this list of conditions and the following disclaimer.
+ *      * Redistributions in binary form must reproduce the above copyright
+ *        notice, this list of conditions and the following disclaimer in the
+ *        documentation and/or other materials provided with the distribution.
+ *      * Neither the name of the <organization> nor the
+ *        names of its contributors may be used to endorse or promote products
+ *        derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package jqcadesigner.engines;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import jqcadesigner.circuit.units.Cell;
+import jqcadesigner.circuit.units.QuantumDot;
+
+/**
+ * Remembers kink energies by the geometry of the pair of cells rather than
+ * by the cells themselves.
+ *
+ * The kink energy between two cells only depends on where their dots are
+ * relative to each other, i.e., on the offset between the two cells, the
+ * difference in their layers and where each cell's dots sit within the cell.
+ * On a regular layout a handful of such combinations covers nearly every
+ * pair, so most pairs cost a table lookup instead of 16 square roots.
+ *
+ * Offsets are quantized to QUANTUM nanometers, which is as precise as the
+ * coordinates in a circuit file are written. Pairs that share an entry get
+ * the energy of whichever pair filled it, so the results can differ from
+ * working out every pair on its own in the last bits. That's why the memo
+ * is only used when kink_energy_memo is turned on.
+ */
+public final class KinkEnergyMemo
+{
+	/**
+	 * The resolution, in nanometers, that offsets are rounded to.
+	 */
+	public static final double QUANTUM = 1e-6;
+
+	private final Cell[]	_cells;
+
+	/**
+	 * An id for each cell's dot pattern. Cells with the same dots relative to
+	 * their centers share an id.
+	 */
+	private final int[]		_patterns;
+
+	/**
+	 * False if there are too many dot patterns to pack into a key, in which
+	 * case nothing is remembered.
+	 */
+	private final boolean	_enabled;
+
+	/**
+	 * Sets up the memo for a set of cells.
+	 *
+	 * @param cells The cells, in the same order used to look them up.
+	 */
+	public KinkEnergyMemo( final Cell[] cells )
+	{
+		_cells = cells;
+		_patterns = new int[ cells.length ];
+
+		HashMap<DotPattern, Integer> ids = new HashMap<DotPattern, Integer>();
+
+		for( int i = 0; i < cells.length; ++i )
+		{
+			DotPattern pattern = new DotPattern( cells[i] );
+			Integer id = ids.get( pattern );
+
+			if( id == null )
+			{
+				id = ids.size();
+				ids.put( pattern, id );
+			}
+
+			_patterns[i] = id;
+		}
+
+		_enabled = ids.size() <= (1 << 24);
+	}
+
+	/**
+	 * Creates a table to remember kink energies in. Tables aren't thread safe,
+	 * so each thread should use its own.
+	 *
+	 * @return An empty table.
+	 */
+	public Table newTable()
+	{
+		return new Table();
+	}
+
+	private static long _quantize( double value )
+	{
+		return Math.round( value / QUANTUM );
+	}
+
+	/**
+	 * An open addressing hash table from pair geometry to kink energy.
+	 */
+	public final class Table
+	{
+		private long[]		_offsetKeys;
+		private long[]		_patternKeys;
+		private double[]	_values;
+		private boolean[]	_used;
+		private int			_size;
+
+		private Table()
+		{
+			_allocate( 64 );
+		}
+
+		/**
+		 * Looks up the kink energy between two cells.
+		 *
+		 * @param cell1 The index of the first cell.
+		 * @param cell2 The index of the second cell.
+		 * @return The kink energy, or NaN if no pair with the same geometry
+		 *		has been put in the table.
+		 */
+		public double get( int cell1, int cell2 )
+		{
+			final long offsetKey = _offsetKey( cell1, cell2 );
+			final long patternKey = _patternKey( cell1, cell2 );
+
+			if( !_enabled || offsetKey == Long.MIN_VALUE )
+			{
+				return Double.NaN;
+			}
+
+			final int slot = _find( offsetKey, patternKey );
+
+			return _used[ slot ] ? _values[ slot ] : Double.NaN;
+		}
+
+		/**
+		 * Remembers the kink energy between two cells, for them and every
+		 * other pair with the same geometry.
+		 *
+		 * @param cell1 The index of the first cell.
+		 * @param cell2 The index of the second cell.
+		 * @param kinkEnergy
+		 */
+		public void put( int cell1, int cell2, double kinkEnergy )
+		{
+			final long offsetKey = _offsetKey( cell1, cell2 );
+			final long patternKey = _patternKey( cell1, cell2 );
+
+			if( !_enabled || offsetKey == Long.MIN_VALUE )
+			{
+				return;
+			}
+
+			int slot = _find( offsetKey, patternKey );
+
+			if( !_used[ slot ] )
+			{
+				if( (_size + 1) * 2 > _used.length )
+				{
+					_grow();
+					slot = _find( offsetKey, patternKey );
+				}
+
+				_used[ slot ] = true;
+				_offsetKeys[ slot ] = offsetKey;
+				_patternKeys[ slot ] = patternKey;
+				++_size;
+			}
+
+			_values[ slot ] = kinkEnergy;
+		}
+
+		/**
+		 * Packs the quantized offset between the cells into a long.
+		 *
+		 * @return The key, or Long.MIN_VALUE if the offset is too big to pack.
+		 */
+		private long _offsetKey( int cell1, int cell2 )
+		{
+			final Cell c1 = _cells[ cell1 ];
+			final Cell c2 = _cells[ cell2 ];
+
+			final long xOffset = _quantize( c2.xCoord - c1.xCoord );
+			final long yOffset = _quantize( c2.yCoord - c1.yCoord );
+
+			if( xOffset != (int)xOffset || yOffset != (int)yOffset )
+			{
+				return Long.MIN_VALUE;
+			}
+
+			return (xOffset << 32) | (yOffset & 0xffffffffL);
+		}
+
+		/**
+		 * Packs the layer difference and both dot patterns into a long.
+		 */
+		private long _patternKey( int cell1, int cell2 )
+		{
+			final long layerDiff = _cells[ cell2 ].layerNum - _cells[ cell1 ].layerNum;
+
+			return	((long)_patterns[ cell1 ] << 40)
+					^ ((long)_patterns[ cell2 ] << 16)
+					^ (layerDiff & 0xffffL);
+		}
+
+		private int _find( long offsetKey, long patternKey )
+		{
+			final int mask = _used.length - 1;
+
+			long hash = offsetKey * 0x9e3779b97f4a7c15L + patternKey;
+			hash ^= hash >>> 29;
+
+			int slot = (int)hash & mask;
+
+			while( _used[ slot ]
+				&& (_offsetKeys[ slot ] != offsetKey || _patternKeys[ slot ] != patternKey) )
+			{
+				slot = (slot + 1) & mask;
+			}
+
+			return slot;
+		}
+
+		private void _allocate( int capacity )
+		{
+			_offsetKeys = new long[ capacity ];
+			_patternKeys = new long[ capacity ];
+			_values = new double[ capacity ];
+			_used = new boolean[ capacity ];
+			_size = 0;
+		}
+
+		private void _grow()
+		{
+			final long[] offsetKeys = _offsetKeys;
+			final long[] patternKeys = _patternKeys;
+			final double[] values = _values;
+			final boolean[] used = _used;
+
+			_allocate( used.length * 2 );
+
+			for( int i = 0; i < used.length; ++i )
+			{
+				if( used[i] )
+				{
+					final int slot = _find( offsetKeys[i], patternKeys[i] );
+
+					_used[ slot ] = true;
+					_offsetKeys[ slot ] = offsetKeys[i];
+					_patternKeys[ slot ] = patternKeys[i];
+					_values[ slot ] = values[i];
+					++_size;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Where a cell's dots sit relative to its center, quantized.
+	 */
+	private static final class DotPattern
+	{
+		private final long[] _offsets;
+
+		public DotPattern( Cell cell )
+		{
+			final QuantumDot[] dots = cell.dots;
+
+			_offsets = new long[ dots.length * 2 ];
+
+			for( int i = 0; i < dots.length; ++i )
+			{
+				_offsets[ 2*i ] = _quantize( dots[i].xCoord - cell.xCoord );
+				_offsets[ 2*i + 1 ] = _quantize( dots[i].yCoord - cell.yCoord );
+			}
+		}
+
+		@Override
+		public boolean equals( Object obj )
+		{
+			return obj instanceof DotPattern
+				&& Arrays.equals( _offsets, ((DotPattern)obj)._offsets );
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return Arrays.hashCode( _offsets );
+		}
+	}
+}
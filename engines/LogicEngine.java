@@ -0,0 +1,633 @@
+/*
+ *  Copyright (c) 2010 Robert Honer <rhoner@cs.ucla.edu>
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *      * Redistributions of source code must retain the above copyright
+ *        notice, this list of conditions and the following disclaimer.
+ *      * Redistributions in binary form must reproduce the above copyright
+ *        notice, this list of conditions and the following disclaimer in the
+ *        documentation and/or other materials provided with the distribution.
+ *      * Neither the name of the <organization> nor the
+ *        names of its contributors may be used to endorse or promote products
+ *        derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package jqcadesigner.engines;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Arrays;
+import jqcadesigner.VectorTable;
+import jqcadesigner.circuit.Circuit;
+import jqcadesigner.circuit.DataTrace;
+import jqcadesigner.circuit.units.Cell;
+import jqcadesigner.circuit.units.InputCell;
+import jqcadesigner.circuit.units.OutputCell;
+import jqcadesigner.config.ConfigFile;
+import jqcadesigner.config.syntaxtree.SectionGroup;
+import jqcadesigner.config.syntaxtree.SettingsSection;
+
+/**
+ * Works out the logic function of the circuit without simulating any
+ * polarizations.
+ *
+ * The circuit is turned into a LogicNetlist, which is then evaluated for
+ * every vector in the vector table at once: each cell's values for 64 vectors
+ * are packed into a long, so a majority gate costs a handful of boolean
+ * operations per 64 vectors. Wires and inverters don't cost anything, since
+ * they're just the cell driving them, maybe inverted and maybe a cycle late.
+ *
+ * Every vector takes one clock cycle, and an output's values line up with the
+ * bistable engine's, one per cycle, -1 where the value isn't known yet, e.g.,
+ * before the first vector has made it through the pipeline. Inputs are taken
+ * as ideal logic values. Since only the logic is simulated, a circuit that
+ * works here can still fail in the bistable engine, e.g., from badly placed
+ * cells, but not the other way around, making it a cheap check to run first.
+ */
+public class LogicEngine extends Engine
+{
+	public static final class DefaultConfig
+	{
+		public static final double	RADIUS_OF_EFFECT			= 65.00;
+		public static final double	EPSILON_R					= 12.9;
+		public static final double	LAYER_SEPARATION			= 10;
+		public static final double	COUPLING_THRESHOLD			= LogicNetlist.DEFAULT_COUPLING_THRESHOLD;
+	}
+
+	/**
+	 * Threshold gates with more drivers than this are evaluated one vector
+	 * at a time instead of through a truth table.
+	 */
+	protected static final int MAX_TABLE_DRIVERS = 8;
+
+	protected final double _radiusOfEffect;
+	protected final double _epsilonR;
+	protected final double _layerSeparation;
+	protected final double _couplingThreshold;
+
+	protected final CellKernel _kernel;
+
+	protected LogicNetlist _netlist;
+
+	/**
+	 * The number of vectors, and the number of longs it takes to hold a bit
+	 * for each.
+	 */
+	protected int _vectorCount;
+	protected int _words;
+
+	/**
+	 * The values of each cell, a bit per vector, and which of those bits are
+	 * known. Null for cells that carry another cell's signal.
+	 */
+	protected long[][] _values;
+	protected long[][] _known;
+
+	public LogicEngine( Circuit circuit )
+		throws	FileNotFoundException, IOException, ConfigFile.ParseException,
+				EngineException
+	{
+		this( circuit, null );
+	}
+
+	public LogicEngine( Circuit circuit, String configFileName )
+		throws	FileNotFoundException, IOException, ConfigFile.ParseException,
+				EngineException
+	{
+		super( circuit, configFileName );
+
+		// The same config file is handed to every engine, so it may well not
+		// have a LOGIC_OPTIONS section. Use the defaults if it doesn't.
+		SettingsSection configSect = new SettingsSection();
+
+		if( _configFile != null )
+		{
+			SectionGroup group = _configFile.get( "LOGIC_OPTIONS" );
+
+			if( group != null && !group.isEmpty() && group.get( 0 ).hasSettings() )
+			{
+				configSect = (SettingsSection)group.get( 0 );
+			}
+		}
+
+		_radiusOfEffect		= configSect.get(	"radius_of_effect",
+												DefaultConfig.RADIUS_OF_EFFECT );
+
+		_epsilonR			= configSect.get(	"epsilonR",
+												DefaultConfig.EPSILON_R );
+
+		_layerSeparation	= configSect.get(	"layer_separation",
+												DefaultConfig.LAYER_SEPARATION );
+
+		_couplingThreshold	= configSect.get(	"coupling_threshold",
+												DefaultConfig.COUPLING_THRESHOLD );
+
+		if( _couplingThreshold < 0 || _couplingThreshold >= 1 )
+		{
+			String msg = "The coupling threshold must be at least 0 and less than 1.";
+			throw new EngineException( msg );
+		}
+
+		_kernel = CellKernel.scalar();
+	}
+
+	/**
+	 * The netlist of the last run.
+	 *
+	 * @return The netlist, or null if nothing's been run yet.
+	 */
+	public LogicNetlist getNetlist()
+	{
+		return _netlist;
+	}
+
+	@Override
+	protected void _init( VectorTable vectorTable )
+	{
+		_log.info( "Logic engine initializing..." );
+
+		_vectorCount = vectorTable.inputs.length > 0 ? vectorTable.inputs[0].length : 0;
+		_words = (_vectorCount + 63) >>> 6;
+
+		// Sets which inputs are active, which decides what's a source.
+		_circuit.updateInputs( vectorTable, Math.max( _vectorCount, 1 ) );
+
+		final Cell[] cellList = _circuit.getCellList();
+
+		final CellNetwork topology = CellNetwork.withNeighbors(	cellList,
+																_radiusOfEffect,
+																_layerSeparation,
+																null );
+
+		final KinkEnergyCalculator kinkCalculator
+			= new KinkEnergyCalculator( _kernel, _epsilonR, _layerSeparation, true, null );
+
+		final CellNetwork network = topology.withKinkEnergies(
+			kinkCalculator.calcKinkEnergies(	cellList,
+												topology.neighborOffsets,
+												topology.neighborIndices ) );
+
+		_netlist = LogicNetlist.extract( network, _couplingThreshold );
+
+		final int cellCount = cellList.length;
+		final LogicNetlist.Gate[] gates = _netlist.gates;
+
+		_values = new long[ cellCount ][];
+		_known = new long[ cellCount ][];
+
+		// Wires and inverters just read the cell whose signal they carry.
+		for( int i = 0; i < cellCount; ++i )
+		{
+			if( _netlist.signalOf[i] == i )
+			{
+				_values[i] = new long[ _words ];
+				_known[i] = new long[ _words ];
+			}
+		}
+
+		// Fill in the sources.
+		final InputCell[] inputCells = _circuit.getInputCells();
+
+		for( int i = 0; i < inputCells.length; ++i )
+		{
+			final int cell = network.indexOf( inputCells[i] );
+
+			if( cell < 0 || gates[ cell ] != LogicNetlist.Gate.SOURCE )
+			{
+				continue;
+			}
+
+			final boolean[] inputs = vectorTable.inputs[i];
+
+			for( int vector = 0; vector < _vectorCount; ++vector )
+			{
+				_known[ cell ][ vector >>> 6 ] |= 1L << vector;
+
+				if( inputs[ vector ] )
+				{
+					_values[ cell ][ vector >>> 6 ] |= 1L << vector;
+				}
+			}
+		}
+
+		for( int i = 0; i < cellCount; ++i )
+		{
+			final double polarization = cellList[i].getPolarization();
+
+			if(		cellList[i].function == Cell.Function.FIXED
+				&&	polarization != 0 )
+			{
+				_fill( _known[i], _vectorCount );
+
+				if( polarization > 0 )
+				{
+					_fill( _values[i], _vectorCount );
+				}
+			}
+		}
+	}
+
+	@Override
+	protected RunResults _run( VectorTable vectorTable )
+	{
+		_log.info( "Logic engine running..." );
+
+		_startProgress( 0 );
+
+		final long[] values = new long[ _words ];
+		final long[] known = new long[ _words ];
+
+		boolean stopped = false;
+
+		for( int v : _netlist.order )
+		{
+			// Not much can take long here, but a huge netlist might.
+			if( _stopSimulation )
+			{
+				stopped = true;
+				break;
+			}
+
+			if( _netlist.signalOf[v] == v )
+			{
+				_evaluate( v, _values[v], _known[v] );
+			}
+		}
+
+		_reportProgress( _vectorCount, _vectorCount, 0, true );
+
+		// Read off the outputs.
+		final OutputCell[] outputCells = _circuit.getOutputCells();
+		final DataTrace[] outputTraces = new DataTrace[ outputCells.length ];
+		final byte[][] outputValues = new byte[ outputCells.length ][];
+
+		for( int i = 0; i < outputCells.length; ++i )
+		{
+			final int cell = _netlist.network.indexOf( outputCells[i] );
+
+			outputTraces[i] = new DataTrace( outputCells[i].getName(), _vectorCount );
+			outputValues[i] = new byte[ _vectorCount ];
+			Arrays.fill( known, 0 );
+
+			if( cell >= 0 )
+			{
+				_read( cell, 0, false, values, known );
+			}
+
+			for( int vector = 0; vector < _vectorCount; ++vector )
+			{
+				if( (known[ vector >>> 6 ] & (1L << vector)) == 0 )
+				{
+					outputValues[i][ vector ] = -1;
+					outputTraces[i].set( vector, 0 );
+				}
+				else
+				{
+					final boolean value = (values[ vector >>> 6 ] & (1L << vector)) != 0;
+
+					outputValues[i][ vector ] = (byte)(value ? 1 : 0);
+					outputTraces[i].set( vector, value ? 1 : -1 );
+				}
+			}
+		}
+
+		RunResults results = new RunResults( outputCells, outputValues, outputTraces );
+		results.stopped = stopped;
+
+		return results;
+	}
+
+	/**
+	 * Works out the values of a cell from its drivers.
+	 *
+	 * @param v The cell.
+	 * @param values Where the values go.
+	 * @param known Where the bits saying which values are known go.
+	 */
+	protected void _evaluate( int v, long[] values, long[] known )
+	{
+		final LogicNetlist netlist = _netlist;
+		final int from = netlist.driverOffsets[v];
+		final int count = netlist.driverOffsets[ v + 1 ] - from;
+		final int words = _words;
+
+		switch( netlist.gates[v] )
+		{
+			case UNDRIVEN:
+				Arrays.fill( values, 0 );
+				Arrays.fill( known, 0 );
+				break;
+
+			case MAJORITY:
+			{
+				final long[][] inValues = new long[3][ words ];
+				final long[][] inKnown = new long[3][ words ];
+
+				_readDrivers( from, 3, inValues, inKnown );
+
+				for( int w = 0; w < words; ++w )
+				{
+					final long a = inValues[0][w], b = inValues[1][w], c = inValues[2][w];
+					final long ka = inKnown[0][w], kb = inKnown[1][w], kc = inKnown[2][w];
+
+					values[w] = (a & b) | (a & c) | (b & c);
+
+					// Two known drivers that agree are enough.
+					known[w]	= (ka & kb & kc)
+								| (ka & kb & ~(a ^ b))
+								| (ka & kc & ~(a ^ c))
+								| (kb & kc & ~(b ^ c));
+				}
+
+				break;
+			}
+
+			case THRESHOLD:
+			{
+				final long[][] inValues = new long[ count ][ words ];
+				final long[][] inKnown = new long[ count ][ words ];
+
+				_readDrivers( from, count, inValues, inKnown );
+
+				if( count <= MAX_TABLE_DRIVERS )
+				{
+					_evaluateTable( from, count, inValues, inKnown, values, known );
+				}
+				else
+				{
+					_evaluateEach( from, count, inValues, inKnown, values, known );
+				}
+
+				break;
+			}
+
+			default:
+				// Sources already have their values, and wires and inverters
+				// don't have any of their own.
+		}
+	}
+
+	/**
+	 * Evaluates a threshold gate by going through every combination of its
+	 * drivers' values. A combination where the weights cancel out leaves the
+	 * value unknown. The drivers have already been inverted where their
+	 * weights are negative, so only the sizes of the weights matter.
+	 */
+	private void _evaluateTable(	int from, int count,
+									long[][] inValues, long[][] inKnown,
+									long[] values, long[] known )
+	{
+		final double[] weights = _netlist.driverWeights;
+		final int words = _words;
+
+		double totalWeight = 0;
+
+		for( int j = 0; j < count; ++j )
+		{
+			totalWeight += Math.abs( weights[ from + j ] );
+		}
+
+		Arrays.fill( values, 0 );
+		Arrays.fill( known, 0 );
+
+		for( int combination = 0; combination < (1 << count); ++combination )
+		{
+			double sum = 0;
+
+			for( int j = 0; j < count; ++j )
+			{
+				final double weight = Math.abs( weights[ from + j ] );
+
+				sum += (combination & (1 << j)) != 0 ? weight : -weight;
+			}
+
+			if( Math.abs( sum ) <= totalWeight * 1e-9 )
+			{
+				continue;
+			}
+
+			for( int w = 0; w < words; ++w )
+			{
+				long match = -1L;
+
+				for( int j = 0; j < count; ++j )
+				{
+					match	&= inKnown[j][w]
+							& ((combination & (1 << j)) != 0 ? inValues[j][w] : ~inValues[j][w]);
+				}
+
+				known[w] |= match;
+
+				if( sum > 0 )
+				{
+					values[w] |= match;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Evaluates a threshold gate one vector at a time, the same way as
+	 * _evaluateTable.
+	 */
+	private void _evaluateEach(	int from, int count,
+								long[][] inValues, long[][] inKnown,
+								long[] values, long[] known )
+	{
+		final double[] weights = _netlist.driverWeights;
+
+		double totalWeight = 0;
+
+		for( int j = 0; j < count; ++j )
+		{
+			totalWeight += Math.abs( weights[ from + j ] );
+		}
+
+		Arrays.fill( values, 0 );
+		Arrays.fill( known, 0 );
+
+		for( int vector = 0; vector < _vectorCount; ++vector )
+		{
+			final int w = vector >>> 6;
+			final long bit = 1L << vector;
+
+			double sum = 0;
+			boolean allKnown = true;
+
+			for( int j = 0; j < count && allKnown; ++j )
+			{
+				final double weight = Math.abs( weights[ from + j ] );
+
+				allKnown = (inKnown[j][w] & bit) != 0;
+				sum += (inValues[j][w] & bit) != 0 ? weight : -weight;
+			}
+
+			if( allKnown && Math.abs( sum ) > totalWeight * 1e-9 )
+			{
+				known[w] |= bit;
+
+				if( sum > 0 )
+				{
+					values[w] |= bit;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads the values of a cell's drivers, each inverted if it's coupled
+	 * to the cell by a negative kink energy.
+	 */
+	private void _readDrivers( int from, int count, long[][] inValues, long[][] inKnown )
+	{
+		final LogicNetlist netlist = _netlist;
+
+		for( int j = 0; j < count; ++j )
+		{
+			_read(	netlist.driverIndices[ from + j ],
+					netlist.driverDelays[ from + j ],
+					netlist.driverWeights[ from + j ] < 0,
+					inValues[j], inKnown[j] );
+		}
+	}
+
+	/**
+	 * Reads the values of a cell.
+	 *
+	 * @param cell
+	 * @param delay How many cycles late to read them.
+	 * @param invert Whether to invert them.
+	 * @param values Where the values go.
+	 * @param known Where the bits saying which values are known go.
+	 */
+	protected void _read(	int cell, int delay, boolean invert,
+							long[] values, long[] known )
+	{
+		final int root = _netlist.signalOf[ cell ];
+
+		delay += _netlist.signalDelays[ cell ];
+		invert ^= _netlist.signalInverted[ cell ];
+
+		_shift( _values[ root ], delay, values );
+		_shift( _known[ root ], delay, known );
+
+		if( invert )
+		{
+			for( int w = 0; w < values.length; ++w )
+			{
+				values[w] = ~values[w];
+			}
+		}
+	}
+
+	/**
+	 * Moves every bit up by some number of vectors. The bits shifted in
+	 * at the bottom are 0.
+	 */
+	private static void _shift( long[] from, int bits, long[] to )
+	{
+		final int words = bits >>> 6;
+		final int rest = bits & 63;
+
+		for( int w = to.length - 1; w >= 0; --w )
+		{
+			final int source = w - words;
+
+			long word = source >= 0 ? from[ source ] << rest : 0;
+
+			if( rest != 0 && source > 0 )
+			{
+				word |= from[ source - 1 ] >>> (64 - rest);
+			}
+
+			to[w] = word;
+		}
+	}
+
+	/**
+	 * Sets the first count bits.
+	 */
+	private static void _fill( long[] bits, int count )
+	{
+		for( int i = 0; i < count; ++i )
+		{
+			bits[ i >>> 6 ] |= 1L << i;
+		}
+	}
+
+	public class RunResults extends Engine.RunResults
+	{
+		protected final OutputCell[] _outputCells;
+
+		/**
+		 * @param outputCells
+		 * @param outputValues The values of each output cell, in the same
+		 *		order.
+		 * @param outputTraces The polarization of each output cell for each
+		 *		vector, 0 if unknown.
+		 */
+		public RunResults(	OutputCell[] outputCells, byte[][] outputValues,
+							DataTrace[] outputTraces )
+		{
+			assert outputValues.length == outputCells.length;
+			assert outputTraces.length == outputCells.length;
+
+			_outputCells = outputCells;
+
+			for( int i = 0; i < outputCells.length; ++i )
+			{
+				String name = outputCells[i].getName();
+				_outputValues.put( name, outputValues[i] );
+				_outputTraces.put( name, outputTraces[i] );
+			}
+		}
+
+		@Override
+		public void printStats()
+		{
+			System.out.printf( "Initialization time: %dms\n", initTime );
+			System.out.printf( "Run time: %dms\n", runTime );
+
+			if( stopped )
+			{
+				System.out.println( "Stopped before the outputs were worked out" );
+			}
+
+			System.out.printf(	"Netlist: %d wire cells, %d inverters, %d majority gates, "
+								+ "%d threshold gates, %d crossover cells, %d undriven cells\n",
+								_netlist.getCount( LogicNetlist.Gate.BUFFER ),
+								_netlist.getCount( LogicNetlist.Gate.INVERTER ),
+								_netlist.getCount( LogicNetlist.Gate.MAJORITY ),
+								_netlist.getCount( LogicNetlist.Gate.THRESHOLD ),
+								_netlist.getCrossoverCount(),
+								_netlist.getCount( LogicNetlist.Gate.UNDRIVEN ) );
+
+			System.out.println( "Outputs:");
+			for( int i = 0; i < _outputCells.length; ++i )
+			{
+				System.out.printf( "%10s", _outputCells[i].getName() );
+
+				for( byte v : _outputValues.get( _outputCells[i].getName() ) )
+				{
+					System.out.printf( " %d", v );
+				}
+
+				System.out.println();
+			}
+		}
+	}
+}
@@ -0,0 +1,648 @@
+/*
+ *  Copyright (c) 2010 Robert Honer <rhoner@cs.ucla.edu>
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *      * Redistributions of source code must retain the above copyright
+ *        notice, this list of conditions and the following disclaimer.
+ *      * Redistributions in binary form must reproduce the above copyright
+ *        notice, this list of conditions and the following disclaimer in the
+ *        documentation and/or other materials provided with the distribution.
+ *      * Neither the name of the <organization> nor the
+ *        names of its contributors may be used to endorse or promote products
+ *        derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package jqcadesigner.engines;
+
+import java.util.Arrays;
+import java.util.PriorityQueue;
+import jqcadesigner.circuit.units.Cell;
+import jqcadesigner.circuit.units.InputCell;
+
+/**
+ * The gate-level view of a circuit: which cells drive which, and what logic
+ * function each cell computes from its drivers.
+ *
+ * Signals flow out of the sources, i.e., the active input cells and the fixed
+ * cells, to neighbors in the same clock zone or the next one. A cell's
+ * drivers are the strongly coupled neighbors the signal reaches it from, and
+ * its value is the sign of their polarizations weighted by the kink energies,
+ * which is where a zero temperature bistable cell settles. Most cells have
+ * one driver that outweighs the rest, making them wires (buffers) or
+ * inverters. Three drivers none of which outweighs the other two make a
+ * majority gate. Anything else is kept as a general threshold gate.
+ * Crossover cells don't couple to normal ones, so they fall out as ordinary
+ * wires that happen to cross.
+ *
+ * Which way a signal goes between two neighbors is decided by which is
+ * closer to an output, where a weak coupling counts as a long way. Going by
+ * the distance from the sources instead would get the arms of a majority gate
+ * wrong whenever one is longer than the others, since the gate's center would
+ * be reached through a shorter arm first and seem to drive the longer one.
+ * Since every cell drives only cells closer to an output, the netlist has no
+ * loops; a clocked loop, e.g., in a memory cell, is cut where it's furthest
+ * from an output.
+ */
+public final class LogicNetlist
+{
+	public static enum Gate
+	{
+		/**
+		 * An active input or a fixed cell.
+		 */
+		SOURCE,
+
+		/**
+		 * No signal reaches the cell, so its value is never known.
+		 */
+		UNDRIVEN,
+
+		BUFFER,
+		INVERTER,
+		MAJORITY,
+		THRESHOLD
+	}
+
+	/**
+	 * Neighbors coupled more weakly than this, relative to a cell's strongest
+	 * coupling, don't count as drivers. It's well above the coupling between
+	 * cells two apart in a wire, and well below that of diagonal neighbors.
+	 */
+	public static final double DEFAULT_COUPLING_THRESHOLD = 0.1;
+
+	public final CellNetwork network;
+
+	/**
+	 * The gate each cell computes.
+	 */
+	public final Gate[] gates;
+
+	/**
+	 * The drivers of cell i are driverIndices[ driverOffsets[i] ] through
+	 * driverIndices[ driverOffsets[i+1] - 1 ], strongest first. Each has a
+	 * weight, the kink energy between the two cells, and a delay, the number
+	 * of clock cycles late the driver's value is read.
+	 */
+	public final int[]		driverOffsets;
+	public final int[]		driverIndices;
+	public final double[]	driverWeights;
+	public final int[]		driverDelays;
+
+	/**
+	 * The non-source cells in an order where every driver comes before the
+	 * cells it drives.
+	 */
+	public final int[] order;
+
+	/**
+	 * The cell whose signal each cell carries, whether it's inverted, and
+	 * how many cycles late. Wires and inverters carry the signal of whatever
+	 * drives them, while the sources and the other gates start signals of
+	 * their own.
+	 */
+	public final int[]		signalOf;
+	public final boolean[]	signalInverted;
+	public final int[]		signalDelays;
+
+	private final int[] _gateCounts;
+
+	/**
+	 * Extracts the netlist with the default coupling threshold.
+	 *
+	 * @param network The cells, with their kink energies worked out.
+	 * @return The netlist.
+	 */
+	public static LogicNetlist extract( CellNetwork network )
+	{
+		return extract( network, DEFAULT_COUPLING_THRESHOLD );
+	}
+
+	/**
+	 * Extracts the netlist.
+	 *
+	 * @param network The cells, with their kink energies worked out.
+	 * @param couplingThreshold How strongly a neighbor has to be coupled to a
+	 *		cell, relative to the cell's strongest coupling, to drive it.
+	 * @return The netlist.
+	 */
+	public static LogicNetlist extract( CellNetwork network, double couplingThreshold )
+	{
+		return new LogicNetlist( network, couplingThreshold );
+	}
+
+	private LogicNetlist( CellNetwork net, double couplingThreshold )
+	{
+		network = net;
+
+		final Cell[] cells = net.cells;
+		final int cellCount = cells.length;
+		final int[] offsets = net.neighborOffsets;
+		final int[] neighbors = net.neighborIndices;
+		final double[] ke = net.kinkEnergies;
+
+		final boolean[] sources = new boolean[ cellCount ];
+		final boolean[] outputs = new boolean[ cellCount ];
+
+		for( int i = 0; i < cellCount; ++i )
+		{
+			sources[i] = isSource( cells[i] );
+			outputs[i] = cells[i].function == Cell.Function.OUTPUT;
+		}
+
+		// Each cell's strongest coupling, and how strongly a neighbor must be
+		// coupled to it to count.
+		final double[] strongest = new double[ cellCount ];
+		final double[] minCoupling = new double[ cellCount ];
+
+		for( int i = 0; i < cellCount; ++i )
+		{
+			for( int k = offsets[i]; k < offsets[ i + 1 ]; ++k )
+			{
+				strongest[i] = Math.max( strongest[i], Math.abs( ke[k] ) );
+			}
+
+			minCoupling[i] = Math.max( strongest[i] * couplingThreshold, Double.MIN_VALUE );
+		}
+
+		final double[] fromSources = _distances( sources, strongest, minCoupling, sources, true );
+		final double[] toOutputs = _distances( outputs, strongest, minCoupling, sources, false );
+
+		// A cell drives the neighbors closer to an output than it is. The ones
+		// that lead to no output can't change the results, so they're just
+		// driven by the neighbors closer to a source.
+		final int[][] drivers = new int[ cellCount ][];
+		final int[] driverCounts = new int[ cellCount ];
+
+		for( int v = 0; v < cellCount; ++v )
+		{
+			drivers[v] = new int[ 4 ];
+
+			if( sources[v] || fromSources[v] == Double.POSITIVE_INFINITY )
+			{
+				continue;
+			}
+
+			for( int k = offsets[v]; k < offsets[ v + 1 ]; ++k )
+			{
+				final int u = neighbors[k];
+
+				if(		fromSources[u] == Double.POSITIVE_INFINITY
+					||	Math.abs( ke[k] ) < minCoupling[v]
+					||	!_canDrive( cells, sources, u, v ) )
+				{
+					continue;
+				}
+
+				final boolean downstream	= toOutputs[u] != Double.POSITIVE_INFINITY
+											? toOutputs[v] < toOutputs[u]
+												|| toOutputs[v] == Double.POSITIVE_INFINITY
+											: toOutputs[v] == Double.POSITIVE_INFINITY
+												&& fromSources[u] < fromSources[v];
+
+				if( downstream )
+				{
+					_addDriver( drivers, driverCounts, v, u );
+				}
+			}
+		}
+
+		// Flatten the drivers, strongest first, and classify the gates.
+		gates = new Gate[ cellCount ];
+		driverOffsets = new int[ cellCount + 1 ];
+
+		for( int v = 0; v < cellCount; ++v )
+		{
+			driverOffsets[ v + 1 ] = driverOffsets[v] + driverCounts[v];
+		}
+
+		final int driverTotal = driverOffsets[ cellCount ];
+
+		driverIndices = new int[ driverTotal ];
+		driverWeights = new double[ driverTotal ];
+		driverDelays = new int[ driverTotal ];
+		_gateCounts = new int[ Gate.values().length ];
+
+		for( int v = 0; v < cellCount; ++v )
+		{
+			final int from = driverOffsets[v];
+			final int count = driverCounts[v];
+
+			for( int j = 0; j < count; ++j )
+			{
+				final int u = drivers[v][j];
+				double weight = 0;
+
+				for( int k = offsets[v]; k < offsets[ v + 1 ]; ++k )
+				{
+					if( neighbors[k] == u )
+					{
+						weight = ke[k];
+						break;
+					}
+				}
+
+				// Insertion sort by strength; there are only a few.
+				int slot = from + j;
+
+				while(		slot > from
+						&&	Math.abs( driverWeights[ slot - 1 ] ) < Math.abs( weight ) )
+				{
+					driverIndices[ slot ] = driverIndices[ slot - 1 ];
+					driverWeights[ slot ] = driverWeights[ slot - 1 ];
+					--slot;
+				}
+
+				driverIndices[ slot ] = u;
+				driverWeights[ slot ] = weight;
+			}
+
+			for( int k = from; k < from + count; ++k )
+			{
+				driverDelays[k] = _delay( cells, sources, driverIndices[k], v );
+			}
+
+			gates[v] = _classify( sources[v], from, count );
+		}
+
+		order = _sort( sources );
+
+		signalOf = new int[ cellCount ];
+		signalInverted = new boolean[ cellCount ];
+		signalDelays = new int[ cellCount ];
+
+		for( int i = 0; i < cellCount; ++i )
+		{
+			signalOf[i] = i;
+		}
+
+		for( int v : order )
+		{
+			_traceSignal( v );
+		}
+
+		for( int v = 0; v < cellCount; ++v )
+		{
+			++_gateCounts[ gates[v].ordinal() ];
+		}
+	}
+
+	/**
+	 * Whether a cell holds its value regardless of its neighbors.
+	 *
+	 * @param cell
+	 * @return True for active input cells and fixed cells.
+	 */
+	public static boolean isSource( Cell cell )
+	{
+		return	cell.function == Cell.Function.FIXED
+			||	(cell.function == Cell.Function.INPUT && ((InputCell)cell).active);
+	}
+
+	/**
+	 * The number of cells that compute a kind of gate.
+	 *
+	 * @param gate
+	 * @return The count.
+	 */
+	public int getCount( Gate gate )
+	{
+		return _gateCounts[ gate.ordinal() ];
+	}
+
+	/**
+	 * The number of cells in crossover mode that take part in the logic.
+	 *
+	 * @return The count.
+	 */
+	public int getCrossoverCount()
+	{
+		int count = 0;
+
+		for( int i = 0; i < gates.length; ++i )
+		{
+			if(		network.cells[i].mode == Cell.Mode.CROSSOVER
+				&&	gates[i] != Gate.UNDRIVEN )
+			{
+				++count;
+			}
+		}
+
+		return count;
+	}
+
+	/**
+	 * Whether a signal can go from one cell to a neighbor. Sources drive any
+	 * neighbor, other cells only the ones in their clock zone or the next.
+	 */
+	private static boolean _canDrive( Cell[] cells, boolean[] sources, int from, int to )
+	{
+		if( sources[ to ] )
+		{
+			return false;
+		}
+
+		if( sources[ from ] )
+		{
+			return true;
+		}
+
+		final int step = (cells[ to ].clockNum - cells[ from ].clockNum + 4) & 3;
+
+		return step == 0 || step == 1;
+	}
+
+	/**
+	 * How many cycles late a cell reads a driver.
+	 *
+	 * Within a cycle the clock zones latch in the order 2, 3, 0, 1, since
+	 * that's the order their clocks first go low. Zone 2 latches right at the
+	 * start of a cycle, while the inputs are still changing over, so it reads
+	 * zone 1 and the inputs as they were the cycle before.
+	 */
+	private static int _delay( Cell[] cells, boolean[] sources, int from, int to )
+	{
+		if( cells[ from ].function == Cell.Function.FIXED )
+		{
+			return 0;
+		}
+
+		return	cells[ to ].clockNum == 2
+				&& (sources[ from ] || cells[ from ].clockNum == 1) ? 1 : 0;
+	}
+
+	private Gate _classify( boolean source, int from, int count )
+	{
+		if( source )
+		{
+			return Gate.SOURCE;
+		}
+
+		if( count == 0 )
+		{
+			return Gate.UNDRIVEN;
+		}
+
+		double others = 0;
+
+		for( int k = from + 1; k < from + count; ++k )
+		{
+			others += Math.abs( driverWeights[k] );
+		}
+
+		final double strongest = Math.abs( driverWeights[ from ] );
+
+		if( strongest > others )
+		{
+			return driverWeights[ from ] > 0 ? Gate.BUFFER : Gate.INVERTER;
+		}
+
+		// With no one driver outweighing the other two, any two that agree
+		// win.
+		if( count == 3 && strongest < others )
+		{
+			return Gate.MAJORITY;
+		}
+
+		return Gate.THRESHOLD;
+	}
+
+	/**
+	 * Works out which signal a cell carries, given that its drivers' are
+	 * already worked out. A gate whose drivers all carry the same signal,
+	 * e.g., the output of an inverter, which is driven by the two branches
+	 * the inverter splits its input into, is really a wire or an inverter.
+	 */
+	private void _traceSignal( int v )
+	{
+		final int from = driverOffsets[v];
+		final int to = driverOffsets[ v + 1 ];
+
+		if(		gates[v] == Gate.MAJORITY
+			||	gates[v] == Gate.THRESHOLD )
+		{
+			boolean same = true;
+
+			for( int k = from + 1; k < to && same; ++k )
+			{
+				same	=	signalOf[ driverIndices[k] ] == signalOf[ driverIndices[ from ] ]
+						&&	(signalInverted[ driverIndices[k] ] ^ (driverWeights[k] < 0))
+							== (signalInverted[ driverIndices[ from ] ] ^ (driverWeights[ from ] < 0))
+						&&	signalDelays[ driverIndices[k] ] + driverDelays[k]
+							== signalDelays[ driverIndices[ from ] ] + driverDelays[ from ];
+			}
+
+			if( same )
+			{
+				gates[v] = driverWeights[ from ] > 0 ? Gate.BUFFER : Gate.INVERTER;
+			}
+		}
+
+		if(		gates[v] == Gate.BUFFER
+			||	gates[v] == Gate.INVERTER )
+		{
+			final int u = driverIndices[ from ];
+
+			signalOf[v] = signalOf[u];
+			signalInverted[v] = signalInverted[u] ^ (gates[v] == Gate.INVERTER);
+			signalDelays[v] = signalDelays[u] + driverDelays[ from ];
+		}
+	}
+
+	/**
+	 * Sorts the non-source cells so drivers come first.
+	 */
+	private int[] _sort( boolean[] sources )
+	{
+		final int cellCount = gates.length;
+		final int[] pending = new int[ cellCount ];
+		final int[] fanoutOffsets = new int[ cellCount + 1 ];
+
+		for( int k = 0; k < driverIndices.length; ++k )
+		{
+			++fanoutOffsets[ driverIndices[k] + 1 ];
+		}
+
+		for( int u = 0; u < cellCount; ++u )
+		{
+			fanoutOffsets[ u + 1 ] += fanoutOffsets[u];
+		}
+
+		final int[] fanouts = new int[ fanoutOffsets[ cellCount ] ];
+		final int[] fill = Arrays.copyOf( fanoutOffsets, cellCount );
+
+		for( int v = 0; v < cellCount; ++v )
+		{
+			for( int k = driverOffsets[v]; k < driverOffsets[ v + 1 ]; ++k )
+			{
+				final int u = driverIndices[k];
+
+				fanouts[ fill[u]++ ] = v;
+
+				if( !sources[u] )
+				{
+					++pending[v];
+				}
+			}
+		}
+
+		int[] sorted = new int[ cellCount ];
+		int sortedCount = 0;
+		int head = 0;
+
+		for( int v = 0; v < cellCount; ++v )
+		{
+			if( !sources[v] && pending[v] == 0 )
+			{
+				sorted[ sortedCount++ ] = v;
+			}
+		}
+
+		while( head < sortedCount )
+		{
+			final int u = sorted[ head++ ];
+
+			for( int k = fanoutOffsets[u]; k < fanoutOffsets[ u + 1 ]; ++k )
+			{
+				if( --pending[ fanouts[k] ] == 0 )
+				{
+					sorted[ sortedCount++ ] = fanouts[k];
+				}
+			}
+		}
+
+		// Every driver is strictly further from the outputs, or the sources,
+		// than the cells it drives, so there are no loops to leave cells out.
+		assert sortedCount + _countSources( sources ) == cellCount;
+
+		return Arrays.copyOf( sorted, sortedCount );
+	}
+
+	/**
+	 * Works out how far every cell is from a set of cells, going with the
+	 * signals or against them. A hop costs more the weaker the coupling,
+	 * relative to the driven cell's strongest, so the way a signal takes
+	 * goes through the neighbor that dominates each cell, e.g., a side
+	 * neighbor before a diagonal one.
+	 *
+	 * @param starts The cells to start from, at a distance of 0.
+	 * @param strongest Each cell's strongest coupling.
+	 * @param minCoupling Each cell's weakest coupling that counts.
+	 * @param sources
+	 * @param forward Whether to go with the signals or against them.
+	 * @return The distances, infinite for cells that can't be reached.
+	 */
+	private double[] _distances(	boolean[] starts, double[] strongest,
+									double[] minCoupling, boolean[] sources,
+									boolean forward )
+	{
+		final Cell[] cells = network.cells;
+		final int cellCount = cells.length;
+		final int[] offsets = network.neighborOffsets;
+		final int[] neighbors = network.neighborIndices;
+		final double[] ke = network.kinkEnergies;
+
+		final double[] distances = new double[ cellCount ];
+		Arrays.fill( distances, Double.POSITIVE_INFINITY );
+
+		PriorityQueue<Visit> queue = new PriorityQueue<Visit>();
+
+		for( int i = 0; i < cellCount; ++i )
+		{
+			if( starts[i] )
+			{
+				distances[i] = 0;
+				queue.add( new Visit( i, 0 ) );
+			}
+		}
+
+		while( !queue.isEmpty() )
+		{
+			final Visit visit = queue.poll();
+			final int u = visit.cell;
+
+			if( visit.distance > distances[u] )
+			{
+				continue;
+			}
+
+			for( int k = offsets[u]; k < offsets[ u + 1 ]; ++k )
+			{
+				final int v = neighbors[k];
+
+				// The cell on the receiving end of the signal.
+				final int driven = forward ? v : u;
+				final double coupling = Math.abs( ke[k] );
+
+				if(		coupling < minCoupling[ driven ]
+					||	(forward	? !_canDrive( cells, sources, u, v )
+									: !_canDrive( cells, sources, v, u )) )
+				{
+					continue;
+				}
+
+				final double distance = distances[u] + strongest[ driven ] / coupling;
+
+				if( distance < distances[v] )
+				{
+					distances[v] = distance;
+					queue.add( new Visit( v, distance ) );
+				}
+			}
+		}
+
+		return distances;
+	}
+
+	private static final class Visit implements Comparable<Visit>
+	{
+		public final int	cell;
+		public final double	distance;
+
+		public Visit( int c, double d )
+		{
+			cell = c;
+			distance = d;
+		}
+
+		public int compareTo( Visit other )
+		{
+			return Double.compare( distance, other.distance );
+		}
+	}
+
+	private static int _countSources( boolean[] sources )
+	{
+		int count = 0;
+
+		for( boolean source : sources )
+		{
+			count += source ? 1 : 0;
+		}
+
+		return count;
+	}
+
+	private static void _addDriver( int[][] drivers, int[] counts, int cell, int driver )
+	{
+		if( counts[ cell ] == drivers[ cell ].length )
+		{
+			drivers[ cell ] = Arrays.copyOf( drivers[ cell ], counts[ cell ] * 2 );
+		}
+
+		drivers[ cell ][ counts[ cell ]++ ] = driver;
+	}
+}
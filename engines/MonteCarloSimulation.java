@@ -0,0 +1,356 @@
+/*
+ *  Copyright (c) 2010 Robert Honer <rhoner@cs.ucla.edu>
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *      * Redistributions of source code must retain the above copyright
+ *        notice, this list of conditions and the following disclaimer.
+ *      * Redistributions in binary form must reproduce the above copyright
+ *        notice, this list of conditions and the following disclaimer in the
+ *        documentation and/or other materials provided with the distribution.
+ *      * Neither the name of the <organization> nor the
+ *        names of its contributors may be used to endorse or promote products
+ *        derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package jqcadesigner.engines;
+
+import ec.util.MersenneTwisterFast;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jqcadesigner.JQCADesigner;
+import jqcadesigner.VectorTable;
+import jqcadesigner.circuit.Circuit;
+import jqcadesigner.circuit.units.Cell;
+import jqcadesigner.circuit.units.OutputCell;
+import jqcadesigner.config.ConfigFile;
+
+/**
+ * Estimates how well a circuit holds up to fabrication errors.
+ *
+ * Every trial moves each cell, dots and all, to a random spot within the
+ * radial tolerance of where it was designed to be, then runs the bistable
+ * engine on the result. A trial is correct for an output if it comes up
+ * with the same values that the circuit as designed does. The yield is the
+ * fraction of trials that are correct.
+ *
+ * The circuit is only parsed and initialized once. The neighbors are found
+ * once, with the radius of effect widened by twice the tolerance so that
+ * they cover any pair a trial could bring close enough. Each trial then
+ * only works out the kink energies of its displaced pairs over those
+ * neighbors, and the trials run in parallel.
+ */
+public final class MonteCarloSimulation
+{
+	private static final Logger _log = JQCADesigner.log;
+
+	private final Circuit	_circuit;
+	private final String	_configFileName;
+	private final int		_trials;
+	private final double	_radialTolerance;
+	private final int		_threads;
+	private final long		_seed;
+
+	/**
+	 * @param circuit
+	 * @param configFileName The bistable engine config file. May be null.
+	 * @param trials How many trials to run.
+	 * @param radialTolerance How far, in nanometers, a cell can end up from
+	 *		where it was designed to be.
+	 * @param threads How many trials to run at once. Zero means one per
+	 *		processor.
+	 * @param seed Seeds the displacements and cell randomization of every
+	 *		trial, so the same seed gives the same results.
+	 */
+	public MonteCarloSimulation(	Circuit circuit, String configFileName,
+									int trials, double radialTolerance,
+									int threads, long seed )
+	{
+		if( trials < 1 )
+		{
+			String msg = "There must be at least one trial.";
+			throw new IllegalArgumentException( msg );
+		}
+
+		if( radialTolerance < 0 )
+		{
+			String msg = "The radial tolerance can't be negative.";
+			throw new IllegalArgumentException( msg );
+		}
+
+		if( threads < 0 )
+		{
+			String msg = "The number of threads can't be negative.";
+			throw new IllegalArgumentException( msg );
+		}
+
+		_circuit = circuit;
+		_configFileName = configFileName;
+		_trials = trials;
+		_radialTolerance = radialTolerance;
+		_threads = threads;
+		_seed = seed;
+	}
+
+	public Results run( final VectorTable vectorTable )
+		throws	FileNotFoundException, IOException, ConfigFile.ParseException,
+				Engine.EngineException, InterruptedException, ExecutionException
+	{
+		long initTime = System.currentTimeMillis();
+
+		final BistableEngine prototype = new BistableEngine( _circuit, _configFileName );
+		prototype._init( vectorTable );
+
+		final Cell[] cells = prototype._network.cells;
+		final double[] nominalDots = CellKernel.packDots( cells );
+		final CellNetwork topology	= prototype._initTopology(	cells,
+																prototype._radiusOfEffect
+																+ 2 * _radialTolerance );
+
+		initTime = System.currentTimeMillis() - initTime;
+
+		final MersenneTwisterFast seeds = new MersenneTwisterFast( _seed );
+
+		// What the circuit does as designed.
+		final Engine.RunResults nominal = new BistableEngine( prototype, seeds.nextLong() )._run( vectorTable );
+		final Results results = new Results( _circuit.getOutputCells(), nominal );
+
+		final int threads	= Math.min(	_trials,
+										_threads == 0
+										? Runtime.getRuntime().availableProcessors()
+										: _threads );
+
+		_log.log(	Level.INFO,
+					"Running {0} trials with a radial tolerance of {1}nm on "
+					+ "{2} threads with seed {3}.",
+					new Object[]{	_trials, _radialTolerance, threads,
+									Long.toString( _seed ) } );
+
+		final ExecutorService executor = Executors.newFixedThreadPool( threads );
+
+		long runTime = System.currentTimeMillis();
+
+		try
+		{
+			ArrayList<Future<?>> futures = new ArrayList<Future<?>>( _trials );
+
+			for( int i = 0; i < _trials; ++i )
+			{
+				final long seed = seeds.nextLong();
+
+				futures.add( executor.submit( new Runnable()
+				{
+					public void run()
+					{
+						results._add( _runTrial( prototype, topology, nominalDots,
+												vectorTable, seed ) );
+					}
+				} ) );
+			}
+
+			for( Future<?> future : futures )
+			{
+				future.get();
+			}
+		}
+		finally
+		{
+			executor.shutdownNow();
+			prototype._shutdownPool();
+		}
+
+		results.initTime = initTime;
+		results.runTime = System.currentTimeMillis() - runTime;
+
+		return results;
+	}
+
+	private Engine.RunResults _runTrial(	BistableEngine prototype,
+											CellNetwork topology,
+											double[] nominalDots,
+											VectorTable vectorTable,
+											long seed )
+	{
+		final MersenneTwisterFast rand = new MersenneTwisterFast( seed );
+		final int cellCount = topology.getCellCount();
+
+		final double[] xOffsets = new double[ cellCount ];
+		final double[] yOffsets = new double[ cellCount ];
+
+		// Spread uniformly over the disc, rather than bunched up at its
+		// center.
+		for( int i = 0; i < cellCount; ++i )
+		{
+			final double radius = _radialTolerance * Math.sqrt( rand.nextDouble() );
+			final double angle = 2 * Math.PI * rand.nextDouble();
+
+			xOffsets[i] = radius * Math.cos( angle );
+			yOffsets[i] = radius * Math.sin( angle );
+		}
+
+		final double[] kinkEnergies = prototype._calcDisplacedKinkEnergies(	topology,
+																			nominalDots,
+																			xOffsets,
+																			yOffsets );
+
+		final BistableEngine replica = new BistableEngine(	prototype,
+															topology.withKinkEnergies( kinkEnergies ),
+															rand.nextLong() );
+
+		return replica._run( vectorTable );
+	}
+
+	/**
+	 * How many trials got each output right.
+	 */
+	public static final class Results
+	{
+		public long initTime;
+		public long runTime;
+
+		private final String[]	_outputNames;
+		private final byte[][]	_nominalValues;
+		private int				_trialCount;
+
+		/**
+		 * For each output, the number of trials whose values all matched the
+		 * nominal ones.
+		 */
+		private final int[]		_correct;
+
+		/**
+		 * The number of trials that got every output right.
+		 */
+		private int				_allCorrect;
+
+		private Results( OutputCell[] outputCells, Engine.RunResults nominal )
+		{
+			_outputNames = new String[ outputCells.length ];
+			_nominalValues = new byte[ outputCells.length ][];
+			_correct = new int[ outputCells.length ];
+
+			for( int j = 0; j < outputCells.length; ++j )
+			{
+				_outputNames[j] = outputCells[j].getName();
+				_nominalValues[j] = nominal.getOutputValues( _outputNames[j] );
+			}
+		}
+
+		private synchronized void _add( Engine.RunResults runResults )
+		{
+			boolean allCorrect = true;
+
+			for( int j = 0; j < _outputNames.length; ++j )
+			{
+				if( Arrays.equals(	runResults.getOutputValues( _outputNames[j] ),
+									_nominalValues[j] ) )
+				{
+					++_correct[j];
+				}
+				else
+				{
+					allCorrect = false;
+				}
+			}
+
+			if( allCorrect )
+			{
+				++_allCorrect;
+			}
+
+			++_trialCount;
+		}
+
+		public synchronized int getTrialCount()
+		{
+			return _trialCount;
+		}
+
+		public String[] getOutputNames()
+		{
+			return _outputNames.clone();
+		}
+
+		/**
+		 * @param outputName
+		 * @return The values the output has in the circuit as designed.
+		 */
+		public byte[] getNominalValues( String outputName )
+		{
+			return _nominalValues[ _indexOf( outputName ) ].clone();
+		}
+
+		/**
+		 * @param outputName
+		 * @return The fraction of trials in which the output's values all
+		 *		matched the nominal ones.
+		 */
+		public synchronized double getYield( String outputName )
+		{
+			return (double)_correct[ _indexOf( outputName ) ] / _trialCount;
+		}
+
+		/**
+		 * @return The fraction of trials in which every output was right.
+		 */
+		public synchronized double getYield()
+		{
+			return (double)_allCorrect / _trialCount;
+		}
+
+		private int _indexOf( String outputName )
+		{
+			for( int j = 0; j < _outputNames.length; ++j )
+			{
+				if( _outputNames[j].equals( outputName ) )
+				{
+					return j;
+				}
+			}
+
+			throw new IllegalArgumentException( "No such output: " + outputName );
+		}
+
+		public synchronized void printStats()
+		{
+			System.out.printf( "Initialization time: %dms\n", initTime );
+			System.out.printf( "Run time: %dms\n", runTime );
+			System.out.printf( "Trials: %d\n", _trialCount );
+
+			System.out.println( "Outputs (nominal values and yield):" );
+			for( int j = 0; j < _outputNames.length; ++j )
+			{
+				System.out.printf( "%10s", _outputNames[j] );
+
+				for( byte v : _nominalValues[j] )
+				{
+					System.out.printf( " %d", v );
+				}
+
+				System.out.printf( "  %.1f%%\n", 100.0 * _correct[j] / _trialCount );
+			}
+
+			System.out.printf( "Overall yield: %.1f%%\n", 100.0 * _allCorrect / _trialCount );
+		}
+	}
+}
@@ -0,0 +1,311 @@
+/*
+ *  Copyright (c) 2010 Robert Honer <rhoner@cs.ucla.edu>
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *      * Redistributions of source code must retain the above copyright
+ *        notice, this list of conditions and the following disclaimer.
+ *      * Redistributions in binary form must reproduce the above copyright
+ *        notice, this list of conditions and the following disclaimer in the
+ *        documentation and/or other materials provided with the distribution.
+ *      * Neither the name of the <organization> nor the
+ *        names of its contributors may be used to endorse or promote products
+ *        derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package jqcadesigner.engines;
+
+import ec.util.MersenneTwisterFast;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jqcadesigner.JQCADesigner;
+import jqcadesigner.VectorTable;
+import jqcadesigner.circuit.Circuit;
+import jqcadesigner.circuit.units.OutputCell;
+import jqcadesigner.config.ConfigFile;
+
+/**
+ * Runs several independent bistable simulations of the same circuit and
+ * vector table at once, e.g., to see how much randomize_cells changes the
+ * outcome.
+ *
+ * The circuit is parsed and the engine initialized only once. Every
+ * simulation then runs on a replica of that engine, with its own seeded
+ * cell order and polarizations, on a fixed size thread pool. Instead of
+ * keeping every simulation's results, only how often each output value came
+ * up is kept.
+ */
+public final class MultiSimulation
+{
+	private static final Logger _log = JQCADesigner.log;
+
+	private final Circuit	_circuit;
+	private final String	_configFileName;
+	private final int		_simulations;
+	private final int		_threads;
+	private final long		_seed;
+
+	/**
+	 * @param circuit
+	 * @param configFileName The bistable engine config file. May be null.
+	 * @param simulations How many simulations to run.
+	 * @param threads How many simulations to run at once. Zero means one per
+	 *		processor.
+	 * @param seed Seeds the cell randomization of every simulation, so the
+	 *		same seed gives the same results.
+	 */
+	public MultiSimulation(	Circuit circuit, String configFileName,
+							int simulations, int threads, long seed )
+	{
+		if( simulations < 1 )
+		{
+			String msg = "There must be at least one simulation.";
+			throw new IllegalArgumentException( msg );
+		}
+
+		if( threads < 0 )
+		{
+			String msg = "The number of threads can't be negative.";
+			throw new IllegalArgumentException( msg );
+		}
+
+		_circuit = circuit;
+		_configFileName = configFileName;
+		_simulations = simulations;
+		_threads = threads;
+		_seed = seed;
+	}
+
+	public Results run( final VectorTable vectorTable )
+		throws	FileNotFoundException, IOException, ConfigFile.ParseException,
+				Engine.EngineException, InterruptedException, ExecutionException
+	{
+		long initTime = System.currentTimeMillis();
+		final BistableEngine prototype = new BistableEngine( _circuit, _configFileName );
+		prototype._init( vectorTable );
+		initTime = System.currentTimeMillis() - initTime;
+
+		final int threads	= Math.min(	_simulations,
+										_threads == 0
+										? Runtime.getRuntime().availableProcessors()
+										: _threads );
+
+		_log.log(	Level.INFO,
+					"Running {0} simulations on {1} threads with seed {2}.",
+					new Object[]{ _simulations, threads, Long.toString( _seed ) } );
+
+		final Results results = new Results( _circuit.getOutputCells() );
+		final MersenneTwisterFast seeds = new MersenneTwisterFast( _seed );
+		final ExecutorService executor = Executors.newFixedThreadPool( threads );
+
+		long runTime = System.currentTimeMillis();
+
+		try
+		{
+			ArrayList<Future<?>> futures = new ArrayList<Future<?>>( _simulations );
+
+			for( int i = 0; i < _simulations; ++i )
+			{
+				final long seed = seeds.nextLong();
+
+				futures.add( executor.submit( new Runnable()
+				{
+					public void run()
+					{
+						BistableEngine replica = new BistableEngine( prototype, seed );
+						results._add( replica._run( vectorTable ) );
+					}
+				} ) );
+			}
+
+			for( Future<?> future : futures )
+			{
+				future.get();
+			}
+		}
+		finally
+		{
+			executor.shutdownNow();
+			prototype._shutdownPool();
+		}
+
+		results.initTime = initTime;
+		results.runTime = System.currentTimeMillis() - runTime;
+
+		return results;
+	}
+
+	/**
+	 * How often each output came up with each value, over all the
+	 * simulations.
+	 */
+	public static final class Results
+	{
+		public long initTime;
+		public long runTime;
+
+		private final String[]	_outputNames;
+		private int				_simulationCount;
+
+		/**
+		 * For each output, and each of its sampled values, how many
+		 * simulations came up with 0, 1 and undecided, in that order.
+		 */
+		private final int[][][]	_counts;
+
+		private Results( OutputCell[] outputCells )
+		{
+			_outputNames = new String[ outputCells.length ];
+			_counts = new int[ outputCells.length ][][];
+
+			for( int j = 0; j < outputCells.length; ++j )
+			{
+				_outputNames[j] = outputCells[j].getName();
+				_counts[j] = new int[0][];
+			}
+		}
+
+		private synchronized void _add( Engine.RunResults runResults )
+		{
+			for( int j = 0; j < _outputNames.length; ++j )
+			{
+				final byte[] values = runResults.getOutputValues( _outputNames[j] );
+
+				if( values.length > _counts[j].length )
+				{
+					final int oldLength = _counts[j].length;
+					_counts[j] = Arrays.copyOf( _counts[j], values.length );
+
+					for( int v = oldLength; v < values.length; ++v )
+					{
+						_counts[j][v] = new int[3];
+					}
+				}
+
+				for( int v = 0; v < values.length; ++v )
+				{
+					++_counts[j][v][ _slot( values[v] ) ];
+				}
+			}
+
+			++_simulationCount;
+		}
+
+		private static int _slot( byte value )
+		{
+			return value == 0 ? 0 : value == 1 ? 1 : 2;
+		}
+
+		public synchronized int getSimulationCount()
+		{
+			return _simulationCount;
+		}
+
+		public String[] getOutputNames()
+		{
+			return _outputNames.clone();
+		}
+
+		/**
+		 * The value most of the simulations came up with for each of an
+		 * output's samples.
+		 *
+		 * @param outputName
+		 * @return The values, 1, 0 or -1 for undecided or a tie.
+		 */
+		public synchronized byte[] getConsensusValues( String outputName )
+		{
+			final int[][] counts = _counts[ _indexOf( outputName ) ];
+			final byte[] values = new byte[ counts.length ];
+
+			for( int v = 0; v < counts.length; ++v )
+			{
+				final int[] c = counts[v];
+
+				values[v]	= c[1] > c[0] && c[1] > c[2] ? 1
+							: c[0] > c[1] && c[0] > c[2] ? 0
+							: (byte)-1;
+			}
+
+			return values;
+		}
+
+		/**
+		 * The fraction of simulations that agreed with the consensus value
+		 * for each of an output's samples.
+		 *
+		 * @param outputName
+		 * @return The fractions, between 0 and 1.
+		 */
+		public synchronized double[] getAgreement( String outputName )
+		{
+			final int[][] counts = _counts[ _indexOf( outputName ) ];
+			final byte[] consensus = getConsensusValues( outputName );
+			final double[] agreement = new double[ counts.length ];
+
+			for( int v = 0; v < counts.length; ++v )
+			{
+				agreement[v]	= (double)counts[v][ _slot( consensus[v] ) ]
+								/ _simulationCount;
+			}
+
+			return agreement;
+		}
+
+		private int _indexOf( String outputName )
+		{
+			for( int j = 0; j < _outputNames.length; ++j )
+			{
+				if( _outputNames[j].equals( outputName ) )
+				{
+					return j;
+				}
+			}
+
+			throw new IllegalArgumentException( "No such output: " + outputName );
+		}
+
+		public void printStats()
+		{
+			System.out.printf( "Initialization time: %dms\n", initTime );
+			System.out.printf( "Run time: %dms\n", runTime );
+			System.out.printf( "Simulations: %d\n", getSimulationCount() );
+
+			System.out.println( "Outputs (consensus value and agreement):" );
+			for( String outputName : _outputNames )
+			{
+				System.out.printf( "%10s", outputName );
+
+				final byte[] consensus = getConsensusValues( outputName );
+				final double[] agreement = getAgreement( outputName );
+
+				for( int v = 0; v < consensus.length; ++v )
+				{
+					System.out.printf( " %d(%.0f%%)", consensus[v], 100 * agreement[v] );
+				}
+
+				System.out.println();
+			}
+		}
+	}
+}
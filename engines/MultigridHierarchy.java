@@ -0,0 +1,604 @@
+/*
+ *  Copyright (c) 2010 Robert Honer <rhoner@cs.ucla.edu>
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *      * Redistributions of source code must retain the above copyright
+ *        notice, this list of conditions and the following disclaimer.
+ *      * Redistributions in binary form must reproduce the above copyright
+ *        notice, this list of conditions and the following disclaimer in the
+ *        documentation and/or other materials provided with the distribution.
+ *      * Neither the name of the <organization> nor the
+ *        names of its contributors may be used to endorse or promote products
+ *        derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package jqcadesigner.engines;
+
+import java.util.Arrays;
+
+/**
+ * A stack of ever coarser versions of a CellNetwork, used to get a signal
+ * down a long wire without sweeping it once per cell.
+ *
+ * Each level is built from the one below it by grouping every node with the
+ * neighbors it's strongly coupled to, within one clock zone. Every member of
+ * a group gets a sign, + if it lines up with the group and - if it's
+ * inverted, and the group as a whole gets a single polarization: the average
+ * of its members' after the signs are taken out. Its equation is the
+ * average of theirs, assuming they all sit at the group's polarization, so
+ * a group of aligned cells in a wire holds its state just like the cells do.
+ * The cells that aren't relaxed stay on every level as frozen nodes of
+ * their own, so they go on pulling on the groups around them.
+ *
+ * Correcting the fine polarizations is done the usual nonlinear multigrid
+ * way. The polarizations are averaged up into the groups, and each group's
+ * equation gets a correction that makes the average a solution if the level
+ * below is already settled, so the coarse levels only push where the fine
+ * one is still moving. The coarse levels are relaxed from the bottom up and
+ * back, and each cell is moved by however much its group moved. None of this
+ * decides the result: the fine cells are still swept until every one of them
+ * is stable, so it only cuts down how many sweeps that takes.
+ */
+public final class MultigridHierarchy
+{
+	/**
+	 * A neighbor has to be coupled at least this strongly, relative to the
+	 * node's strongest coupling, to be grouped with it.
+	 */
+	private static final double STRONG_COUPLING = 0.5;
+
+	/**
+	 * The most sweeps made on the coarsest level per correction.
+	 */
+	private static final int MAX_COARSEST_SWEEPS = 100;
+
+	private final Level[] _levels;
+
+	/**
+	 * Builds the coarse levels for a network.
+	 *
+	 * @param network
+	 * @param relaxed The cells that are relaxed. Every other cell is frozen.
+	 * @param maxLevels The most coarse levels to build. Coarsening also stops
+	 *		once a level no longer shrinks much.
+	 */
+	public MultigridHierarchy(	final CellNetwork network,
+								final int[] relaxed,
+								final int maxLevels )
+	{
+		final int cellCount = network.getCellCount();
+
+		// Level 0 stands for the network itself and is never relaxed here.
+		final boolean[] frozen = new boolean[ cellCount ];
+		Arrays.fill( frozen, true );
+
+		for( int cell : relaxed )
+		{
+			frozen[ cell ] = false;
+		}
+
+		Level fine = new Level(	network.neighborOffsets, network.neighborIndices,
+								network.kinkEnergies, network.clockNums, frozen );
+
+		Level[] levels = new Level[ maxLevels + 1 ];
+		levels[0] = fine;
+		int levelCount = 1;
+
+		while( levelCount <= maxLevels )
+		{
+			final Level coarse = fine.coarsen();
+
+			if(		coarse.relaxedCount < 2
+				||	coarse.relaxedCount > 0.8 * fine.relaxedCount )
+			{
+				break;
+			}
+
+			levels[ levelCount++ ] = coarse;
+			fine = coarse;
+		}
+
+		_levels = Arrays.copyOf( levels, levelCount );
+	}
+
+	/**
+	 * @return The number of coarse levels, not counting the network itself.
+	 */
+	public int getCoarseLevelCount()
+	{
+		return _levels.length - 1;
+	}
+
+	/**
+	 * @param level
+	 * @return The number of relaxed nodes on a level. Level 0 is the network.
+	 */
+	public int getRelaxedCount( int level )
+	{
+		return _levels[ level ].relaxedCount;
+	}
+
+	/**
+	 * Corrects the polarizations of the relaxed cells with one pass down and
+	 * up the coarse levels.
+	 *
+	 * @param polarizations The polarization of every cell. The relaxed cells'
+	 *		are corrected in place.
+	 * @param clockValues The current value of each zone's clock.
+	 * @param heldZones Which zones are being held in the null state.
+	 * @param tolerance How little the coarsest level has to move to count as
+	 *		settled.
+	 */
+	public void correct(	final double[] polarizations,
+							final double[] clockValues,
+							final boolean[] heldZones,
+							final double tolerance )
+	{
+		if( _levels.length < 2 )
+		{
+			return;
+		}
+
+		_levels[0].values = polarizations;
+		_cycle( 1, clockValues, heldZones, tolerance );
+		_levels[0].values = null;
+	}
+
+	/**
+	 * Restricts level - 1 onto level, relaxes it and the levels above it, and
+	 * corrects level - 1 by how much it moved.
+	 */
+	private void _cycle(	final int level,
+							final double[] clockValues,
+							final boolean[] heldZones,
+							final double tolerance )
+	{
+		final Level coarse = _levels[ level ];
+
+		coarse.restrict( _levels[ level - 1 ], clockValues, heldZones );
+
+		if( level == _levels.length - 1 )
+		{
+			for( int s = 0; s < MAX_COARSEST_SWEEPS; ++s )
+			{
+				if( coarse.sweep( clockValues, heldZones ) <= tolerance )
+				{
+					break;
+				}
+			}
+		}
+		else
+		{
+			coarse.sweep( clockValues, heldZones );
+			_cycle( level + 1, clockValues, heldZones, tolerance );
+			coarse.sweep( clockValues, heldZones );
+		}
+
+		coarse.prolong( _levels[ level - 1 ] );
+	}
+
+	/**
+	 * One level of the hierarchy. Each node's equation is
+	 * value = response( sum of weight * neighbor value / (2 * clock) ), where
+	 * a node can be its own neighbor.
+	 */
+	private static final class Level
+	{
+		public final int[]		offsets;
+		public final int[]		indices;
+		public final double[]	weights;
+		public final byte[]		zones;
+		public final boolean[]	frozen;
+		public final int		relaxedCount;
+
+		/**
+		 * The group each node of the level below belongs to, and the sign it
+		 * has in it. Null on level 0.
+		 */
+		public int[]			groupOf;
+		public byte[]			signs;
+
+		/**
+		 * The number of nodes of the level below in each group.
+		 */
+		public int[]			sizes;
+
+		/**
+		 * The current value of each node, and what it was restricted to
+		 * before the level was relaxed.
+		 */
+		public double[]			values;
+		public double[]			restricted;
+
+		/**
+		 * What has to be added to each node's equation so that the
+		 * restricted values already solve it when the level below is
+		 * settled. Null on level 0.
+		 */
+		public double[]			corrections;
+
+		public Level(	int[] offsets, int[] indices, double[] weights,
+						byte[] zones, boolean[] frozen )
+		{
+			this.offsets = offsets;
+			this.indices = indices;
+			this.weights = weights;
+			this.zones = zones;
+			this.frozen = frozen;
+
+			int count = 0;
+
+			for( boolean f : frozen )
+			{
+				count += f ? 0 : 1;
+			}
+
+			relaxedCount = count;
+		}
+
+		public int getCount()
+		{
+			return zones.length;
+		}
+
+		/**
+		 * Groups the nodes of this level into the nodes of the next one.
+		 */
+		public Level coarsen()
+		{
+			final int count = getCount();
+			final int[] groupOf = new int[ count ];
+			final byte[] signs = new byte[ count ];
+			int groupCount = 0;
+
+			Arrays.fill( groupOf, -1 );
+
+			// How strong a coupling has to be for each node.
+			final double[] strong = new double[ count ];
+
+			for( int a = 0; a < count; ++a )
+			{
+				double strongest = 0;
+
+				for( int k = offsets[a]; k < offsets[ a + 1 ]; ++k )
+				{
+					if( indices[k] != a && _canGroup( a, indices[k] ) )
+					{
+						strongest = Math.max( strongest, Math.abs( weights[k] ) );
+					}
+				}
+
+				strong[a] = STRONG_COUPLING * strongest;
+			}
+
+			// Frozen nodes are groups of their own.
+			for( int a = 0; a < count; ++a )
+			{
+				if( frozen[a] )
+				{
+					groupOf[a] = groupCount++;
+					signs[a] = 1;
+				}
+			}
+
+			// Start a group at every node whose strong neighbors are all
+			// still free, taking them all in.
+			for( int a = 0; a < count; ++a )
+			{
+				if( groupOf[a] >= 0 || strong[a] == 0 )
+				{
+					continue;
+				}
+
+				boolean free = true;
+
+				for( int k = offsets[a]; k < offsets[ a + 1 ] && free; ++k )
+				{
+					final int b = indices[k];
+
+					free	= b == a || !_canGroup( a, b )
+							|| Math.abs( weights[k] ) < strong[a] || groupOf[b] < 0;
+				}
+
+				if( !free )
+				{
+					continue;
+				}
+
+				groupOf[a] = groupCount;
+				signs[a] = 1;
+
+				for( int k = offsets[a]; k < offsets[ a + 1 ]; ++k )
+				{
+					final int b = indices[k];
+
+					if(		b != a && _canGroup( a, b )
+						&&	Math.abs( weights[k] ) >= strong[a] )
+					{
+						groupOf[b] = groupCount;
+						signs[b] = (byte)(weights[k] < 0 ? -1 : 1);
+					}
+				}
+
+				++groupCount;
+			}
+
+			// Everything left over joins the group it's most strongly coupled
+			// to, or starts one of its own.
+			for( int a = 0; a < count; ++a )
+			{
+				if( groupOf[a] >= 0 )
+				{
+					continue;
+				}
+
+				int best = -1;
+				double bestWeight = 0;
+
+				for( int k = offsets[a]; k < offsets[ a + 1 ]; ++k )
+				{
+					final int b = indices[k];
+
+					if(		b != a && _canGroup( a, b ) && groupOf[b] >= 0
+						&&	Math.abs( weights[k] ) > Math.abs( bestWeight ) )
+					{
+						best = b;
+						bestWeight = weights[k];
+					}
+				}
+
+				if( best >= 0 && Math.abs( bestWeight ) >= strong[a] )
+				{
+					groupOf[a] = groupOf[ best ];
+					signs[a] = (byte)(bestWeight < 0 ? -signs[ best ] : signs[ best ]);
+				}
+				else
+				{
+					groupOf[a] = groupCount++;
+					signs[a] = 1;
+				}
+			}
+
+			return _build( groupOf, signs, groupCount );
+		}
+
+		/**
+		 * Whether two nodes can go in the same group.
+		 */
+		private boolean _canGroup( int a, int b )
+		{
+			return !frozen[a] && !frozen[b] && zones[a] == zones[b];
+		}
+
+		/**
+		 * Works out the next level's couplings from the groups. A group's
+		 * coupling to another is the average over its members of their
+		 * couplings to the other's members, with the signs taken out.
+		 */
+		private Level _build( final int[] groupOf, final byte[] signs, final int groupCount )
+		{
+			final int count = getCount();
+
+			final int[] sizes = new int[ groupCount ];
+			final byte[] groupZones = new byte[ groupCount ];
+			final boolean[] groupFrozen = new boolean[ groupCount ];
+
+			for( int a = 0; a < count; ++a )
+			{
+				++sizes[ groupOf[a] ];
+				groupZones[ groupOf[a] ] = zones[a];
+				groupFrozen[ groupOf[a] ] = frozen[a];
+			}
+
+			// The members of each group.
+			final int[] memberOffsets = new int[ groupCount + 1 ];
+
+			for( int c = 0; c < groupCount; ++c )
+			{
+				memberOffsets[ c + 1 ] = memberOffsets[c] + sizes[c];
+			}
+
+			final int[] members = new int[ count ];
+			final int[] fill = Arrays.copyOf( memberOffsets, groupCount );
+
+			for( int a = 0; a < count; ++a )
+			{
+				members[ fill[ groupOf[a] ]++ ] = a;
+			}
+
+			// Sum up each group's row, using slotOf to find where a neighbor
+			// group already is in the row. Frozen groups don't need a row.
+			final int[] slotOf = new int[ groupCount ];
+			Arrays.fill( slotOf, -1 );
+
+			final int[] coarseOffsets = new int[ groupCount + 1 ];
+			int[] coarseIndices = new int[ indices.length ];
+			double[] coarseWeights = new double[ indices.length ];
+			int entries = 0;
+
+			for( int c = 0; c < groupCount; ++c )
+			{
+				final int rowStart = entries;
+
+				if( !groupFrozen[c] )
+				{
+					for( int m = memberOffsets[c]; m < memberOffsets[ c + 1 ]; ++m )
+					{
+						final int a = members[m];
+
+						for( int k = offsets[a]; k < offsets[ a + 1 ]; ++k )
+						{
+							final int b = indices[k];
+							final int d = groupOf[b];
+							final double weight	= signs[a] * signs[b] * weights[k]
+												/ sizes[c];
+
+							if( slotOf[d] < rowStart )
+							{
+								if( entries == coarseIndices.length )
+								{
+									coarseIndices = Arrays.copyOf( coarseIndices, entries * 2 );
+									coarseWeights = Arrays.copyOf( coarseWeights, entries * 2 );
+								}
+
+								slotOf[d] = entries;
+								coarseIndices[ entries ] = d;
+								coarseWeights[ entries ] = 0;
+								++entries;
+							}
+
+							coarseWeights[ slotOf[d] ] += weight;
+						}
+					}
+				}
+
+				coarseOffsets[ c + 1 ] = entries;
+			}
+
+			Level coarse = new Level(	coarseOffsets,
+										Arrays.copyOf( coarseIndices, entries ),
+										Arrays.copyOf( coarseWeights, entries ),
+										groupZones, groupFrozen );
+
+			coarse.groupOf = groupOf;
+			coarse.signs = signs;
+			coarse.sizes = sizes;
+			coarse.values = new double[ groupCount ];
+			coarse.restricted = new double[ groupCount ];
+			coarse.corrections = new double[ groupCount ];
+
+			return coarse;
+		}
+
+		/**
+		 * Sets every node to the average of its members on the level below,
+		 * with their signs taken out, and works out the corrections that
+		 * make that a solution when the level below is settled.
+		 */
+		public void restrict(	final Level fine,
+								final double[] clockValues,
+								final boolean[] heldZones )
+		{
+			final double[] fineValues = fine.values;
+			final boolean[] fineFrozen = fine.frozen;
+
+			Arrays.fill( values, 0 );
+			Arrays.fill( corrections, 0 );
+
+			for( int a = fineValues.length - 1; a >= 0; --a )
+			{
+				values[ groupOf[a] ] += signs[a] * fineValues[a];
+
+				if( !fineFrozen[a] )
+				{
+					corrections[ groupOf[a] ]	+= signs[a]
+												* fine.update( a, clockValues, heldZones );
+				}
+			}
+
+			for( int c = values.length - 1; c >= 0; --c )
+			{
+				values[c] /= sizes[c];
+				corrections[c] /= sizes[c];
+			}
+
+			for( int c = values.length - 1; c >= 0; --c )
+			{
+				if( !frozen[c] )
+				{
+					corrections[c]	-= update( c, clockValues, heldZones )
+									- corrections[c];
+				}
+			}
+
+			System.arraycopy( values, 0, restricted, 0, values.length );
+		}
+
+		/**
+		 * Moves every relaxed node on the level below by however much its
+		 * group moved, keeping it a valid polarization.
+		 */
+		public void prolong( final Level fine )
+		{
+			final double[] fineValues = fine.values;
+			final boolean[] fineFrozen = fine.frozen;
+
+			for( int a = fineValues.length - 1; a >= 0; --a )
+			{
+				if( !fineFrozen[a] )
+				{
+					final int c = groupOf[a];
+					final double value = fineValues[a] + signs[a] * (values[c] - restricted[c]);
+
+					fineValues[a] = Math.max( -1, Math.min( 1, value ) );
+				}
+			}
+		}
+
+		/**
+		 * Works out what a node's equation says its value should be.
+		 */
+		public double update(	final int a,
+								final double[] clockValues,
+								final boolean[] heldZones )
+		{
+			final int zone = zones[a];
+			final double correction = corrections == null ? 0 : corrections[a];
+
+			if( heldZones[ zone ] )
+			{
+				return correction;
+			}
+
+			double sum = 0;
+
+			for( int k = offsets[a]; k < offsets[ a + 1 ]; ++k )
+			{
+				sum += weights[k] * values[ indices[k] ];
+			}
+
+			return	BistableEngine._polarizationResponse( sum / (2.0 * clockValues[ zone ]) )
+					+ correction;
+		}
+
+		/**
+		 * Updates every relaxed node once.
+		 *
+		 * @return The most any node moved.
+		 */
+		public double sweep( final double[] clockValues, final boolean[] heldZones )
+		{
+			double maxChange = 0;
+
+			for( int a = 0; a < values.length; ++a )
+			{
+				if( frozen[a] )
+				{
+					continue;
+				}
+
+				final double newValue	= Math.max( -1, Math.min( 1,
+											update( a, clockValues, heldZones ) ) );
+
+				maxChange = Math.max( maxChange, Math.abs( newValue - values[a] ) );
+				values[a] = newValue;
+			}
+
+			return maxChange;
+		}
+	}
+}
@@ -0,0 +1,184 @@
+/*
+ *  Copyright (c) 2010 Robert Honer <rhoner@cs.ucla.edu>
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *      * Redistributions of source code must retain the above copyright
+ *        notice, this list of conditions and the following disclaimer.
+ *      * Redistributions in binary form must reproduce the above copyright
+ *        notice, this list of conditions and the following disclaimer in the
+ *        documentation and/or other materials provided with the distribution.
+ *      * Neither the name of the <organization> nor the
+ *        names of its contributors may be used to endorse or promote products
+ *        derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package jqcadesigner.engines;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Splits a loop over an index range into chunks and runs them on a
+ * ForkJoinPool.
+ */
+public final class ParallelLoop
+{
+	/**
+	 * The work done for one chunk of the range.
+	 */
+	public interface Body
+	{
+		/**
+		 * @param from The first index of the chunk.
+		 * @param to One past the last index of the chunk.
+		 */
+		void run( int from, int to );
+	}
+
+	/**
+	 * The work done for one chunk of the range, reporting back a flag.
+	 */
+	public interface Test
+	{
+		/**
+		 * @param from The first index of the chunk.
+		 * @param to One past the last index of the chunk.
+		 * @return The chunk's flag.
+		 */
+		boolean run( int from, int to );
+	}
+
+	private ParallelLoop()
+	{
+	}
+
+	/**
+	 * Runs body over [0, count), returning once every chunk is done.
+	 *
+	 * @param pool The pool to run on. If null, or if the range is too small
+	 *		to be worth splitting, the loop is run on the calling thread.
+	 * @param count The size of the range.
+	 * @param grain The smallest chunk worth handing to another thread.
+	 * @param body
+	 */
+	public static void run( ForkJoinPool pool, int count, int grain, Body body )
+	{
+		assert count >= 0 && grain > 0 && body != null;
+
+		if( pool == null || pool.getParallelism() == 1 || count <= grain )
+		{
+			body.run( 0, count );
+		}
+		else
+		{
+			pool.invoke( new Chunk( body, 0, count, grain ) );
+		}
+	}
+
+	/**
+	 * Runs test over [0, count), returning whether every chunk's flag was true.
+	 *
+	 * Every chunk is run, even after one of them has come back false.
+	 *
+	 * @param pool The pool to run on. If null, or if the range is too small
+	 *		to be worth splitting, the loop is run on the calling thread.
+	 * @param count The size of the range.
+	 * @param grain The smallest chunk worth handing to another thread.
+	 * @param test
+	 * @return True if test returned true for every chunk.
+	 */
+	public static boolean all( ForkJoinPool pool, int count, int grain, Test test )
+	{
+		assert count >= 0 && grain > 0 && test != null;
+
+		if( pool == null || pool.getParallelism() == 1 || count <= grain )
+		{
+			return test.run( 0, count );
+		}
+		else
+		{
+			return pool.invoke( new TestChunk( test, 0, count, grain ) );
+		}
+	}
+
+	private static final class Chunk extends RecursiveAction
+	{
+		private final Body	_body;
+		private final int	_from;
+		private final int	_to;
+		private final int	_grain;
+
+		public Chunk( Body body, int from, int to, int grain )
+		{
+			_body = body;
+			_from = from;
+			_to = to;
+			_grain = grain;
+		}
+
+		@Override
+		protected void compute()
+		{
+			if( _to - _from <= _grain )
+			{
+				_body.run( _from, _to );
+			}
+			else
+			{
+				final int middle = (_from + _to) >>> 1;
+
+				invokeAll(	new Chunk( _body, _from, middle, _grain ),
+							new Chunk( _body, middle, _to, _grain ) );
+			}
+		}
+	}
+
+	private static final class TestChunk extends RecursiveTask<Boolean>
+	{
+		private final Test	_test;
+		private final int	_from;
+		private final int	_to;
+		private final int	_grain;
+
+		public TestChunk( Test test, int from, int to, int grain )
+		{
+			_test = test;
+			_from = from;
+			_to = to;
+			_grain = grain;
+		}
+
+		@Override
+		protected Boolean compute()
+		{
+			if( _to - _from <= _grain )
+			{
+				return _test.run( _from, _to );
+			}
+
+			final int middle = (_from + _to) >>> 1;
+
+			TestChunk left = new TestChunk( _test, _from, middle, _grain );
+			TestChunk right = new TestChunk( _test, middle, _to, _grain );
+
+			left.fork();
+			boolean rightResult = right.compute();
+
+			return left.join() & rightResult;
+		}
+	}
+}
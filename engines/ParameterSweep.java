@@ -0,0 +1,720 @@
+/*
+ *  Copyright (c) 2010 Robert Honer <rhoner@cs.ucla.edu>
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *      * Redistributions of source code must retain the above copyright
+ *        notice, this list of conditions and the following disclaimer.
+ *      * Redistributions in binary form must reproduce the above copyright
+ *        notice, this list of conditions and the following disclaimer in the
+ *        documentation and/or other materials provided with the distribution.
+ *      * Neither the name of the <organization> nor the
+ *        names of its contributors may be used to endorse or promote products
+ *        derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package jqcadesigner.engines;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jqcadesigner.JQCADesigner;
+import jqcadesigner.VectorTable;
+import jqcadesigner.circuit.Circuit;
+import jqcadesigner.circuit.units.Cell;
+import jqcadesigner.circuit.units.Clock;
+import jqcadesigner.circuit.units.OutputCell;
+import jqcadesigner.config.ConfigFile;
+import jqcadesigner.config.syntaxtree.Section;
+import jqcadesigner.config.syntaxtree.SectionGroup;
+import jqcadesigner.config.syntaxtree.SettingsSection;
+
+/**
+ * Runs the bistable engine over a grid of physical settings.
+ *
+ * The settings to sweep, and the values to sweep them over, are given in a
+ * BISTABLE_SWEEP section, one setting per line, either as a comma separated
+ * list of values or as start:stop:step, e.g.:
+ *
+ *		[BISTABLE_SWEEP]
+ *		epsilonR=10:14:0.5
+ *		clock_high=9.8e-22,1.2e-21
+ *		[#BISTABLE_SWEEP]
+ *
+ * Every combination of values is one point of the sweep. Rather than set
+ * every point up from scratch, the circuit is initialized once and each
+ * point only rebuilds what its settings actually change:
+ *
+ *	- epsilonR only scales the kink energies.
+ *	- The clock settings only change the clock traces.
+ *	- radius_of_effect only changes which pairs count as neighbors. The
+ *	  neighbors are found once, at the largest radius in the sweep, and
+ *	  pairs outside a point's radius get a kink energy of 0.
+ *	- layer_separation changes the kink energies, which are worked out once
+ *	  per separation, over those same neighbors.
+ *	- The convergence settings don't change anything that is set up.
+ *
+ * The points then run concurrently.
+ */
+public final class ParameterSweep
+{
+	public static final String SECTION_NAME = "BISTABLE_SWEEP";
+
+	private static final Logger _log = JQCADesigner.log;
+
+	private static final List<String> CLOCK_SETTINGS = Arrays.asList(
+		"clock_high", "clock_low", "clock_shift", "clock_amplitude_factor" );
+
+	private static final List<String> GEOMETRY_SETTINGS = Arrays.asList(
+		"radius_of_effect", "layer_separation" );
+
+	private static final List<String> OTHER_SETTINGS = Arrays.asList(
+		"epsilonR", "convergence_tolerance", "max_iterations_per_sample",
+		"hold_tolerance" );
+
+	private final Circuit			_circuit;
+	private final SettingsSection	_baseSettings;
+	private final int				_threads;
+
+	/**
+	 * The swept settings, in alphabetical order, and the values of each.
+	 */
+	private final String[]			_names;
+	private final double[][]		_values;
+
+	/**
+	 * Loads a sweep from files.
+	 *
+	 * @param circuit
+	 * @param configFileName The bistable engine config file with the settings
+	 *		that aren't swept. May be null.
+	 * @param sweepFileName The file with the BISTABLE_SWEEP section.
+	 * @param threads How many points to run at once. Zero means one per
+	 *		processor.
+	 * @return The sweep.
+	 */
+	public static ParameterSweep load(	Circuit circuit,
+										String configFileName,
+										String sweepFileName,
+										int threads )
+		throws FileNotFoundException, IOException, ConfigFile.ParseException
+	{
+		SettingsSection baseSettings	= configFileName == null
+										? new SettingsSection()
+										: _loadSettings( configFileName, "BISTABLE_OPTIONS" );
+
+		SettingsSection sweepSettings = _loadSettings( sweepFileName, SECTION_NAME );
+
+		return new ParameterSweep( circuit, baseSettings, sweepSettings, threads );
+	}
+
+	private static SettingsSection _loadSettings( String fileName, String sectionName )
+		throws FileNotFoundException, IOException, ConfigFile.ParseException
+	{
+		SectionGroup sections = new ConfigFile( fileName ).get( sectionName );
+		Section section = sections == null ? null : sections.get( 0 );
+
+		if( section == null || !section.hasSettings() )
+		{
+			String msg = "<" + fileName + "> needs a " + sectionName + " section.";
+			throw new ConfigFile.ParseException( msg );
+		}
+
+		return (SettingsSection)section;
+	}
+
+	/**
+	 * @param circuit
+	 * @param baseSettings The BISTABLE_OPTIONS settings that aren't swept.
+	 * @param sweepSettings The values of each setting to sweep.
+	 * @param threads How many points to run at once. Zero means one per
+	 *		processor.
+	 */
+	public ParameterSweep(	Circuit circuit,
+							SettingsSection baseSettings,
+							SettingsSection sweepSettings,
+							int threads )
+	{
+		if( threads < 0 )
+		{
+			String msg = "The number of threads can't be negative.";
+			throw new IllegalArgumentException( msg );
+		}
+
+		_circuit = circuit;
+		_baseSettings = baseSettings;
+		_threads = threads;
+
+		_names = sweepSettings.settings.keySet().toArray( new String[0] );
+		Arrays.sort( _names );
+
+		if( _names.length == 0 )
+		{
+			String msg = "There's nothing to sweep.";
+			throw new IllegalArgumentException( msg );
+		}
+
+		_values = new double[ _names.length ][];
+
+		for( int p = 0; p < _names.length; ++p )
+		{
+			final String name = _names[p];
+
+			if(		!CLOCK_SETTINGS.contains( name )
+				&&	!GEOMETRY_SETTINGS.contains( name )
+				&&	!OTHER_SETTINGS.contains( name ) )
+			{
+				String msg = "Can't sweep " + name + ".";
+				throw new IllegalArgumentException( msg );
+			}
+
+			_values[p] = _parseValues( name, sweepSettings.settings.get( name ) );
+		}
+	}
+
+	/**
+	 * Parses either a comma separated list of values or start:stop:step.
+	 */
+	private static double[] _parseValues( String name, String spec )
+	{
+		final String[] range = spec.split( ":" );
+
+		if( range.length == 3 )
+		{
+			final double start = Double.parseDouble( range[0].trim() );
+			final double stop = Double.parseDouble( range[1].trim() );
+			final double step = Double.parseDouble( range[2].trim() );
+
+			if( step <= 0 || stop < start )
+			{
+				String msg = "Invalid range for " + name + ": " + spec;
+				throw new IllegalArgumentException( msg );
+			}
+
+			// Allow a little slack so rounding doesn't drop the last value.
+			final int count = (int)Math.floor( (stop - start) / step + 1e-9 ) + 1;
+			final double[] values = new double[ count ];
+
+			for( int i = 0; i < count; ++i )
+			{
+				values[i] = start + i * step;
+			}
+
+			return values;
+		}
+
+		final String[] list = spec.split( "," );
+		final double[] values = new double[ list.length ];
+
+		for( int i = 0; i < list.length; ++i )
+		{
+			values[i] = Double.parseDouble( list[i].trim() );
+		}
+
+		return values;
+	}
+
+	public int getPointCount()
+	{
+		int count = 1;
+
+		for( double[] values : _values )
+		{
+			count *= values.length;
+		}
+
+		return count;
+	}
+
+	public Results run( final VectorTable vectorTable )
+		throws Engine.EngineException, InterruptedException, ExecutionException
+	{
+		final int pointCount = getPointCount();
+
+		// Work out every point's values and settings.
+		final double[][] points = new double[ pointCount ][ _names.length ];
+		final SettingsSection[] pointSettings = new SettingsSection[ pointCount ];
+
+		for( int i = 0; i < pointCount; ++i )
+		{
+			pointSettings[i] = _copy( _baseSettings );
+
+			// Points run one to a thread.
+			pointSettings[i].settings.put( "threads", "1" );
+
+			int rest = i;
+			for( int p = _names.length - 1; p >= 0; --p )
+			{
+				points[i][p] = _values[p][ rest % _values[p].length ];
+				rest /= _values[p].length;
+
+				pointSettings[i].settings.put( _names[p], Double.toString( points[i][p] ) );
+			}
+		}
+
+		long initTime = System.currentTimeMillis();
+
+		// The prototype finds the neighbors at the largest radius, and the
+		// smallest layer separation, of any point.
+		final SettingsSection prototypeSettings = _copy( _baseSettings );
+		double radius = _baseSettings.get(	"radius_of_effect",
+											BistableEngine.DefaultConfig.RADIUS_OF_EFFECT );
+		double layerSeparation = _baseSettings.get(	"layer_separation",
+													BistableEngine.DefaultConfig.LAYER_SEPARATION );
+
+		for( int p = 0; p < _names.length; ++p )
+		{
+			for( double value : _values[p] )
+			{
+				if( _names[p].equals( "radius_of_effect" ) )
+				{
+					radius = Math.max( radius, value );
+				}
+				else if( _names[p].equals( "layer_separation" ) )
+				{
+					layerSeparation = Math.min( layerSeparation, value );
+				}
+			}
+		}
+
+		prototypeSettings.settings.put( "radius_of_effect", Double.toString( radius ) );
+		prototypeSettings.settings.put( "layer_separation", Double.toString( layerSeparation ) );
+
+		final BistableEngine prototype = new BistableEngine( _circuit, prototypeSettings );
+		prototype._init( vectorTable );
+
+		final Cache cache = new Cache( prototype, prototypeSettings, vectorTable );
+
+		initTime = System.currentTimeMillis() - initTime;
+
+		final int threads	= Math.min(	pointCount,
+										_threads == 0
+										? Runtime.getRuntime().availableProcessors()
+										: _threads );
+
+		_log.log(	Level.INFO,
+					"Sweeping {0} points on {1} threads.",
+					new Object[]{ pointCount, threads } );
+
+		final Results results = new Results( _names, points, _circuit.getOutputCells() );
+		final ExecutorService executor = Executors.newFixedThreadPool( threads );
+
+		long runTime = System.currentTimeMillis();
+
+		try
+		{
+			ArrayList<Future<?>> futures = new ArrayList<Future<?>>( pointCount );
+
+			for( int i = 0; i < pointCount; ++i )
+			{
+				final int point = i;
+
+				futures.add( executor.submit( new java.util.concurrent.Callable<Void>()
+				{
+					public Void call() throws Engine.EngineException, InterruptedException
+					{
+						BistableEngine engine = new BistableEngine( _circuit, pointSettings[ point ] );
+
+						engine._attach(	prototype,
+										cache.getNetwork( engine ),
+										cache.getClocks( engine ) );
+
+						results._set( point, engine._run( vectorTable ) );
+
+						return null;
+					}
+				} ) );
+			}
+
+			for( Future<?> future : futures )
+			{
+				future.get();
+			}
+		}
+		finally
+		{
+			executor.shutdownNow();
+			prototype._shutdownPool();
+		}
+
+		results.initTime = initTime;
+		results.runTime = System.currentTimeMillis() - runTime;
+
+		return results;
+	}
+
+	private static SettingsSection _copy( SettingsSection settings )
+	{
+		SettingsSection copy = new SettingsSection();
+		copy.settings.putAll( settings.settings );
+
+		return copy;
+	}
+
+	/**
+	 * What the points share, each built the first time a point needs it.
+	 *
+	 * The networks and kink energies are slow to build, so they're built
+	 * outside the lock, by the first point that needs them. Points that need
+	 * the same one wait for it, and the rest carry on.
+	 */
+	private final class Cache
+	{
+		private final BistableEngine	_prototype;
+		private final SettingsSection	_prototypeSettings;
+		private final int				_cycles;
+
+		/**
+		 * The kink energies over the prototype's neighbors, with the
+		 * prototype's epsilonR, by layer separation.
+		 */
+		private final HashMap<Double, FutureTask<double[]>>		_kinkEnergies
+			= new HashMap<Double, FutureTask<double[]>>();
+
+		/**
+		 * The networks, by layer separation, radius and epsilonR.
+		 */
+		private final HashMap<List<Double>, FutureTask<CellNetwork>>	_networks
+			= new HashMap<List<Double>, FutureTask<CellNetwork>>();
+
+		/**
+		 * The clocks, by their settings.
+		 */
+		private final HashMap<List<Double>, Clock[]>		_clocks
+			= new HashMap<List<Double>, Clock[]>();
+
+		public Cache(	final BistableEngine prototype,
+						SettingsSection prototypeSettings,
+						VectorTable vectorTable )
+		{
+			_prototype = prototype;
+			_prototypeSettings = prototypeSettings;
+			_cycles = vectorTable.inputs[0].length;
+
+			FutureTask<double[]> prototypeEnergies = new FutureTask<double[]>(
+				new Callable<double[]>()
+				{
+					public double[] call()
+					{
+						return prototype._network.kinkEnergies;
+					}
+				} );
+
+			prototypeEnergies.run();
+
+			_kinkEnergies.put( prototype._layerSeparation, prototypeEnergies );
+			_clocks.put( _clockKey( prototype ), prototype._clocks );
+		}
+
+		private List<Double> _clockKey( BistableEngine engine )
+		{
+			return Arrays.asList(	engine._clockHigh, engine._clockLow,
+									engine._clockShift, engine._clockAmplitudeFactor );
+		}
+
+		public synchronized Clock[] getClocks( BistableEngine engine )
+		{
+			final List<Double> key = _clockKey( engine );
+			Clock[] clocks = _clocks.get( key );
+
+			if( clocks == null )
+			{
+				clocks = new Clock[4];
+
+				for( int z = 0; z < 4; ++z )
+				{
+					clocks[z] = new Clock(	z, _cycles, engine._numberOfSamples,
+											engine._clockLow, engine._clockHigh,
+											engine._clockAmplitudeFactor,
+											engine._clockShift );
+				}
+
+				_clocks.put( key, clocks );
+			}
+
+			return clocks;
+		}
+
+		public CellNetwork getNetwork( final BistableEngine engine )
+			throws Engine.EngineException, InterruptedException
+		{
+			final List<Double> key = Arrays.asList(	engine._layerSeparation,
+													engine._radiusOfEffect,
+													engine._epsilonR );
+
+			return _get( _networks, key, new Callable<CellNetwork>()
+			{
+				public CellNetwork call() throws Engine.EngineException, InterruptedException
+				{
+					return _buildNetwork( engine );
+				}
+			} );
+		}
+
+		/**
+		 * Gets a value from one of the maps, building it if no point has yet.
+		 * Only the lookup holds the map's lock.
+		 *
+		 * @param map
+		 * @param key
+		 * @param builder Builds the value if it isn't in the map.
+		 * @return The value.
+		 */
+		private <K, V> V _get(	final HashMap<K, FutureTask<V>> map,
+								final K key,
+								final Callable<V> builder )
+			throws Engine.EngineException, InterruptedException
+		{
+			FutureTask<V> task;
+			boolean build = false;
+
+			synchronized( map )
+			{
+				task = map.get( key );
+
+				if( task == null )
+				{
+					task = new FutureTask<V>( builder );
+					map.put( key, task );
+					build = true;
+				}
+			}
+
+			if( build )
+			{
+				task.run();
+			}
+
+			try
+			{
+				return task.get();
+			}
+			catch( ExecutionException ex )
+			{
+				final Throwable cause = ex.getCause();
+
+				if( cause instanceof Engine.EngineException )
+				{
+					throw (Engine.EngineException)cause;
+				}
+				else if( cause instanceof InterruptedException )
+				{
+					throw (InterruptedException)cause;
+				}
+				else if( cause instanceof RuntimeException )
+				{
+					throw (RuntimeException)cause;
+				}
+				else if( cause instanceof Error )
+				{
+					throw (Error)cause;
+				}
+
+				throw new RuntimeException( cause );
+			}
+		}
+
+		private CellNetwork _buildNetwork( final BistableEngine engine )
+			throws Engine.EngineException, InterruptedException
+		{
+			final CellNetwork topology = _prototype._network;
+			final Cell[] cells = topology.cells;
+			final int[] offsets = topology.neighborOffsets;
+			final int[] indices = topology.neighborIndices;
+
+			final double[] baseEnergies = _get(	_kinkEnergies,
+												engine._layerSeparation,
+												new Callable<double[]>()
+			{
+				public double[] call() throws Engine.EngineException
+				{
+					// Work the kink energies out again, with the prototype's
+					// settings but this layer separation.
+					SettingsSection settings = _copy( _prototypeSettings );
+					settings.settings.put(	"layer_separation",
+											Double.toString( engine._layerSeparation ) );
+
+					final BistableEngine layerEngine = new BistableEngine( _circuit, settings );
+
+					try
+					{
+						return layerEngine._calcKinkEnergies( cells, offsets, indices );
+					}
+					finally
+					{
+						layerEngine._shutdownPool();
+					}
+				}
+			} );
+
+			// epsilonR only shows up in the kink constant.
+			final double scale = engine._kinkConstant / _prototype._kinkConstant;
+			final double radiusSqrd = engine._radiusOfEffect * engine._radiusOfEffect;
+			final double[] kinkEnergies = new double[ indices.length ];
+
+			for( int i = 0; i < cells.length; ++i )
+			{
+				final Cell cell = cells[i];
+
+				for( int k = offsets[i]; k < offsets[ i + 1 ]; ++k )
+				{
+					final Cell neighbor = cells[ indices[k] ];
+
+					final double xDiff = cell.xCoord - neighbor.xCoord;
+					final double yDiff = cell.yCoord - neighbor.yCoord;
+					final double zDiff	= Math.abs( cell.layerNum - neighbor.layerNum )
+										* engine._layerSeparation;
+
+					// Pairs outside this point's radius aren't neighbors.
+					if( xDiff * xDiff + yDiff * yDiff + zDiff * zDiff < radiusSqrd )
+					{
+						kinkEnergies[k] = baseEnergies[k] * scale;
+					}
+				}
+			}
+
+			return topology.withKinkEnergies( kinkEnergies );
+		}
+	}
+
+	/**
+	 * The output values at every point of the sweep.
+	 */
+	public static final class Results
+	{
+		public long initTime;
+		public long runTime;
+
+		private final String[]		_parameterNames;
+		private final double[][]	_points;
+		private final String[]		_outputNames;
+
+		/**
+		 * For each point, the values of each output.
+		 */
+		private final byte[][][]	_values;
+
+		private Results( String[] parameterNames, double[][] points, OutputCell[] outputCells )
+		{
+			_parameterNames = parameterNames;
+			_points = points;
+			_outputNames = new String[ outputCells.length ];
+			_values = new byte[ points.length ][][];
+
+			for( int j = 0; j < outputCells.length; ++j )
+			{
+				_outputNames[j] = outputCells[j].getName();
+			}
+		}
+
+		private synchronized void _set( int point, Engine.RunResults runResults )
+		{
+			_values[ point ] = new byte[ _outputNames.length ][];
+
+			for( int j = 0; j < _outputNames.length; ++j )
+			{
+				_values[ point ][j] = runResults.getOutputValues( _outputNames[j] );
+			}
+		}
+
+		public int getPointCount()
+		{
+			return _points.length;
+		}
+
+		public String[] getParameterNames()
+		{
+			return _parameterNames.clone();
+		}
+
+		public String[] getOutputNames()
+		{
+			return _outputNames.clone();
+		}
+
+		/**
+		 * @param point
+		 * @return The value of each swept setting at the point, in the same
+		 *		order as getParameterNames().
+		 */
+		public double[] getPoint( int point )
+		{
+			return _points[ point ].clone();
+		}
+
+		public synchronized byte[] getOutputValues( int point, String outputName )
+		{
+			for( int j = 0; j < _outputNames.length; ++j )
+			{
+				if( _outputNames[j].equals( outputName ) )
+				{
+					return _values[ point ][j];
+				}
+			}
+
+			throw new IllegalArgumentException( "No such output: " + outputName );
+		}
+
+		public synchronized void printStats()
+		{
+			System.out.printf( "Initialization time: %dms\n", initTime );
+			System.out.printf( "Run time: %dms\n", runTime );
+			System.out.printf( "Points: %d\n", _points.length );
+
+			for( String name : _parameterNames )
+			{
+				System.out.printf( "%-20s", name );
+			}
+
+			for( String name : _outputNames )
+			{
+				System.out.printf( "%s ", name );
+			}
+
+			System.out.println();
+
+			for( int i = 0; i < _points.length; ++i )
+			{
+				for( double value : _points[i] )
+				{
+					System.out.printf( "%-20.6g", value );
+				}
+
+				for( byte[] values : _values[i] )
+				{
+					for( byte v : values )
+					{
+						System.out.print( v < 0 ? "x" : Byte.toString( v ) );
+					}
+
+					System.out.print( " " );
+				}
+
+				System.out.println();
+			}
+		}
+	}
+}
@@ -0,0 +1,337 @@
+/*
+ *  Copyright (c) 2010 Robert Honer <rhoner@cs.ucla.edu>
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *      * Redistributions of source code must retain the above copyright
+ *        notice, this list of conditions and the following disclaimer.
+ *      * Redistributions in binary form must reproduce the above copyright
+ *        notice, this list of conditions and the following disclaimer in the
+ *        documentation and/or other materials provided with the distribution.
+ *      * Neither the name of the <organization> nor the
+ *        names of its contributors may be used to endorse or promote products
+ *        derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package jqcadesigner.engines;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jqcadesigner.JQCADesigner;
+import jqcadesigner.VectorTable;
+import jqcadesigner.circuit.Circuit;
+import jqcadesigner.circuit.units.Clock;
+import jqcadesigner.config.ConfigFile;
+import jqcadesigner.config.syntaxtree.Section;
+import jqcadesigner.config.syntaxtree.SectionGroup;
+import jqcadesigner.config.syntaxtree.SettingsSection;
+
+/**
+ * Picks a number_of_samples for a circuit and vector table.
+ *
+ * Starting from a coarse count, the number of samples is doubled until
+ * doubling it no longer changes anything: the output values are the same and
+ * the fraction of samples that took more than max_iterations_per_sample
+ * sweeps to relax is within SLOW_FRACTION_TOLERANCE. Two counts can agree by
+ * chance while both are too coarse, so it takes AGREEING_DOUBLINGS doublings
+ * in a row that change nothing. The smallest count of that run is the one
+ * picked, and can be put in the config file for later runs.
+ *
+ * The circuit is only initialized once. Each count runs on a replica of that
+ * engine, with its own clocks and input traces.
+ */
+public final class SampleCountTuner
+{
+	/**
+	 * Unless told otherwise, the first count tried is this many samples per
+	 * vector.
+	 */
+	public static final int START_SAMPLES_PER_VECTOR = 64;
+
+	/**
+	 * Unless told otherwise, the most samples tried.
+	 */
+	public static final int MAX_SAMPLES = 1 << 20;
+
+	/**
+	 * How much the fraction of slow samples can change between two counts
+	 * that are considered to agree.
+	 */
+	public static final double SLOW_FRACTION_TOLERANCE = 0.01;
+
+	/**
+	 * How many doublings in a row have to change nothing.
+	 */
+	public static final int AGREEING_DOUBLINGS = 2;
+
+	private static final Logger _log = JQCADesigner.log;
+
+	private final Circuit			_circuit;
+	private final SettingsSection	_settings;
+	private final int				_startSamples;
+	private final int				_maxSamples;
+
+	/**
+	 * Loads the settings to tune from a config file.
+	 *
+	 * @param circuit
+	 * @param configFileName The bistable engine config file. May be null.
+	 * @param startSamples The first count to try. Zero means
+	 *		START_SAMPLES_PER_VECTOR per vector.
+	 * @param maxSamples The most samples to try. Zero means MAX_SAMPLES.
+	 * @return The tuner.
+	 */
+	public static SampleCountTuner load(	Circuit circuit, String configFileName,
+											int startSamples, int maxSamples )
+		throws FileNotFoundException, IOException, ConfigFile.ParseException
+	{
+		SettingsSection settings = new SettingsSection();
+
+		if( configFileName != null )
+		{
+			SectionGroup sections = new ConfigFile( configFileName ).get( "BISTABLE_OPTIONS" );
+			Section section = sections == null ? null : sections.get( 0 );
+
+			if( section != null && section.hasSettings() )
+			{
+				settings = (SettingsSection)section;
+			}
+		}
+
+		return new SampleCountTuner( circuit, settings, startSamples, maxSamples );
+	}
+
+	/**
+	 * @param circuit
+	 * @param settings The BISTABLE_OPTIONS settings. number_of_samples is
+	 *		ignored.
+	 * @param startSamples The first count to try. Zero means
+	 *		START_SAMPLES_PER_VECTOR per vector.
+	 * @param maxSamples The most samples to try. Zero means MAX_SAMPLES.
+	 */
+	public SampleCountTuner(	Circuit circuit, SettingsSection settings,
+								int startSamples, int maxSamples )
+	{
+		if( startSamples < 0 || maxSamples < 0 )
+		{
+			String msg = "The number of samples can't be negative.";
+			throw new IllegalArgumentException( msg );
+		}
+
+		_circuit = circuit;
+		_settings = settings;
+		_startSamples = startSamples;
+		_maxSamples = maxSamples == 0 ? MAX_SAMPLES : maxSamples;
+	}
+
+	public Results run( final VectorTable vectorTable ) throws Engine.EngineException
+	{
+		final int vectorCount = vectorTable.inputs[0].length;
+
+		int samples	= _startSamples == 0
+					? START_SAMPLES_PER_VECTOR * vectorCount
+					: Math.max( _startSamples, vectorCount );
+
+		if( samples > _maxSamples )
+		{
+			String msg	= "Can't start at " + samples + " samples, more than the "
+						+ _maxSamples + " allowed.";
+			throw new IllegalArgumentException( msg );
+		}
+
+		long initTime = System.currentTimeMillis();
+		final BistableEngine prototype = new BistableEngine( _circuit, _settingsFor( samples ) );
+		prototype._init( vectorTable );
+		initTime = System.currentTimeMillis() - initTime;
+
+		final Results results = new Results();
+		results.initTime = initTime;
+
+		try
+		{
+			BistableEngine.RunResults previous = _run( prototype, vectorTable, samples, results );
+			int agreeing = 0;
+
+			while( (long)samples * 2 <= _maxSamples )
+			{
+				samples *= 2;
+
+				BistableEngine.RunResults current = _run( prototype, vectorTable, samples, results );
+
+				agreeing = _agree( previous, current ) ? agreeing + 1 : 0;
+				previous = current;
+
+				if( agreeing == AGREEING_DOUBLINGS )
+				{
+					results.samples = samples >> AGREEING_DOUBLINGS;
+					results.converged = true;
+
+					_log.log( Level.INFO, "Picked {0} samples.", results.samples );
+
+					return results;
+				}
+			}
+
+			_log.log(	Level.WARNING,
+						"Still changing at {0} samples, the most allowed.",
+						samples );
+
+			results.samples = samples;
+			results.converged = false;
+
+			return results;
+		}
+		finally
+		{
+			// The runs were attached to the prototype, so they used its pool.
+			prototype._shutdownPool();
+		}
+	}
+
+	/**
+	 * Runs the vector table with some number of samples.
+	 */
+	private BistableEngine.RunResults _run(	BistableEngine prototype,
+											VectorTable vectorTable,
+											int samples,
+											Results results )
+		throws Engine.EngineException
+	{
+		final BistableEngine engine = new BistableEngine( _circuit, _settingsFor( samples ) );
+		final int vectorCount = vectorTable.inputs[0].length;
+		final Clock[] clocks = new Clock[4];
+
+		for( int z = 0; z < 4; ++z )
+		{
+			clocks[z] = new Clock(	z, vectorCount, samples,
+									engine._clockLow, engine._clockHigh,
+									engine._clockAmplitudeFactor,
+									engine._clockShift );
+		}
+
+		engine._attach( prototype, prototype._network, clocks );
+		engine._replaceInputs( vectorTable );
+
+		long runTime = System.currentTimeMillis();
+		BistableEngine.RunResults runResults = engine._run( vectorTable );
+		runResults.runTime = System.currentTimeMillis() - runTime;
+
+		results._add( runResults );
+
+		return runResults;
+	}
+
+	private SettingsSection _settingsFor( int samples )
+	{
+		SettingsSection settings = new SettingsSection();
+		settings.settings.putAll( _settings.settings );
+		settings.settings.put( "number_of_samples", Integer.toString( samples ) );
+
+		return settings;
+	}
+
+	/**
+	 * Whether two runs, one with twice the samples of the other, came out
+	 * the same.
+	 */
+	private static boolean _agree(	BistableEngine.RunResults coarse,
+									BistableEngine.RunResults fine )
+	{
+		for( String name : coarse.getOutputNames() )
+		{
+			if( !Arrays.equals( coarse.getOutputValues( name ), fine.getOutputValues( name ) ) )
+			{
+				return false;
+			}
+		}
+
+		return Math.abs( coarse.getSlowFraction() - fine.getSlowFraction() )
+				<= SLOW_FRACTION_TOLERANCE;
+	}
+
+	/**
+	 * The count that was picked, and how each count that was tried went.
+	 */
+	public static final class Results
+	{
+		public long initTime;
+
+		/**
+		 * The number of samples picked.
+		 */
+		public int samples;
+
+		/**
+		 * False if the results were still changing at the most samples
+		 * allowed, in which case that's the count picked.
+		 */
+		public boolean converged;
+
+		private final ArrayList<BistableEngine.RunResults> _runs
+			= new ArrayList<BistableEngine.RunResults>();
+
+		private Results()
+		{
+		}
+
+		private void _add( BistableEngine.RunResults runResults )
+		{
+			_runs.add( runResults );
+		}
+
+		/**
+		 * @return The run at each count tried, in the order they were tried.
+		 */
+		public BistableEngine.RunResults[] getRuns()
+		{
+			return _runs.toArray( new BistableEngine.RunResults[ _runs.size() ] );
+		}
+
+		public void printStats()
+		{
+			System.out.printf( "Initialization time: %dms\n", initTime );
+			System.out.printf(	"%10s %10s %12s %10s %s\n",
+								"Samples", "Run time", "Mean sweeps", "Slow", "Outputs" );
+
+			for( BistableEngine.RunResults run : _runs )
+			{
+				StringBuilder outputs = new StringBuilder();
+
+				for( String name : run.getOutputNames() )
+				{
+					outputs.append( ' ' ).append( name ).append( '=' );
+
+					for( byte v : run.getOutputValues( name ) )
+					{
+						outputs.append( v < 0 ? "x" : Byte.toString( v ) );
+					}
+				}
+
+				System.out.printf(	"%10d %8dms %12.2f %9.1f%%%s\n",
+									run.samples, run.runTime, run.getMeanSweeps(),
+									100 * run.getSlowFraction(), outputs );
+			}
+
+			System.out.println( converged
+								? "Converged. Use:"
+								: "Didn't converge. The most samples allowed were:" );
+			System.out.printf( "number_of_samples=%d\n", samples );
+		}
+	}
+}
@@ -0,0 +1,362 @@
+/*
+ *  Copyright (c) 2010 Robert Honer <rhoner@cs.ucla.edu>
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *      * Redistributions of source code must retain the above copyright
+ *        notice, this list of conditions and the following disclaimer.
+ *      * Redistributions in binary form must reproduce the above copyright
+ *        notice, this list of conditions and the following disclaimer in the
+ *        documentation and/or other materials provided with the distribution.
+ *      * Neither the name of the <organization> nor the
+ *        names of its contributors may be used to endorse or promote products
+ *        derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package jqcadesigner.engines;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import jqcadesigner.circuit.units.Cell;
+
+/**
+ * A uniform grid over the cells, used to find every cell within some radius
+ * of another without having to look at the whole circuit.
+ *
+ * Each layer is split into square buckets at least as wide as the reach the
+ * grid was built for, so any cell within that reach of another lies in the
+ * same bucket or one of the eight around it. Only the layers that hold cells
+ * get buckets, however far apart their layer numbers are.
+ *
+ * A grid built with a reach of 0 or less finds no neighbors at all.
+ */
+public final class SpatialGrid
+{
+	/**
+	 * How many grid buckets we're willing to have per cell before making the
+	 * buckets bigger. Keeps sparse layouts from blowing up the bucket array.
+	 */
+	private static final int MAX_BUCKETS_PER_CELL = 4;
+
+	/**
+	 * The smallest number of cells worth handing to another thread.
+	 */
+	private static final int GRAIN = 1024;
+
+	private final Cell[]	_cells;
+	private final double	_reach;
+	private final double	_bucketSize;
+	private final double	_minX;
+	private final double	_minY;
+	private final int		_columns;
+	private final int		_rows;
+
+	/**
+	 * The distinct layer numbers of the cells, in ascending order. Bucket
+	 * layer l holds the cells on layer _layerNums[l].
+	 */
+	private final int[]		_layerNums;
+
+	/**
+	 * The cells in bucket b are _bucketCells[ _bucketOffsets[b] ] through
+	 * _bucketCells[ _bucketOffsets[b+1] - 1 ], in ascending order.
+	 */
+	private final int[]		_bucketOffsets;
+	private final int[]		_bucketCells;
+
+	/**
+	 * Build the grid.
+	 *
+	 * @param cells The cells to index. A cell's index in this array is what
+	 *		the grid hands back.
+	 * @param reach The largest radius that will be searched for. If it's 0
+	 *		or less, no cell has any neighbors.
+	 * @param pool Used to bucket the cells in parallel. May be null.
+	 */
+	public SpatialGrid( final Cell[] cells, final double reach, final ForkJoinPool pool )
+	{
+		assert cells != null;
+
+		_cells = cells;
+		_reach = reach;
+
+		final int cellCount = cells.length;
+
+		// Nothing can be within a reach of 0, so don't bother bucketing.
+		if( !(reach > 0) || cellCount == 0 )
+		{
+			_minX = _minY = 0;
+			_bucketSize = 1;
+			_columns = _rows = 0;
+			_layerNums = new int[0];
+			_bucketOffsets = new int[1];
+			_bucketCells = new int[0];
+
+			return;
+		}
+
+		double minX = Double.POSITIVE_INFINITY, maxX = Double.NEGATIVE_INFINITY;
+		double minY = Double.POSITIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+		final int[] layerNums = new int[ cellCount ];
+
+		for( int i = 0; i < cellCount; ++i )
+		{
+			final Cell cell = cells[i];
+
+			minX = Math.min( minX, cell.xCoord );
+			maxX = Math.max( maxX, cell.xCoord );
+			minY = Math.min( minY, cell.yCoord );
+			maxY = Math.max( maxY, cell.yCoord );
+			layerNums[i] = cell.layerNum;
+		}
+
+		_minX = minX;
+		_minY = minY;
+
+		// Squeeze out the duplicate layer numbers.
+		Arrays.sort( layerNums );
+
+		int layerCount = 0;
+
+		for( int i = 0; i < cellCount; ++i )
+		{
+			if( layerCount == 0 || layerNums[i] != layerNums[ layerCount - 1 ] )
+			{
+				layerNums[ layerCount++ ] = layerNums[i];
+			}
+		}
+
+		_layerNums = Arrays.copyOf( layerNums, layerCount );
+
+		// Pad the bucket size slightly so that rounding can never put two
+		// cells within reach of each other more than one bucket apart.
+		double bucketSize = reach * (1 + 1e-9);
+		double columns, rows;
+
+		// There are no more layers than cells, so a single bucket per layer
+		// is always within budget and the loop has to end. The arithmetic is
+		// done in doubles so that a tiny reach can't overflow it.
+		while( true )
+		{
+			columns = Math.floor( (maxX - minX) / bucketSize ) + 1;
+			rows = Math.floor( (maxY - minY) / bucketSize ) + 1;
+
+			if( columns * rows * layerCount <= (double)MAX_BUCKETS_PER_CELL * cellCount + 16 )
+			{
+				break;
+			}
+
+			bucketSize *= 2;
+		}
+
+		_bucketSize = bucketSize;
+		_columns = (int)columns;
+		_rows = (int)rows;
+
+		final int bucketCount = _columns * _rows * layerCount;
+
+		// Work out which bucket every cell is in.
+		final int[] buckets = new int[ cellCount ];
+
+		ParallelLoop.run( pool, cellCount, GRAIN, new ParallelLoop.Body()
+		{
+			public void run( int from, int to )
+			{
+				for( int i = from; i < to; ++i )
+				{
+					final Cell cell = cells[i];
+
+					buckets[i] = _bucketOf(	_column( cell.xCoord ),
+											_row( cell.yCoord ),
+											_layerOf( cell.layerNum ) );
+				}
+			}
+		} );
+
+		// Counting sort the cells by bucket. It's stable, so the cells within
+		// a bucket stay in ascending order.
+		_bucketOffsets = new int[ bucketCount + 1 ];
+
+		for( int i = 0; i < cellCount; ++i )
+		{
+			++_bucketOffsets[ buckets[i] + 1 ];
+		}
+
+		for( int b = 0; b < bucketCount; ++b )
+		{
+			_bucketOffsets[ b + 1 ] += _bucketOffsets[b];
+		}
+
+		_bucketCells = new int[ cellCount ];
+
+		final int[] fill = Arrays.copyOf( _bucketOffsets, bucketCount );
+
+		for( int i = 0; i < cellCount; ++i )
+		{
+			_bucketCells[ fill[ buckets[i] ]++ ] = i;
+		}
+	}
+
+	/**
+	 * Finds the neighbors of every cell.
+	 *
+	 * @param radius Cells closer than this are neighbors. Can't be more than
+	 *		the reach the grid was built with.
+	 * @param layerSeparation The distance between two adjacent layers.
+	 * @param pool Used to search for the neighbors in parallel. May be null.
+	 * @return For each cell, the indices of its neighbors in ascending order.
+	 */
+	public int[][] findAllNeighbors(	final double radius,
+										final double layerSeparation,
+										final ForkJoinPool pool )
+	{
+		final int cellCount = _cells.length;
+		final int[][] neighbors = new int[ cellCount ][];
+
+		ParallelLoop.run( pool, cellCount, GRAIN, new ParallelLoop.Body()
+		{
+			public void run( int from, int to )
+			{
+				int[] scratch = new int[ 64 ];
+
+				for( int i = from; i < to; ++i )
+				{
+					scratch = _findNeighbors( i, radius, layerSeparation, scratch );
+					neighbors[i] = Arrays.copyOf( scratch, scratch[ scratch.length - 1 ] );
+				}
+			}
+		} );
+
+		return neighbors;
+	}
+
+	/**
+	 * Finds the neighbors of one cell.
+	 *
+	 * @param cell The index of the cell.
+	 * @param radius Cells closer than this are neighbors. Can't be more than
+	 *		the reach the grid was built with.
+	 * @param layerSeparation The distance between two adjacent layers.
+	 * @return The indices of the cell's neighbors in ascending order.
+	 */
+	public int[] findNeighbors( int cell, double radius, double layerSeparation )
+	{
+		int[] scratch = _findNeighbors( cell, radius, layerSeparation, new int[ 64 ] );
+
+		return Arrays.copyOf( scratch, scratch[ scratch.length - 1 ] );
+	}
+
+	/**
+	 * Does the work for findNeighbors.
+	 *
+	 * To avoid allocating on every call, the neighbors are written into
+	 * scratch, which is grown if need be. The number of neighbors found is
+	 * stored in the last element of the returned array.
+	 */
+	private int[] _findNeighbors(	final int cellIndex,
+									final double radius,
+									final double layerSeparation,
+									int[] scratch )
+	{
+		assert radius <= _reach;
+
+		final Cell cell = _cells[ cellIndex ];
+		final int cellLayerNum = cell.layerNum;
+		final double radiusOfEffectSqrd = radius * radius;
+
+		final Cell[] cells = _cells;
+		final int[] bucketOffsets = _bucketOffsets;
+		final int[] bucketCells = _bucketCells;
+
+		final int column = _column( cell.xCoord );
+		final int row = _row( cell.yCoord );
+
+		int neighborCount = 0;
+
+		for( int layer = 0; layer < _layerNums.length; ++layer )
+		{
+			double zDiff	= Math.abs( _layerNums[ layer ] - cellLayerNum )
+							* layerSeparation;
+
+			if( zDiff * zDiff >= radiusOfEffectSqrd )
+			{
+				continue;
+			}
+
+			for( int r = Math.max( row - 1, 0 ); r <= Math.min( row + 1, _rows - 1 ); ++r )
+			{
+				for( int c = Math.max( column - 1, 0 ); c <= Math.min( column + 1, _columns - 1 ); ++c )
+				{
+					final int bucket = _bucketOf( c, r, layer );
+					final int end = bucketOffsets[ bucket + 1 ];
+
+					for( int k = bucketOffsets[ bucket ]; k < end; ++k )
+					{
+						final int i = bucketCells[k];
+						final Cell crtCell = cells[i];
+
+						if( crtCell == cell )
+						{
+							continue;
+						}
+
+						double xDiff = crtCell.xCoord - cell.xCoord;
+						double yDiff = crtCell.yCoord - cell.yCoord;
+
+						double distanceSqrd	=	(xDiff * xDiff)
+											+	(yDiff * yDiff)
+											+	(zDiff * zDiff);
+
+						if( distanceSqrd < radiusOfEffectSqrd )
+						{
+							// Leave room for the count at the end.
+							if( neighborCount == scratch.length - 1 )
+							{
+								scratch = Arrays.copyOf( scratch, scratch.length * 2 );
+							}
+
+							scratch[ neighborCount++ ] = i;
+						}
+					}
+				}
+			}
+		}
+
+		Arrays.sort( scratch, 0, neighborCount );
+		scratch[ scratch.length - 1 ] = neighborCount;
+
+		return scratch;
+	}
+
+	private int _column( double xCoord )
+	{
+		return (int)((xCoord - _minX) / _bucketSize);
+	}
+
+	private int _row( double yCoord )
+	{
+		return (int)((yCoord - _minY) / _bucketSize);
+	}
+
+	private int _layerOf( int layerNum )
+	{
+		return Arrays.binarySearch( _layerNums, layerNum );
+	}
+
+	private int _bucketOf( int column, int row, int layer )
+	{
+		return (layer * _rows + row) * _columns + column;
+	}
+}
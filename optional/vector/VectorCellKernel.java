@@ -0,0 +1,135 @@
+/*
+ *  Copyright (c) 2010 Robert Honer <rhoner@cs.ucla.edu>
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *      * Redistributions of source code must retain the above copyright
+ *        notice, this list of conditions and the following disclaimer.
+ *      * Redistributions in binary form must reproduce the above copyright
+ *        notice, this list of conditions and the following disclaimer in the
+ *        documentation and/or other materials provided with the distribution.
+ *      * Neither the name of the <organization> nor the
+ *        names of its contributors may be used to endorse or promote products
+ *        derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package jqcadesigner.engines;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * A CellKernel built on the jdk.incubator.vector module, using the widest
+ * vectors the machine supports.
+ *
+ * Only ever loaded by name through CellKernel.vector(), so it's kept out of
+ * the main source tree and built separately; see the README for how.
+ * Compiling and running it needs --add-modules jdk.incubator.vector.
+ *
+ * The lanes are summed in a different order than the scalar kernel sums
+ * them, so the results can differ from it in the last few bits.
+ */
+final class VectorCellKernel extends CellKernel
+{
+	private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+	/**
+	 * For each of the 16 pairs of dots, which dot of the first cell and which
+	 * dot of the second cell it is. Matches the order of SAME_POLARIZATION.
+	 */
+	private static final int[] FIRST_DOTS =
+		{ 0, 0, 0, 0, 1, 1, 1, 1, 2, 2, 2, 2, 3, 3, 3, 3 };
+	private static final int[] SECOND_DOTS =
+		{ 0, 1, 2, 3, 0, 1, 2, 3, 0, 1, 2, 3, 0, 1, 2, 3 };
+
+	VectorCellKernel()
+	{
+	}
+
+	@Override
+	public double sum(	final double[] ke, final int[] neighbors,
+						final double[] polarizations, final int from,
+						final int to )
+	{
+		final int bound = from + SPECIES.loopBound( to - from );
+
+		DoubleVector acc = DoubleVector.zero( SPECIES );
+		int k = from;
+
+		for( ; k < bound; k += SPECIES.length() )
+		{
+			DoubleVector pol = DoubleVector.fromArray( SPECIES, polarizations, 0, neighbors, k );
+			DoubleVector energy = DoubleVector.fromArray( SPECIES, ke, k );
+
+			acc = energy.fma( pol, acc );
+		}
+
+		double sum = acc.reduceLanes( VectorOperators.ADD );
+
+		for( ; k < to; ++k )
+		{
+			sum += ke[k] * polarizations[ neighbors[k] ];
+		}
+
+		return sum;
+	}
+
+	@Override
+	public double kinkSum(	final double[] dots, final int cell1,
+							final int cell2, final double zDiffSqrd )
+	{
+		final int base1 = cell1 * DOTS_STRIDE;
+		final int base2 = cell2 * DOTS_STRIDE;
+		final int bound = SPECIES.loopBound( 16 );
+
+		DoubleVector acc = DoubleVector.zero( SPECIES );
+		int p = 0;
+
+		for( ; p < bound; p += SPECIES.length() )
+		{
+			DoubleVector x1 = DoubleVector.fromArray( SPECIES, dots, base1, FIRST_DOTS, p );
+			DoubleVector y1 = DoubleVector.fromArray( SPECIES, dots, base1 + 4, FIRST_DOTS, p );
+			DoubleVector x2 = DoubleVector.fromArray( SPECIES, dots, base2, SECOND_DOTS, p );
+			DoubleVector y2 = DoubleVector.fromArray( SPECIES, dots, base2 + 4, SECOND_DOTS, p );
+
+			DoubleVector xDiff = x1.sub( x2 );
+			DoubleVector yDiff = y1.sub( y2 );
+
+			DoubleVector distance	= xDiff.mul( xDiff )
+									.add( yDiff.mul( yDiff ) )
+									.add( zDiffSqrd )
+									.sqrt()
+									.mul( 1e-9 );
+
+			acc = acc.add( DoubleVector.fromArray( SPECIES, SAME_POLARIZATION, p ).div( distance ) );
+		}
+
+		double energySame = acc.reduceLanes( VectorOperators.ADD );
+
+		// Only left over on machines with vectors too wide for 16 pairs.
+		for( ; p < 16; ++p )
+		{
+			double xDiff = dots[ base1 + FIRST_DOTS[p] ] - dots[ base2 + SECOND_DOTS[p] ];
+			double yDiff = dots[ base1 + 4 + FIRST_DOTS[p] ] - dots[ base2 + 4 + SECOND_DOTS[p] ];
+
+			double distance = 1e-9 * Math.sqrt( xDiff * xDiff + yDiff * yDiff + zDiffSqrd );
+
+			energySame += SAME_POLARIZATION[p] / distance;
+		}
+
+		return energySame;
+	}
+}